@@ -0,0 +1,44 @@
+package chat.server;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of <code>benchmarks.jar</code>. Takes the usual JMH command line and writes the results
+ * as JSON to <code>jmh-result.json</code> unless <code>-rf</code> or <code>-rff</code> says otherwise,
+ * so the results of two releases can be diffed.
+ * <p>
+ * Usage: <code>mvn package &amp;&amp; java -jar Benchmarks/target/benchmarks.jar [JMH options] [benchmarks]</code>,
+ * for example <code>java -jar Benchmarks/target/benchmarks.jar Broadcast -rff broadcast.json</code>.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see BroadcastBenchmark
+ * @see ParseBenchmark
+ * @see LoopbackBenchmark
+ * @see RelayAllocationBenchmark
+ * @see ReceiveAllocationBenchmark
+ * @see FanOutBenchmark
+ * @see EngineBenchmark
+ * @see RoomsBenchmark
+ * @see ConnectionBenchmark
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+        if (!options.getResultFormat().hasValue()) builder.resultFormat(ResultFormatType.JSON);
+        if (!options.getResult().hasValue()) builder.result("jmh-result.json");
+        new Runner(builder.build()).run();
+    }
+}
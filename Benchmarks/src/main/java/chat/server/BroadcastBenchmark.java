@@ -0,0 +1,118 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.ProtocolException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of one chat message to a room of 10, 1000 and 10000 members through {@link Rooms#route(Session, Frame)},
+ * the path every frame read by {@link ChatHandler} and {@link NioConnection} takes. The members take
+ * the frame view of their wire format, as their writers do, so the one-time encoding for text
+ * recipients is measured too.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Rooms
+ * @see Frame
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    /**
+     * Share of legacy text members in percent.
+     */
+    @Param({"0", "50"})
+    public int textPercent;
+
+    private Rooms rooms;
+    private Session sender;
+    private byte[] chat;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        rooms = new Rooms();
+        for (int i = 0; i < recipients; i++) {
+            WireFormat format = i * 100 < textPercent * recipients ? WireFormat.TEXT : WireFormat.BINARY;
+            Session member = new BlackholeSession(blackhole, format);
+            rooms.open(member);
+            rooms.route(member, Frame.of(Message.join("member" + i)));
+            if (sender == null) sender = member;
+        }
+        chat = BinaryCodec.encode(Message.chat("sender", "Hello, everybody in the lobby!"));
+    }
+
+    @Benchmark
+    public void broadcast() throws ProtocolException {
+        rooms.route(sender, Frame.binary(chat));
+    }
+
+    /**
+     * Member handing the frames to the blackhole instead of a socket.
+     */
+    private static class BlackholeSession implements Session {
+
+        private final Blackhole blackhole;
+        private final WireFormat format;
+        private final Set<String> joined = ConcurrentHashMap.newKeySet();
+        private String username;
+
+        BlackholeSession(Blackhole blackhole, WireFormat format) {
+            this.blackhole = blackhole;
+            this.format = format;
+        }
+
+        @Override
+        public boolean send(Frame frame) {
+            blackhole.consume(frame.view(format));
+            return true;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public Set<String> getRooms() {
+            return joined;
+        }
+
+        @Override
+        public int backlog() {
+            return 0;
+        }
+    }
+}
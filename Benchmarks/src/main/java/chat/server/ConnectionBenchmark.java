@@ -0,0 +1,143 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Idle connection count against memory for the server engines. Every engine and connection count gets
+ * a fresh JVM, one fork, so the numbers are not affected by the previous measurements. The single shot
+ * opens the connections to the engine and its score is the time that takes; once the connections settle
+ * the secondary results report live platform threads, used heap after GC and resident set size of the
+ * process, <code>-1</code> outside of Linux. Client channels are opened in the same JVM without threads,
+ * so they add the same small amount of memory to every engine.
+ * <p>
+ * Large counts need a raised open files limit (<code>ulimit -n</code>), a count past the limit is
+ * measured with the connections opened so far, the <code>connected</code> result shows how many.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ChatEngine
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(1)
+public class ConnectionBenchmark {
+
+    private static final long MB = 1024 * 1024;
+
+    @Param({"thread", "virtual", "nio"})
+    public String engine;
+
+    @Param({"1000", "5000", "10000"})
+    public int connections;
+
+    private int port;
+    private ChatEngine server;
+    private final List<SocketChannel> clients = new ArrayList<>();
+
+    /**
+     * Footprint of the engine with its connections open.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+
+        public long connected;
+        public long threads;
+        public long heapMegabytes;
+        public long rssMegabytes;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        PrintStream discard = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        System.setOut(discard);
+        System.setErr(discard);
+        port = freePort();
+        server = ChatEngine.builder()
+                .port(port)
+                .engine(engine)
+                .set("limit.connections", "0")
+                .set("limit.accept.rate", "0")
+                .start();
+    }
+
+    @Benchmark
+    public void connect(Footprint footprint) throws InterruptedException, IOException {
+        try {
+            for (int i = 0; i < connections; i++) {
+                clients.add(SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)));
+            }
+        } catch (IOException e) {
+            // measured with the connections opened so far, the connected result shows how many
+        }
+        Thread.sleep(2000);
+        System.gc();
+        Thread.sleep(500);
+        footprint.connected = clients.size();
+        footprint.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        footprint.heapMegabytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / MB;
+        footprint.rssMegabytes = residentSetSize();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (SocketChannel client : clients) client.close();
+        server.stopServer();
+    }
+
+    /**
+     * @return Resident set size of the process in megabytes, or <code>-1</code> outside of Linux
+     */
+    private static long residentSetSize() throws IOException {
+        Path status = Paths.get("/proc/self/status");
+        if (!Files.exists(status)) return -1;
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024;
+        }
+        return -1;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
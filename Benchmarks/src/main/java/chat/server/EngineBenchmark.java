@@ -0,0 +1,157 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import chat.protocol.MessageType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages per second through a whole server: a sender writes a burst of chat messages to the lobby
+ * and reads them back from the broadcast, while the other members of the lobby take theirs on their own threads.
+ * The server is started with {@link ChatEngine#builder()} over a {@link MemoryTransport} or over TCP, so
+ * the difference between the two is what the kernel adds. Rate limits are off and the outbound queues
+ * hold a whole burst, the sender never has a message dropped.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ChatEngine.Builder
+ * @see MemoryTransport
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+
+    private static final int BURST = 1000;
+
+    @Param({"memory", "tcp"})
+    public String transport;
+
+    @Param({"0", "100"})
+    public int receivers;
+
+    private ChatEngine engine;
+    private final List<ByteChannel> clients = new ArrayList<>();
+    private ByteChannel sender;
+    private final ByteBuffer burst = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer in = ByteBuffer.allocate(256 * 1024);
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        MemoryTransport memory = new MemoryTransport();
+        int port = "tcp".equals(transport) ? freePort() : 0;
+        engine = ChatEngine.builder()
+                .port(port)
+                .transport("tcp".equals(transport) ? new TcpTransport() : memory)
+                .set("fanout.threads", "0")
+                .set("limit.accept.rate", "0")
+                .set("limit.connection.messages", "0")
+                .set("limit.connection.bytes", "0")
+                .set("outbound.capacity", String.valueOf(4 * BURST))
+                .start();
+        for (int i = 0; i < receivers; i++) {
+            ByteChannel receiver = connect(memory, port, "receiver" + i);
+            Thread drain = new Thread(() -> drain(receiver), "drain-" + i);
+            drain.setDaemon(true);
+            drain.start();
+        }
+        sender = connect(memory, port, "sender");
+        while (engine.getMetrics().getActiveConnections() < receivers + 1) Thread.sleep(10);
+        byte[] frame = BinaryCodec.encode(Message.chat("sender", "a message of about the usual length"));
+        for (int i = 0; i < BURST; i++) burst.put(frame);
+        burst.flip();
+    }
+
+    /**
+     * @return Number of messages of the burst read back by the sender
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int broadcast() throws IOException {
+        burst.rewind();
+        while (burst.hasRemaining()) sender.write(burst);
+        return readChats(BURST);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (ByteChannel client : clients) client.close();
+        engine.stopServer();
+    }
+
+    private ByteChannel connect(MemoryTransport memory, int port, String username) throws IOException {
+        ByteChannel channel;
+        if ("tcp".equals(transport)) {
+            SocketChannel socket = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            socket.socket().setTcpNoDelay(true);
+            channel = socket;
+        } else {
+            channel = memory.connect();
+        }
+        clients.add(channel);
+        channel.write(ByteBuffer.wrap(BinaryCodec.encode(Message.join(username))));
+        return channel;
+    }
+
+    private int readChats(int count) throws IOException {
+        int chats = 0;
+        while (chats < count) {
+            if (sender.read(in) < 0) throw new EOFException();
+            in.flip();
+            while (in.remaining() >= BinaryCodec.HEADER_LENGTH) {
+                int length = BinaryCodec.frameLength(in, in.position());
+                if (in.remaining() < length) break;
+                if (in.get(in.position() + 2) == MessageType.CHAT.code()) chats++;
+                in.position(in.position() + length);
+            }
+            in.compact();
+        }
+        return chats;
+    }
+
+    private static void drain(ByteChannel receiver) {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (receiver.read(buffer) >= 0) buffer.clear();
+        } catch (IOException e) {
+            // closed by the tear down
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.ProtocolException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Broadcast of one chat message to a lobby of 50000 members, entered with a heartbeat so the setup
+ * sends no joins, with 0 (the broadcasting thread alone),
+ * 1, 2, 4 and 8 {@link FanOut} workers. The members put the frame into an {@link OutboundQueue}
+ * of slow consumers, which drops the oldest frame once full, as a real connection does under load.
+ * A broadcast is timed until the workers have sent it, not only queued it.
+ * The time per broadcast goes down with the workers up to the number of cores of the machine:
+ * <pre>
+ * java -jar Benchmarks/target/benchmarks.jar FanOut
+ * </pre>
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see FanOut
+ * @see Rooms
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    private static final int QUEUE_CAPACITY = 16;
+
+    @Param({"50000"})
+    public int recipients;
+
+    @Param({"0", "1", "2", "4", "8"})
+    public int workers;
+
+    private FanOut fanOut;
+    private Rooms rooms;
+    private FanOut.Members lobby;
+    private Session sender;
+    private byte[] chat;
+
+    @Setup
+    public void setUp() {
+        fanOut = workers > 0 ? new FanOut(workers, FanOut.DEFAULT_THRESHOLD) : null;
+        rooms = new Rooms(null, null, null, Resume.from(new Properties()), null, fanOut);
+        Backpressure backpressure = new Backpressure(QUEUE_CAPACITY, SlowConsumerPolicy.DROP_OLDEST);
+        for (int i = 0; i < recipients; i++) {
+            Session member = new QueueSession(backpressure);
+            rooms.open(member);
+            rooms.route(member, Frame.of(Message.pong()));
+            if (sender == null) sender = member;
+        }
+        if (fanOut != null) lobby = (FanOut.Members) rooms.members(Message.LOBBY);
+        chat = BinaryCodec.encode(Message.chat("sender", "Hello, everybody in the lobby!"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (fanOut != null) fanOut.close();
+    }
+
+    @Benchmark
+    public void broadcast() throws ProtocolException {
+        rooms.route(sender, Frame.binary(chat));
+        if (lobby != null) {
+            while (lobby.pending() > 0) Thread.yield();
+        }
+    }
+
+    /**
+     * Member queueing the frames for a writer that never comes.
+     */
+    private static class QueueSession implements Session {
+
+        private final OutboundQueue<Frame> outbound;
+        private final Set<String> joined = ConcurrentHashMap.newKeySet();
+        private String username;
+
+        QueueSession(Backpressure backpressure) {
+            outbound = new OutboundQueue<>(backpressure);
+        }
+
+        @Override
+        public boolean send(Frame frame) {
+            return outbound.offer(frame);
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public Set<String> getRooms() {
+            return joined;
+        }
+
+        @Override
+        public int backlog() {
+            return outbound.size();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of a legacy <code>writeUTF</code>/<code>readUTF</code> frame over a loopback socket:
+ * the client writes the string, an echo thread reads it and writes it back, the client reads the echo.
+ * The streams are buffered and flushed per frame, as {@link ChatHandler} and the client did.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see DataOutputStream#writeUTF(String)
+ * @see DataInputStream#readUTF()
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    @Param({"32", "1024", "16384"})
+    public int length;
+
+    private ServerSocket serverSocket;
+    private Socket client;
+    private Thread echo;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private String text;
+
+    @Setup
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        echo = new Thread(this::echo, "loopback-echo");
+        echo.setDaemon(true);
+        echo.start();
+        client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        client.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        text = new String(chars);
+    }
+
+    private void echo() {
+        try (Socket socket = serverSocket.accept()) {
+            socket.setTcpNoDelay(true);
+            DataInputStream echoIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream echoOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                echoOut.writeUTF(echoIn.readUTF());
+                echoOut.flush();
+            }
+        } catch (IOException e) {
+            // client closed
+        }
+    }
+
+    @Benchmark
+    public String roundTrip() throws IOException {
+        out.writeUTF(text);
+        out.flush();
+        return in.readUTF();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        client.close();
+        serverSocket.close();
+        echo.join();
+    }
+}
@@ -0,0 +1,101 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import chat.protocol.TextCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of one incoming message the way the server and the client do it, from an in-memory stream,
+ * so only the decoding is measured:
+ * <ul>
+ *     <li>server, binary: {@link ChatHandler} reads the frame and routes it by the header fields</li>
+ *     <li>server, text: {@link ChatHandler} reads a legacy <code>writeUTF</code> frame and takes the sender name</li>
+ *     <li>client, binary: <code>ChatClient</code> reads and decodes the whole frame</li>
+ *     <li>client, text: a legacy <code>name#text#date</code> string is parsed into a message</li>
+ * </ul>
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Frame
+ * @see BinaryCodec
+ * @see TextCodec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    private static final Message MESSAGE = Message.chat("sender", "Hello, everybody in the lobby!");
+
+    private ByteArrayInputStream binaryBytes;
+    private DataInputStream binaryStream;
+    private ByteArrayInputStream textBytes;
+    private DataInputStream textStream;
+    private String line;
+
+    @Setup
+    public void setUp() throws IOException {
+        binaryBytes = new ByteArrayInputStream(BinaryCodec.encode(MESSAGE));
+        binaryStream = new DataInputStream(binaryBytes);
+        line = TextCodec.format(MESSAGE);
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        new DataOutputStream(text).writeUTF(line);
+        textBytes = new ByteArrayInputStream(text.toByteArray());
+        textStream = new DataInputStream(textBytes);
+    }
+
+    @Benchmark
+    public Object serverBinary() throws IOException {
+        binaryBytes.reset();
+        Frame frame = Frame.binary(BinaryCodec.read(binaryStream));
+        return frame.room();
+    }
+
+    @Benchmark
+    public Object serverText() throws IOException {
+        textBytes.reset();
+        int length = textStream.readUnsignedShort();
+        byte[] bytes = new byte[2 + length];
+        bytes[0] = (byte) (length >>> 8);
+        bytes[1] = (byte) length;
+        textStream.readFully(bytes, 2, length);
+        Frame frame = Frame.text(bytes);
+        return frame.username();
+    }
+
+    @Benchmark
+    public Message clientBinary() throws IOException {
+        binaryBytes.reset();
+        return BinaryCodec.decode(ByteBuffer.wrap(BinaryCodec.read(binaryStream)));
+    }
+
+    @Benchmark
+    public Message clientText() {
+        return TextCodec.parse(line, 0);
+    }
+}
@@ -0,0 +1,149 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import chat.protocol.TextCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation of the receive path per message, with a few senders talking in a room as in a real chat.
+ * Run it with the GC profiler and compare <code>gc.alloc.rate.norm</code>, the bytes allocated per message:
+ * <pre>
+ * java -jar Benchmarks/target/benchmarks.jar ReceiveAllocation -prof gc
+ * </pre>
+ * <ul>
+ *     <li>server: a connection of the format cuts the frame with {@link FrameReader} and routes it by its room
+ *     and type, as the engines do for a chat message</li>
+ *     <li>client: <code>ChatConnection</code> reads the next binary frame and decodes it into a message</li>
+ * </ul>
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see FrameReader
+ * @see Frame
+ * @see BinaryCodec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveAllocationBenchmark {
+
+    private static final int FRAMES = 64;
+    private static final int SENDERS = 8;
+
+    @Param({"BINARY", "TEXT"})
+    public String wire;
+
+    private WireFormat format;
+    private final BufferPool pool = new BufferPool(BufferPool.DEFAULT_CHUNK, 64, false);
+    private Replay replay;
+    private FrameReader reader;
+    private ByteArrayInputStream clientBytes;
+    private DataInputStream clientStream;
+    private ByteBuffer clientBuffer = ByteBuffer.allocate(BinaryCodec.HEADER_LENGTH);
+
+    @Setup
+    public void setUp() throws IOException {
+        format = WireFormat.valueOf(wire);
+        ByteArrayOutputStream server = new ByteArrayOutputStream();
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        DataOutputStream text = new DataOutputStream(server);
+        for (int i = 0; i < FRAMES; i++) {
+            Message message = Message.chat("sender" + i % SENDERS, "Hello, everybody in the room! #" + i).inRoom("team");
+            if (format == WireFormat.BINARY) {
+                server.write(BinaryCodec.encode(message));
+            } else {
+                text.writeUTF(TextCodec.format(message));
+            }
+            client.write(BinaryCodec.encode(message));
+        }
+        replay = new Replay(server.toByteArray());
+        reader = new FrameReader(pool);
+        clientBytes = new ByteArrayInputStream(client.toByteArray());
+        clientStream = new DataInputStream(clientBytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        reader.release();
+    }
+
+    @Benchmark
+    public void server(Blackhole blackhole) throws IOException {
+        int length = reader.next(format);
+        if (length == 0) {
+            reader.compact();
+            reader.read(replay);
+            length = reader.next(format);
+        }
+        Frame frame = reader.frame(format, length);
+        blackhole.consume(frame.type());
+        blackhole.consume(frame.room());
+    }
+
+    @Benchmark
+    public Message client() throws IOException {
+        if (clientBytes.available() == 0) clientBytes.reset();
+        clientBuffer = BinaryCodec.read(clientStream, clientBuffer);
+        return BinaryCodec.decode(clientBuffer);
+    }
+
+    /**
+     * Connection replaying the same frames over and over.
+     */
+    private static final class Replay implements ReadableByteChannel {
+
+        private final byte[] bytes;
+        private int position;
+
+        Replay(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read(ByteBuffer target) {
+            if (position == bytes.length) position = 0;
+            int count = Math.min(bytes.length - position, target.remaining());
+            target.put(bytes, position, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
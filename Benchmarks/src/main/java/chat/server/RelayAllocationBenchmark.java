@@ -0,0 +1,253 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation of the server I/O path per relayed message: a chat frame is read from a connection, cut,
+ * routed by {@link Rooms} and written to every member of the room, the sender included, with the sockets
+ * replaced by in-memory channels. Run it with the GC profiler and compare <code>gc.alloc.rate.norm</code>,
+ * the bytes allocated per message:
+ * <pre>
+ * java -jar Benchmarks/target/benchmarks.jar RelayAllocation -prof gc
+ * </pre>
+ * <ul>
+ *     <li>pooled: {@link FrameReader} and {@link FrameWriter} over {@link BufferPool} buffers, as the engines do</li>
+ *     <li>heap: the frame read with a <code>DataInputStream</code> and written with a buffer view per member,
+ *     as the engines did before the pool</li>
+ * </ul>
+ * The pooled path allocates the frame bytes and the {@link Frame} once per message and nothing per member,
+ * the heap path allocates a view per member on top.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see BufferPool
+ * @see FrameReader
+ * @see FrameWriter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayAllocationBenchmark {
+
+    private static final int FRAMES = 64;
+
+    @Param({"1", "10", "100"})
+    public int recipients;
+
+    private final BufferPool pool = new BufferPool(BufferPool.DEFAULT_CHUNK, 64, false);
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final Sink sink = new Sink();
+    private Rooms pooledRooms;
+    private Rooms heapRooms;
+    private Session pooledSender;
+    private Session heapSender;
+    private Replay replay;
+    private FrameReader reader;
+    private ByteArrayInputStream heapBytes;
+    private DataInputStream heapStream;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            frames.write(BinaryCodec.encode(Message.chat("sender", "Hello, everybody in the lobby! #" + i)));
+        }
+        replay = new Replay(frames.toByteArray());
+        reader = new FrameReader(pool);
+        heapBytes = new ByteArrayInputStream(frames.toByteArray());
+        heapStream = new DataInputStream(heapBytes);
+
+        pooledRooms = new Rooms();
+        heapRooms = new Rooms();
+        for (int i = 0; i < recipients; i++) {
+            Session pooledMember = new PooledSession();
+            Session heapMember = new HeapSession();
+            pooledRooms.open(pooledMember);
+            heapRooms.open(heapMember);
+            pooledRooms.route(pooledMember, Frame.of(Message.join("member" + i)));
+            heapRooms.route(heapMember, Frame.of(Message.join("member" + i)));
+            if (pooledSender == null) pooledSender = pooledMember;
+            if (heapSender == null) heapSender = heapMember;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        reader.release();
+        if (pool.inUse() != 0) throw new IllegalStateException(pool.inUse() + " buffers not released");
+    }
+
+    @Benchmark
+    public void pooled() throws IOException {
+        int length = reader.next(WireFormat.BINARY);
+        if (length == 0) {
+            reader.compact();
+            reader.read(replay);
+            length = reader.next(WireFormat.BINARY);
+        }
+        pooledRooms.route(pooledSender, reader.frame(WireFormat.BINARY, length));
+    }
+
+    @Benchmark
+    public void heap() throws IOException {
+        if (heapBytes.available() == 0) heapBytes.reset();
+        heapRooms.route(heapSender, Frame.binary(BinaryCodec.read(heapStream)));
+    }
+
+    /**
+     * Member writing every frame through its pooled batch.
+     */
+    private final class PooledSession extends Member {
+
+        private final FrameWriter batch = new FrameWriter(pool, metrics);
+
+        @Override
+        public boolean send(Frame frame) {
+            batch.add(frame, WireFormat.BINARY);
+            try {
+                batch.write(sink);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Member gathering a view of every frame into its write, as the writers did before the pool.
+     */
+    private final class HeapSession extends Member {
+
+        private final ByteBuffer[] views = new ByteBuffer[WriteBatching.MAX_FRAMES];
+
+        @Override
+        public boolean send(Frame frame) {
+            views[0] = frame.view(WireFormat.BINARY);
+            sink.write(views, 0, 1);
+            views[0] = null;
+            return true;
+        }
+    }
+
+    private abstract static class Member implements Session {
+
+        private final Set<String> joined = ConcurrentHashMap.newKeySet();
+        private String username;
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public Set<String> getRooms() {
+            return joined;
+        }
+
+        @Override
+        public int backlog() {
+            return 0;
+        }
+    }
+
+    /**
+     * Connection replaying the same frames over and over.
+     */
+    private static final class Replay implements ReadableByteChannel {
+
+        private final byte[] bytes;
+        private int position;
+
+        Replay(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read(ByteBuffer target) {
+            if (position == bytes.length) position = 0;
+            int count = Math.min(bytes.length - position, target.remaining());
+            target.put(bytes, position, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Connection taking everything written at once.
+     */
+    private static final class Sink implements GatheringByteChannel {
+
+        @Override
+        public int write(ByteBuffer source) {
+            int count = source.remaining();
+            source.position(source.limit());
+            return count;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long count = 0;
+            for (int i = offset; i < offset + length; i++) count += write(sources[i]);
+            return count;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
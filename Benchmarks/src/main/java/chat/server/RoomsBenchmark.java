@@ -0,0 +1,128 @@
+package chat.server;
+
+import chat.protocol.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Broadcast cost against room size. Fills {@link Rooms} with many small rooms of 10 members and one large room
+ * of sessions that only count the frames they get, then times broadcasts routed to the small rooms in turn
+ * and to the large one. The cost of a broadcast follows the size of its room, not the number of rooms
+ * or users on the server.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Rooms
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomsBenchmark {
+
+    private static final int ROOM_SIZE = 10;
+    private static final String LARGE_ROOM = "large";
+
+    @Param({"1000", "10000", "100000"})
+    public int roomCount;
+
+    /**
+     * Members of the large room. Every join is broadcast to the room, filling it takes its size squared sends.
+     */
+    @Param({"10000"})
+    public int largeSize;
+
+    private Rooms rooms;
+    private Session[] senders;
+    private Frame[] frames;
+    private Session largeSender;
+    private Frame largeFrame;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        rooms = new Rooms();
+        senders = new Session[roomCount];
+        frames = new Frame[roomCount];
+        for (int room = 0; room < roomCount; room++) {
+            for (int member = 0; member < ROOM_SIZE; member++) senders[room] = join("room" + room);
+            frames[room] = Frame.of(Message.chat("user", "hi").inRoom("room" + room));
+        }
+        for (int member = 0; member < largeSize; member++) largeSender = join(LARGE_ROOM);
+        largeFrame = Frame.of(Message.chat("user", "hi").inRoom(LARGE_ROOM));
+    }
+
+    @Benchmark
+    public void smallRoom() {
+        int sender = next;
+        next = sender + 1 == senders.length ? 0 : sender + 1;
+        rooms.route(senders[sender], frames[sender]);
+    }
+
+    @Benchmark
+    public void largeRoom() {
+        rooms.route(largeSender, largeFrame);
+    }
+
+    private Session join(String room) {
+        Session session = new CountingSession();
+        rooms.open(session);
+        rooms.route(session, Frame.of(Message.join("user").inRoom(room)));
+        return session;
+    }
+
+    /**
+     * Session counting the frames it gets instead of writing them.
+     */
+    private static class CountingSession implements Session {
+
+        private final Set<String> joined = ConcurrentHashMap.newKeySet();
+        private String username;
+        private long received;
+
+        @Override
+        public boolean send(Frame frame) {
+            received++;
+            return true;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public Set<String> getRooms() {
+            return joined;
+        }
+
+        @Override
+        public int backlog() {
+            return 0;
+        }
+    }
+}
@@ -1,54 +1,67 @@
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import chat.protocol.MessageType;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
-import java.net.Socket;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
-/** Класс клиентского приложения. Наследуется от {@link JFrame} и реализует интерфейс {@link Runnable} для работы с
- * многопоточностью
+/** Класс клиентского приложения. Наследуется от {@link JFrame}, работу с сервером ведёт {@link ChatConnection}
+ * в своих потоках и сообщает о ней через {@link ChatConnection.Listener}. Полученные сообщения показывает
+ * {@link ChatView}, который хранит ограниченное число последних сообщений. Клиент помнит номер последнего
+ * полученного сообщения каждой комнаты и при новом подключении к тому же серверу просит прислать только
+ * пропущенные. Файлы передаёт {@link FileTransfers}: файл отправляется в текущую комнату через меню,
+ * а скачивается командой <code>/get id</code>. Команда <code>/search запрос</code> ищет сообщения в истории сервера
  *
  * @author Ivan Sokolovskiy
  *
- * @version 1.1
+ * @version 1.2
  *
  * @since Version 1.0
  *
  * @see JFrame
- * @see Runnable
+ * @see ChatConnection
+ * @see ChatView
+ * @see BinaryCodec
+ * @see FileTransfers
  */
 
-class ChatClient extends JFrame implements Runnable {
+class ChatClient extends JFrame implements ChatConnection.Listener {
+
+    private static final String DIRECT_COMMAND = "/msg ";
+    private static final String GET_COMMAND = "/get ";
+    private static final String SEARCH_COMMAND = "/search ";
 
     /**
-     * @see JTextArea
+     * @see ChatView
      * @see JTextField
-     * @see Socket
-     * @see DataInputStream
-     * @see DataOutputStream
+     * @see ChatConnection
      */
-    private Socket socket;
-    private DataInputStream inStream;
-    private DataOutputStream outStream;
-    private final JTextArea outTextArea;
+    private volatile ChatConnection connection;
+    private final ChatView chatView;
     private final JTextField inTextField;
-    private boolean isOn;
     private volatile boolean isConnected = false;
+    private volatile String room = Message.LOBBY;
+    private String address;
+    private final Map<String, Long> lastSequences = new ConcurrentHashMap<>();
+    private final FileTransfers transfers;
 
-    private Properties properties = new Properties();
+    private volatile Properties properties = new Properties();
 
     /**
-     * Конструктор класса. Получаем на вход название окна, сокет соединения, входной и выходной поток данных.
+     * Конструктор класса. Создаёт окно приложения, меню и поля ввода и вывода.
      *
      * @since Version 1.0
      *
-     * @see Socket
      * @see JFrame
-     * @see DataInputStream
-     * @see DataOutputStream
-     * @see JScrollPane
+     * @see ChatView
      * @see WindowAdapter
      * @see java.awt.event.ActionListener
      * @see WindowEvent
@@ -58,23 +71,13 @@ class ChatClient extends JFrame implements Runnable {
 
         Container cp = getContentPane();
         cp.setLayout(new BorderLayout());
-        JScrollPane scrollPane;
-        cp.add(BorderLayout.CENTER, scrollPane = new JScrollPane(outTextArea = new JTextArea()));
-        scrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
-//        cp.add(BorderLayout.CENTER, outTextArea = new JTextArea());
-        outTextArea.setEnabled(false);
-        outTextArea.setDisabledTextColor(Color.BLACK);
+        cp.add(BorderLayout.CENTER, chatView = new ChatView(ChatLog.DEFAULT_CAPACITY));
         cp.add(BorderLayout.SOUTH, inTextField = new JTextField());
+        transfers = new FileTransfers(text -> chatView.add(Message.system(text)));
 
         inTextField.addActionListener(e -> {
-            try {
-                outStream.writeUTF(properties.getProperty("username")+ "#" + inTextField.getText() + "#" + new
-                        Date().toString());
-                outStream.flush();
-            } catch (IOException e1) {
-                e1.printStackTrace();
-                isOn = false;
-            }
+            Message message = parse(inTextField.getText());
+            if (message != null) send(message);
             inTextField.setText("");
         });
         inTextField.setEnabled(false);
@@ -108,17 +111,7 @@ class ChatClient extends JFrame implements Runnable {
             @Override
             public void windowClosed(WindowEvent e) {
                 super.windowClosed(e);
-                isOn = false;
-                try {
-                    outStream.close();
-                } catch (IOException e1) {
-                    e1.printStackTrace();
-                }
-                try {
-                    socket.close();
-                } catch (IOException e2) {
-                    e2.printStackTrace();
-                }
+                disconnect();
             }
 
             @Override
@@ -144,61 +137,57 @@ class ChatClient extends JFrame implements Runnable {
 
         menu.add(new JMenuItem("Connect"));
         menu.getItem(0).addActionListener(e -> {
+            if (connection != null) return;
             String host = properties.getProperty("host");
             String port = properties.getProperty("port");
+            if (!(host + ":" + port).equals(address)) {
+                lastSequences.clear();
+                transfers.clear();
+            }
             try {
-                socket = new Socket(host, Integer.parseInt(port));
-                try {
-                    inStream = new DataInputStream(socket.getInputStream());
-                    outStream = new DataOutputStream(socket.getOutputStream());
-                    outStream.writeUTF("Connected: " + properties.getProperty("username"));
-                    super.setTitle("Chat " + host + ":" + port);
-                    inTextField.setEnabled(true);
-                    isConnected = true;
-                    (new Thread(this)).start();
-                } catch (IOException e1) {
-                    System.err.println("Error getting streams from server");
-                    try {
-                        outStream.close();
-                    } catch (IOException e2) {
-                        System.err.println("Error closing output stream");
-                        e2.printStackTrace();
-                    }
-                    try {
-                        socket.close();
-                    } catch (IOException e2) {
-                        System.err.println("Error closing socket");
-                        e2.printStackTrace();
-                    }
-                }
-            } catch (IOException e1) {
+                connection = new ChatConnection(host, Integer.parseInt(port), this::greeting, this, transfers);
+            } catch (NumberFormatException e1) {
                 System.err.println("Error connecting to server");
                 e1.printStackTrace();
+                return;
             }
+            address = host + ":" + port;
+            super.setTitle("Chat " + address + " (connecting)");
+            inTextField.setEnabled(true);
+            isConnected = true;
+            connection.open();
         });
 
         menu.add(new JMenuItem("Disconnect"));
         menu.getItem(1).addActionListener(e -> {
-            try {
-                outStream.close();
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            }
-            try {
-                socket.close();
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            }
-            outStream = null;
-            socket = null;
+            disconnect();
             inTextField.setEnabled(false);
-            isConnected = false;
             this.setTitle("Chat");
         });
 
         menu.add(new JMenuItem("Settings"));
         menu.getItem(2).addActionListener(e -> new ClientSettings(this, this.getTitle() + " Settings", properties, isConnected));
 
+        menu.add(new JMenuItem("Join room"));
+        menu.getItem(3).addActionListener(e -> {
+            String name = JOptionPane.showInputDialog(this, "Room name:");
+            if (name == null || name.trim().isEmpty() || !isConnected) return;
+            leaveRoom();
+            send(Message.join(properties.getProperty("username")).inRoom(name.trim()));
+            room = name.trim();
+        });
+
+        menu.add(new JMenuItem("Leave room"));
+        menu.getItem(4).addActionListener(e -> leaveRoom());
+
+        menu.add(new JMenuItem("Send file"));
+        menu.getItem(5).addActionListener(e -> {
+            if (!isConnected) return;
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            send(transfers.upload(chooser.getSelectedFile(), properties.getProperty("username"), room));
+        });
+
         menuBar.add(menu);
         setJMenuBar(menuBar);
 
@@ -220,67 +209,150 @@ class ChatClient extends JFrame implements Runnable {
         if (!(oldName = this.properties.getProperty("username")).equals(newName = properties.getProperty("username"))
                 &&
                 isConnected)
-            try {
-                outStream.writeUTF(oldName + " changed his name into " + newName);
-            } catch (IOException e) {
-                System.err.println("Error sending new name to server");
-                e.printStackTrace();
-            }
+            send(Message.rename(oldName, newName));
         this.properties = properties;
     }
 
     /**
-     * Запускает процесс общение приложения с сервером
+     * Разбирает введённую строку. Строка вида <code>/msg имя текст</code> становится личным сообщением
+     * пользователю, строка <code>/get id</code> начинает скачивание файла, строка <code>/search запрос</code>
+     * ищет сообщения в истории, например <code>/search from:ann in:team after:2024-05-01 релиз</code>,
+     * любая другая отправляется в текущую комнату
      *
-     * @since Version 1.0
+     * @param text введённая строка
      *
-     * @see Runnable
-     * @see Runnable#run()
+     * @return сообщение, <code>null</code>, если отправлять нечего
+     *
+     * @since Version 1.2
      */
-    @Override
-    public void run() {
-        isOn = true;
-
-        try {
-            while (isOn) {
-                if (isConnected) {
-                    String line = inStream.readUTF();
-                    System.out.println(line);
-                    String[] data = line.split("#");
-                    if (data.length == 1) outTextArea.append(line + "\n");
-                    else {
-                        outTextArea.append(data[0] + "[" + data[data.length - 1] + "]: ");
-                        for (int i = 1; i < data.length - 1; i++) outTextArea.append(data[i]);
-                        outTextArea.append("\n");
-                    }
-                }
-            }
+    private Message parse(String text) {
+        String username = properties.getProperty("username");
+        if (text.startsWith(GET_COMMAND)) return transfers.download(text.substring(GET_COMMAND.length()).trim());
+        if (text.startsWith(SEARCH_COMMAND)) return Message.search(text.substring(SEARCH_COMMAND.length()).trim());
+        if (text.startsWith(DIRECT_COMMAND)) {
+            String rest = text.substring(DIRECT_COMMAND.length()).trim();
+            int space = rest.indexOf(' ');
+            if (space > 0) return Message.direct(username, rest.substring(0, space), rest.substring(space + 1));
         }
-        catch (IOException e) {
-            System.out.println("Left chat server");
-            //e.printStackTrace();
+        return Message.chat(username, text).inRoom(room);
+    }
+
+    /**
+     * Покидает текущую комнату и возвращает пользователя в общий чат
+     *
+     * @since Version 1.2
+     */
+    private void leaveRoom() {
+        if (!isConnected || Message.LOBBY.equals(room)) return;
+        send(Message.leave(properties.getProperty("username")).inRoom(room));
+        room = Message.LOBBY;
+    }
+
+    /**
+     * Ставит сообщение в очередь соединения. Пока связи нет, сообщения копятся и уходят по порядку,
+     * когда она восстановится
+     *
+     * @param message сообщение
+     *
+     * @since Version 1.2
+     *
+     * @see ChatConnection#send(Message)
+     */
+    private void send(Message message) {
+        ChatConnection c = connection;
+        if (c != null) c.send(message);
+    }
+
+    /**
+     * Закрывает соединение и прекращает попытки переподключения
+     *
+     * @since Version 1.2
+     */
+    private void disconnect() {
+        ChatConnection c = connection;
+        connection = null;
+        isConnected = false;
+        room = Message.LOBBY;
+        if (c != null) c.close();
+    }
+
+    /**
+     * Сообщения, которые отправляются в начале каждого сеанса связи: вход в общий чат и в текущую комнату.
+     * Если из этих комнат уже приходили сообщения, перед входом отправляется номер последнего из них,
+     * и сервер присылает только пропущенные вместо последних сообщений истории. После входа продолжаются
+     * незаконченные передачи файлов
+     *
+     * @return приветствие сервера
+     *
+     * @since Version 1.2
+     */
+    private List<Message> greeting() {
+        String username = properties.getProperty("username");
+        List<Message> messages = new ArrayList<>();
+        String current = room;
+        Long lobby = lastSequences.get(Message.LOBBY);
+        if (lobby != null) messages.add(Message.resume(Message.LOBBY, lobby));
+        Long last = Message.LOBBY.equals(current) ? null : lastSequences.get(current);
+        if (last != null) messages.add(Message.resume(current, last));
+        messages.add(Message.join(username));
+        if (!Message.LOBBY.equals(current)) messages.add(Message.join(username).inRoom(current));
+        messages.addAll(transfers.greeting(username));
+        return messages;
+    }
+
+    /**
+     * Запоминает номер сообщения в его комнате и выводит сообщение в окно чата. Отметка о пропуске
+     * задаёт номер заново, так как после неё сервер присылает последние сообщения истории.
+     * Объявление о файле запоминается, чтобы файл можно было скачать.
+     * Вызывается потоком соединения, окно обновляется потоком Swing раз в кадр
+     *
+     * @param message сообщение
+     *
+     * @since Version 1.2
+     *
+     * @see ChatView#add(Message)
+     */
+    @Override
+    public void onMessage(Message message) {
+        if (message.getType() == MessageType.GAP) {
+            lastSequences.put(message.getRoom(), message.getSequence());
+        } else if (message.getSequence() > 0) {
+            lastSequences.merge(message.getRoom(), message.getSequence(), Math::max);
         }
-//        finally {
-//            inTextField.setVisible(false);
-//            validate();
-//        }
+        if (message.getType() == MessageType.FILE) transfers.onFile(message);
+        chatView.add(message);
     }
 
-    /** Входная точка программы. Создает соединение с сервером, создаёт окно приложения. Запускает приложение.
+    /**
+     * Показывает состояние связи в заголовке окна
      *
-     * @param args Аргументы командной строки. В программе не используются.
+     * @param connected есть ли связь
+     * @param retryMillis пауза до следующей попытки подключения
      *
-     * @throws IOException Исключение возникает в случае отсутствия соединения с сервером.
+     * @since Version 1.2
+     */
+    @Override
+    public void onStateChanged(boolean connected, long retryMillis) {
+        SwingUtilities.invokeLater(() -> {
+            if (!isConnected) return;
+            if (connected) {
+                setTitle("Chat " + address);
+            } else if (retryMillis > 0) {
+                setTitle("Chat " + address + " (reconnecting in " + (retryMillis + 999) / 1000 + " s)");
+            }
+        });
+    }
+
+    /** Входная точка программы. Создаёт окно приложения. Запускает приложение.
+     *
+     * @param args Аргументы командной строки. В программе не используются.
      *
      * @since Version 1.0
      *
-     * @see IOException
-     * @see Socket
      * @see Properties
-     * @see DataInputStream
-     * @see DataOutputStream
+     * @see ChatConnection
      */
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) {
         new ChatClient();
     }
 }
@@ -0,0 +1,273 @@
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import chat.protocol.MessageType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Connection of the client to the chat server, independent of the window. A connection thread connects,
+ * sends the greeting and then blocks reading frames, so an idle or disconnected client takes no CPU.
+ * A writer thread of every session drains the queue of outgoing messages, which keeps the messages
+ * sent while the link is down and sends them in order once it is back.
+ * <p>
+ * A lost link is reconnected automatically. The pause before the attempt doubles with every failed
+ * attempt from {@link ChatConnection#MIN_BACKOFF_MILLIS} up to {@link ChatConnection#MAX_BACKOFF_MILLIS},
+ * and half of it is random, so clients dropped together by a server restart do not come back together.
+ * <p>
+ * The server pings a silent connection, the PONG is sent ahead of the queued messages. Every PING carries
+ * the heartbeat interval of the server, and the read timeout is set to {@link ChatConnection#TIMEOUT_INTERVALS}
+ * of them, so a read timing out means a dead link, which is reconnected like a closed one. Until the first
+ * PING, and with a server that sends none, reads never time out and the TCP keep-alive of the system
+ * finds a dead link instead.
+ * <p>
+ * The chunks of the uploads of {@link FileTransfers} are sent by the writer while no message is queued,
+ * so a message typed during an upload waits for one chunk at most. The chunks of the downloads
+ * are passed to {@link FileTransfers} as they come, without decoding them into messages.
+ * Every frame is read into the same buffer of the session, only the fields of its message are allocated.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ChatClient
+ * @see BinaryCodec
+ * @see FileTransfers
+ */
+class ChatConnection implements Runnable {
+
+    static final long MIN_BACKOFF_MILLIS = 500;
+    static final long MAX_BACKOFF_MILLIS = 30_000;
+    static final int TIMEOUT_INTERVALS = 3;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int FRAME_BUFFER_LENGTH = 4096;
+    private static final Message WAKE = Message.pong();
+
+    /**
+     * Receiver of the connection events. Called on the connection thread.
+     */
+    interface Listener {
+
+        void onMessage(Message message);
+
+        /**
+         * @param connected <code>true</code> when a session starts, <code>false</code> when the link is lost
+         * @param retryMillis Pause before the next attempt, <code>0</code> if no attempt follows
+         */
+        void onStateChanged(boolean connected, long retryMillis);
+    }
+
+    private final String host;
+    private final int port;
+    private final Supplier<List<Message>> greeting;
+    private final Listener listener;
+    private final FileTransfers transfers;
+    private final BlockingDeque<Message> outgoing = new LinkedBlockingDeque<>();
+    private final Thread thread;
+    private volatile boolean isOn = true;
+    private volatile Socket socket;
+
+    /**
+     * @param host Server host
+     * @param port Server port
+     * @param greeting Messages sent first in every session, before the queued ones, such as the joins of the user
+     * @param listener Receiver of the messages and of the state changes
+     * @param transfers File transfers the chunks are read from and written to
+     */
+    ChatConnection(String host, int port, Supplier<List<Message>> greeting, Listener listener,
+                   FileTransfers transfers) {
+        this.host = host;
+        this.port = port;
+        this.greeting = greeting;
+        this.listener = listener;
+        this.transfers = transfers;
+        thread = new Thread(this, "chat-connection");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts connecting in the background.
+     */
+    void open() {
+        thread.start();
+    }
+
+    /**
+     * Queues the message, it is sent as soon as the link is up. Never blocks.
+     *
+     * @param message Message to send
+     */
+    void send(Message message) {
+        outgoing.add(message);
+    }
+
+    /**
+     * Closes the link and stops reconnecting. Queued messages are dropped.
+     */
+    void close() {
+        isOn = false;
+        outgoing.clear();
+        closeSocket();
+        thread.interrupt();
+    }
+
+    /**
+     * Connects and reads until closed, pausing between the attempts.
+     */
+    @Override
+    public void run() {
+        int attempt = 0;
+        while (isOn) {
+            Thread writer = null;
+            try {
+                Socket s = new Socket();
+                socket = s;
+                if (!isOn) break;
+                s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                s.setKeepAlive(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                for (Message message : greeting.get()) out.write(BinaryCodec.encode(message));
+                out.flush();
+                writer = new Thread(() -> write(out), "chat-writer");
+                writer.setDaemon(true);
+                writer.start();
+                attempt = 0;
+                listener.onStateChanged(true, 0);
+                ByteBuffer frame = ByteBuffer.allocate(FRAME_BUFFER_LENGTH);
+                while (isOn) {
+                    frame = BinaryCodec.read(in, frame);
+                    if (BinaryCodec.type(frame, 0) == MessageType.CHUNK) {
+                        transfers.onChunk(frame);
+                        continue;
+                    }
+                    Message message = BinaryCodec.decode(frame);
+                    if (message.getType() == MessageType.PING) {
+                        int timeout = readTimeout(message);
+                        if (timeout >= 0 && timeout != s.getSoTimeout()) s.setSoTimeout(timeout);
+                        outgoing.addFirst(Message.pong());
+                    } else if (message.getType() == MessageType.FETCH) {
+                        if (transfers.onFetch(message)) outgoing.add(WAKE);
+                    } else {
+                        listener.onMessage(message);
+                    }
+                }
+            } catch (IOException e) {
+                if (isOn) System.out.println("Lost connection to " + host + ":" + port + ": " + e);
+            } finally {
+                closeSocket();
+                if (writer != null) {
+                    writer.interrupt();
+                    try {
+                        writer.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            if (!isOn) break;
+            long pause = backoff(attempt++);
+            listener.onStateChanged(false, pause);
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        listener.onStateChanged(false, 0);
+    }
+
+    /**
+     * Sends the queued messages in order, and the next upload chunk whenever the queue is empty.
+     * The messages written since the last flush are kept until it succeeds: if the link fails first,
+     * they and the message being written are put back to the head of the queue in their order,
+     * so the next session sends them first.
+     */
+    private void write(DataOutputStream out) {
+        List<Message> unflushed = new ArrayList<>();
+        Message message = null;
+        try {
+            while (true) {
+                message = outgoing.pollFirst();
+                if (message == null) {
+                    byte[] chunk = transfers.nextChunk();
+                    if (chunk != null) {
+                        out.write(chunk);
+                        continue;
+                    }
+                    out.flush();
+                    unflushed.clear();
+                    message = outgoing.takeFirst();
+                }
+                if (message == WAKE) {
+                    message = null;
+                    continue;
+                }
+                out.write(BinaryCodec.encode(message));
+                unflushed.add(message);
+                message = null;
+                if (outgoing.isEmpty()) {
+                    out.flush();
+                    unflushed.clear();
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            if (isOn) {
+                if (message != null) outgoing.addFirst(message);
+                for (int i = unflushed.size() - 1; i >= 0; i--) outgoing.addFirst(unflushed.get(i));
+            }
+            closeSocket();
+        }
+    }
+
+    /**
+     * @param ping PING of the server
+     *
+     * @return Read timeout in milliseconds for the interval the PING advertises, <code>-1</code> if it advertises none
+     */
+    static int readTimeout(Message ping) {
+        long seconds;
+        try {
+            seconds = Long.parseLong(ping.getText());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (seconds <= 0) return -1;
+        return (int) Math.min(Integer.MAX_VALUE, seconds * TIMEOUT_INTERVALS * 1000);
+    }
+
+    /**
+     * @param attempt Number of failed attempts in a row
+     *
+     * @return Pause before the next attempt: half of the exponential step plus a random part up to the other half
+     */
+    static long backoff(int attempt) {
+        long step = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return step / 2 + ThreadLocalRandom.current().nextLong(step / 2 + 1);
+    }
+
+    private void closeSocket() {
+        Socket s = socket;
+        if (s == null) return;
+        try {
+            s.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import chat.protocol.Message;
+
+import javax.swing.*;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scrollback of the chat window: the last {@link ChatLog#getCapacity()} received messages in a ring buffer,
+ * the oldest one overwritten by every new one once it is full, so memory stays flat however long the
+ * client runs.
+ * <p>
+ * Messages are offered from any thread and wait in a queue, also no longer than the capacity. A Swing
+ * timer moves them to the ring once per frame, so a burst of messages costs one model update and one
+ * repaint on the event dispatch thread.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ChatView
+ */
+class ChatLog extends AbstractListModel<Message> {
+
+    static final int DEFAULT_CAPACITY = 10_000;
+
+    /**
+     * Delay of the batched update, one frame at 60 frames per second.
+     */
+    private static final int FRAME_MILLIS = 16;
+
+    private final Message[] ring;
+    private int head;
+    private int size;
+    private final Queue<Message> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingSize = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer timer;
+    private Runnable beforeUpdate = () -> { };
+    private Runnable afterUpdate = () -> { };
+
+    /**
+     * @param capacity Number of messages kept
+     */
+    ChatLog(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        ring = new Message[capacity];
+        timer = new Timer(FRAME_MILLIS, e -> drain());
+        timer.setRepeats(false);
+    }
+
+    int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * Queues the message for the next frame. May be called on any thread.
+     *
+     * @param message Received message
+     */
+    void offer(Message message) {
+        pending.add(message);
+        if (pendingSize.incrementAndGet() > ring.length && pending.poll() != null) pendingSize.decrementAndGet();
+        if (scheduled.compareAndSet(false, true)) timer.restart();
+    }
+
+    /**
+     * Sets the hooks run on the event dispatch thread around every batched update, e.g. to keep the view
+     * scrolled to the end.
+     *
+     * @param before Run before the model changes
+     * @param after Run after the model changes
+     */
+    void onUpdate(Runnable before, Runnable after) {
+        beforeUpdate = before;
+        afterUpdate = after;
+    }
+
+    /**
+     * Drops all the messages.
+     */
+    void clear() {
+        pending.clear();
+        pendingSize.set(0);
+        if (size == 0) return;
+        int last = size - 1;
+        Arrays.fill(ring, null);
+        head = 0;
+        size = 0;
+        fireIntervalRemoved(this, 0, last);
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Message getElementAt(int index) {
+        return ring[(head + index) % ring.length];
+    }
+
+    /**
+     * Moves the queued messages to the ring on the event dispatch thread.
+     */
+    private void drain() {
+        scheduled.set(false);
+        if (pending.isEmpty()) return;
+        beforeUpdate.run();
+        int oldSize = size;
+        int added = 0;
+        int evicted = 0;
+        Message message;
+        while ((message = pending.poll()) != null) {
+            pendingSize.decrementAndGet();
+            ring[(head + size) % ring.length] = message;
+            if (size < ring.length) {
+                size++;
+            } else {
+                head = (head + 1) % ring.length;
+                evicted++;
+            }
+            added++;
+        }
+        evicted = Math.min(evicted, oldSize);
+        added = Math.min(added, size);
+        if (evicted > 0) fireIntervalRemoved(this, 0, evicted - 1);
+        fireIntervalAdded(this, size - added, size - 1);
+        afterUpdate.run();
+    }
+}
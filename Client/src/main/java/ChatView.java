@@ -0,0 +1,121 @@
+import chat.protocol.FileTransfer;
+import chat.protocol.Message;
+import chat.protocol.MessageType;
+import chat.protocol.TextCodec;
+
+import javax.swing.*;
+import java.awt.*;
+import java.net.ProtocolException;
+import java.util.Date;
+
+/**
+ * Chat window area showing the {@link ChatLog}. A {@link JList} with a fixed cell height lays out and
+ * paints only the visible rows, the lines are formatted when they are painted, so neither the size of
+ * the scrollback nor the rate of messages shows in the cost of a repaint.
+ * <p>
+ * The view follows new messages while scrolled to the end and stays in place when scrolled up.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ChatLog
+ * @see ChatClient
+ */
+class ChatView extends JScrollPane {
+
+    private final ChatLog log;
+    private final JList<Message> list;
+    private boolean following = true;
+
+    /**
+     * @param capacity Number of messages kept
+     */
+    ChatView(int capacity) {
+        log = new ChatLog(capacity);
+        list = new JList<Message>(log) {
+            @Override
+            public boolean getScrollableTracksViewportWidth() {
+                return true;
+            }
+        };
+        list.setCellRenderer(new LineRenderer());
+        list.setFixedCellHeight(list.getFontMetrics(list.getFont()).getHeight() + 2);
+        list.setFixedCellWidth(1);
+        setViewportView(list);
+        setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+        log.onUpdate(this::checkFollowing, () -> {
+            if (following) list.ensureIndexIsVisible(log.getSize() - 1);
+        });
+    }
+
+    /**
+     * Shows the message with the next frame. May be called on any thread.
+     *
+     * @param message Received message
+     */
+    void add(Message message) {
+        log.offer(message);
+    }
+
+    void clear() {
+        log.clear();
+    }
+
+    private void checkFollowing() {
+        JScrollBar bar = getVerticalScrollBar();
+        following = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - list.getFixedCellHeight();
+    }
+
+    /**
+     * Formats a message into a chat line: the room unless it is the lobby, then the author, time and
+     * text of a chat message or the description of a service one. A private message shows its sender
+     * and recipient instead of the room, the presence snapshot lists the users online. A shared file
+     * shows the command that downloads it, a message found by a search is marked as such.
+     *
+     * @param message Message
+     *
+     * @return Line shown in the chat
+     */
+    static String format(Message message) {
+        StringBuilder line = new StringBuilder();
+        if (message.getType() == MessageType.DIRECT) {
+            return line.append(message.getName()).append(" -> ").append(message.getRoom())
+                    .append("[").append(new Date(message.getTimestamp())).append("]: ").append(message.getText()).toString();
+        }
+        if (message.getType() == MessageType.PRESENCE) {
+            return line.append("Online: ").append(message.getText().replace("\n", ", ")).toString();
+        }
+        if (message.getType() == MessageType.SEARCH) line.append("[search] ");
+        if (!Message.LOBBY.equals(message.getRoom())) line.append("[").append(message.getRoom()).append("] ");
+        if (message.getType() == MessageType.CHAT || message.getType() == MessageType.SEARCH) {
+            line.append(message.getName()).append("[").append(new Date(message.getTimestamp())).append("]: ")
+                    .append(message.getText());
+        } else if (message.getType() == MessageType.FILE) {
+            line.append(message.getName()).append("[").append(new Date(message.getTimestamp())).append("]: file ");
+            try {
+                line.append(FileTransfer.fileName(message)).append(" (").append(FileTransfer.position(message))
+                        .append(" bytes), /get ").append(FileTransfer.format(FileTransfer.id(message)));
+            } catch (ProtocolException e) {
+                line.append(message.getText());
+            }
+        } else {
+            line.append(TextCodec.format(message));
+        }
+        return line.toString();
+    }
+
+    /**
+     * Renders a row as its formatted line.
+     */
+    private static class LineRenderer extends DefaultListCellRenderer {
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            return super.getListCellRendererComponent(list, format((Message) value), index, isSelected, cellHasFocus);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+import chat.protocol.BinaryCodec;
+import chat.protocol.FileTransfer;
+import chat.protocol.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * File transfers of the client, as described in {@link FileTransfer}. An upload is offered to a room
+ * and its chunks are sent from the offset the server asks for, by the writer of {@link ChatConnection}
+ * whenever no message is queued, so the chat goes on during a transfer. A file shared to a room can be
+ * downloaded by its id into the {@link FileTransfers#DOWNLOAD_DIR} directory.
+ * <p>
+ * The transfers outlive a session: after a reconnect the unfinished uploads are offered again and the
+ * unfinished downloads fetched from the bytes already saved, see {@link FileTransfers#greeting(String)}.
+ * Called by the window, the connection thread and the writer thread at once, so the state of every
+ * transfer is guarded by its monitor.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ChatConnection
+ * @see ChatClient
+ */
+class FileTransfers {
+
+    static final String DOWNLOAD_DIR = "downloads";
+
+    private final Map<Long, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<Long, Download> downloads = new ConcurrentHashMap<>();
+    private final Map<Long, Message> files = new ConcurrentHashMap<>();
+    private final Consumer<String> status;
+
+    /**
+     * @param status Receiver of the lines telling the user how the transfers go
+     */
+    FileTransfers(Consumer<String> status) {
+        this.status = status;
+    }
+
+    /**
+     * Starts an upload. The chunks go once the server answers the offer.
+     *
+     * @param file File to share
+     * @param username Name of the user
+     * @param room Room the file is for
+     *
+     * @return FILE offer to send
+     */
+    Message upload(File file, String username, String room) {
+        Upload upload = new Upload(ThreadLocalRandom.current().nextLong(), file, room);
+        uploads.put(upload.id, upload);
+        status.accept("Uploading " + file.getName() + " (" + upload.size + " bytes)");
+        return upload.offer(username);
+    }
+
+    /**
+     * Starts a download of a file shared to a room the user is in.
+     *
+     * @param id Transfer id as the user typed it
+     *
+     * @return FETCH request to send, <code>null</code> if no such file was shared
+     */
+    Message download(String id) {
+        Message file;
+        try {
+            long key = FileTransfer.parseId(id);
+            Download previous = downloads.get(key);
+            if (previous != null) return previous.fetch();
+            file = files.get(key);
+        } catch (ProtocolException e) {
+            file = null;
+        }
+        if (file == null) {
+            status.accept("No file " + id);
+            return null;
+        }
+        try {
+            Download download = new Download(file);
+            downloads.put(download.id, download);
+            status.accept("Downloading " + download.target);
+            return download.fetch();
+        } catch (IOException e) {
+            status.accept("Can not save " + id + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Remembers a file shared to a room. If it is one of the uploads, the upload is over.
+     *
+     * @param message FILE message of the server
+     */
+    void onFile(Message message) {
+        try {
+            long id = FileTransfer.id(message);
+            files.put(id, message);
+            Upload upload = uploads.remove(id);
+            if (upload != null) {
+                upload.close();
+                status.accept("Uploaded " + upload.file.getName() + ", /get " + FileTransfer.format(id));
+            }
+        } catch (ProtocolException e) {
+            // not a file we can take
+        }
+    }
+
+    /**
+     * Moves an upload to the offset the server has it up to.
+     *
+     * @param message FETCH message of the server
+     *
+     * @return <code>true</code> if it is one of the uploads, which has chunks to send now
+     */
+    boolean onFetch(Message message) {
+        try {
+            Upload upload = uploads.get(FileTransfer.id(message));
+            if (upload == null) return false;
+            upload.seek(FileTransfer.position(message));
+            return true;
+        } catch (ProtocolException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Saves a chunk of a download. A chunk out of order is dropped, the next session fetches the rest.
+     *
+     * @param frame CHUNK frame from the start
+     */
+    void onChunk(ByteBuffer frame) {
+        Download download = downloads.get(BinaryCodec.chunkId(frame, 0));
+        if (download == null) return;
+        try {
+            if (download.write(BinaryCodec.chunkOffset(frame, 0), frame.array(), BinaryCodec.chunkData(frame, 0),
+                    frame.limit() - BinaryCodec.chunkData(frame, 0))) {
+                downloads.remove(download.id);
+                status.accept("Saved " + download.target);
+            }
+        } catch (IOException e) {
+            downloads.remove(download.id);
+            download.close();
+            status.accept("Can not save " + download.target + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return Next chunk of an upload as an encoded CHUNK frame, <code>null</code> if there is none to send
+     */
+    byte[] nextChunk() {
+        for (Upload upload : uploads.values()) {
+            try {
+                byte[] chunk = upload.nextChunk();
+                if (chunk != null) return chunk;
+            } catch (IOException e) {
+                uploads.remove(upload.id);
+                upload.close();
+                status.accept("Can not read " + upload.file + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Messages resuming the unfinished transfers in a new session: the uploads are offered again,
+     * and the server tells from where to go on, the downloads are fetched from the bytes saved.
+     *
+     * @param username Name of the user
+     *
+     * @return Offers and requests to send after the joins
+     */
+    List<Message> greeting(String username) {
+        List<Message> messages = new ArrayList<>();
+        for (Upload upload : uploads.values()) messages.add(upload.offer(username));
+        for (Download download : downloads.values()) messages.add(download.fetch());
+        return messages;
+    }
+
+    /**
+     * Stops all the transfers.
+     */
+    void clear() {
+        for (Upload upload : uploads.values()) upload.close();
+        for (Download download : downloads.values()) download.close();
+        uploads.clear();
+        downloads.clear();
+        files.clear();
+    }
+
+    /**
+     * File being sent, read in chunks from the offset the server asked for last.
+     */
+    private static final class Upload {
+
+        final long id;
+        final File file;
+        final String room;
+        final long size;
+        private RandomAccessFile in;
+        private long position = -1;
+
+        Upload(long id, File file, String room) {
+            this.id = id;
+            this.file = file;
+            this.room = room;
+            size = file.length();
+        }
+
+        /**
+         * @return FILE offer, the chunks wait for the answer
+         */
+        synchronized Message offer(String username) {
+            position = -1;
+            return FileTransfer.file(username, room, id, size, file.getName());
+        }
+
+        synchronized void seek(long offset) {
+            position = Math.min(offset, size);
+        }
+
+        synchronized byte[] nextChunk() throws IOException {
+            if (position < 0 || position == size) return null;
+            if (in == null) in = new RandomAccessFile(file, "r");
+            byte[] data = new byte[(int) Math.min(FileTransfer.CHUNK_SIZE, size - position)];
+            in.seek(position);
+            in.readFully(data);
+            byte[] chunk = BinaryCodec.encodeChunk(id, position, data, 0, data.length);
+            position += data.length;
+            return chunk;
+        }
+
+        synchronized void close() {
+            position = -1;
+            closeQuietly(in);
+            in = null;
+        }
+    }
+
+    /**
+     * File being received, written in order and fetched again from the bytes saved.
+     */
+    private static final class Download {
+
+        final long id;
+        final long size;
+        final File target;
+        private final RandomAccessFile out;
+        private long received;
+
+        Download(Message file) throws IOException {
+            id = FileTransfer.id(file);
+            size = FileTransfer.position(file);
+            File dir = new File(DOWNLOAD_DIR);
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("can not make " + dir);
+            target = new File(dir, FileTransfer.format(id) + "-" + new File(FileTransfer.fileName(file)).getName());
+            out = new RandomAccessFile(target, "rw");
+            out.setLength(0);
+        }
+
+        synchronized Message fetch() {
+            return FileTransfer.fetch(id, received);
+        }
+
+        /**
+         * @return <code>true</code> if the chunk completed the file
+         */
+        synchronized boolean write(long offset, byte[] data, int from, int length) throws IOException {
+            if (offset != received || received + length > size) return false;
+            out.seek(offset);
+            out.write(data, from, length);
+            received += length;
+            if (received < size) return false;
+            out.close();
+            return true;
+        }
+
+        synchronized void close() {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
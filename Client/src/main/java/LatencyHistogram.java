@@ -0,0 +1,90 @@
+/**
+ * Latency recorder in the manner of HdrHistogram: values are counted in log-linear buckets, every power
+ * of two is split into 128 linear sub-buckets, so any recorded value is kept with an error below 1%
+ * in a fixed array, whatever the range. Recording is a few shifts and an array increment.
+ * <p>
+ * Not thread safe, every recording thread keeps its own histogram and they are merged for the report.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see LoadGenerator
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long totalCount;
+    private long max;
+    private double sum;
+
+    /**
+     * @param value Non-negative value, nanoseconds for latencies
+     */
+    void record(long value) {
+        if (value < 0) value = 0;
+        counts[index(value)]++;
+        totalCount++;
+        sum += value;
+        if (value > max) max = value;
+    }
+
+    private static int index(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * @return Highest value counted in the bucket
+     */
+    private static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        return (((long) index - ((long) shift << SUB_BUCKET_BITS) + 1) << shift) - 1;
+    }
+
+    /**
+     * Adds the counts of another histogram to this one.
+     *
+     * @param other Histogram to add
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+        totalCount += other.totalCount;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @param percentile Percentile from 0 to 100
+     *
+     * @return Value at the percentile, rounded up to the bucket bound, at most the maximum recorded
+     */
+    long percentile(double percentile) {
+        if (totalCount == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highestValue(i), max);
+        }
+        return max;
+    }
+
+    long getTotalCount() {
+        return totalCount;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+}
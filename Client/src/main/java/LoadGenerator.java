@@ -0,0 +1,287 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator. Opens many connections to a chat server speaking the legacy text protocol
+ * of {@link ChatClient} 1.1: a <code>Connected: name</code> handshake followed by <code>name#text#date</code>
+ * messages, all framed by {@link java.io.DataOutputStream#writeUTF(String)}. Sends chat messages at
+ * a fixed total rate, spread round-robin over the connections, and measures the end-to-end broadcast
+ * latency at every connection the server delivers a message to.
+ * <p>
+ * Every message carries the time it was scheduled to be sent, and the latency is counted from that
+ * time rather than from the actual write, so a sender held up by a slow server does not hide the delay
+ * (no coordinated omission). Replies are read by a few selector threads, each with its own
+ * {@link LatencyHistogram}, merged for the report. Messages sent during the warm-up are not counted.
+ * <p>
+ * Usage: <code>java LoadGenerator [key=value ...]</code> with the keys
+ * <code>host</code> (default <code>localhost</code>), <code>port</code> (8082), <code>connections</code> (100),
+ * <code>rate</code> (messages per second in total, 1000), <code>duration</code> (seconds, 30),
+ * <code>warmup</code> (seconds, 5), <code>size</code> (message text length, 32) and
+ * <code>readers</code> (reader threads, 2), for example
+ * <code>java LoadGenerator connections=1000 rate=200 duration=60</code>.
+ * Every message is delivered to every connection, so the server sends <code>connections * rate</code>
+ * messages per second.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see LatencyHistogram
+ */
+class LoadGenerator {
+
+    private static final String NAME_PREFIX = "load-";
+    private static final long DRAIN_MILLIS = 2000;
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int rate;
+    private final int duration;
+    private final int warmup;
+    private final String padding;
+    private final Reader[] readers;
+    private final long runId = new Random().nextLong() & Long.MAX_VALUE;
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile long measureTo = Long.MAX_VALUE;
+    private long stalledWrites;
+
+    /**
+     * @param properties Load settings, defaults for the missing keys
+     */
+    LoadGenerator(Properties properties) {
+        host = properties.getProperty("host", "localhost");
+        port = Integer.parseInt(properties.getProperty("port", "8082"));
+        connections = Integer.parseInt(properties.getProperty("connections", "100"));
+        rate = Integer.parseInt(properties.getProperty("rate", "1000"));
+        duration = Integer.parseInt(properties.getProperty("duration", "30"));
+        warmup = Integer.parseInt(properties.getProperty("warmup", "5"));
+        char[] chars = new char[Integer.parseInt(properties.getProperty("size", "32"))];
+        Arrays.fill(chars, 'x');
+        padding = new String(chars);
+        readers = new Reader[Integer.parseInt(properties.getProperty("readers", "2"))];
+    }
+
+    /**
+     * Connects, runs the warm-up and the measurement and prints the report.
+     *
+     * @throws IOException Exception thrown if a connection can not be opened
+     * @throws InterruptedException Exception thrown if the run is interrupted
+     */
+    void run() throws IOException, InterruptedException {
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Reader("load-reader-" + i);
+            readers[i].start();
+        }
+        SocketChannel[] channels = new SocketChannel[connections];
+        for (int i = 0; i < connections; i++) {
+            channels[i] = SocketChannel.open(new InetSocketAddress(host, port));
+            channels[i].socket().setTcpNoDelay(true);
+            write(channels[i], "Connected: " + NAME_PREFIX + i);
+            channels[i].configureBlocking(false);
+            readers[i % readers.length].register(channels[i]);
+        }
+        System.out.println("Connected " + connections + " users to " + host + ":" + port);
+        Thread.sleep(1000);
+
+        long start = System.nanoTime();
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(duration);
+        measureFrom = warmupEnd;
+        measureTo = end;
+        long sent = send(channels, start, end, warmupEnd);
+        Thread.sleep(DRAIN_MILLIS);
+
+        LatencyHistogram latency = new LatencyHistogram();
+        long delivered = 0;
+        for (Reader reader : readers) {
+            reader.interrupt();
+            reader.join();
+            latency.add(reader.latency);
+            delivered += reader.delivered;
+        }
+        for (SocketChannel channel : channels) channel.close();
+        report(sent, delivered, latency);
+    }
+
+    /**
+     * Sends the messages at the target rate until the end time.
+     *
+     * @return Number of messages scheduled within the measurement
+     */
+    private long send(SocketChannel[] channels, long start, long end, long measureFrom) throws IOException {
+        double interval = TimeUnit.SECONDS.toNanos(1) / (double) rate;
+        long measured = 0;
+        String date = new Date().toString();
+        long dateUpdated = start;
+        for (long i = 0; ; i++) {
+            long intended = start + (long) (i * interval);
+            if (intended >= end) break;
+            long now;
+            while ((now = System.nanoTime()) < intended) LockSupport.parkNanos(intended - now);
+            if (now - dateUpdated > TimeUnit.SECONDS.toNanos(1)) {
+                date = new Date().toString();
+                dateUpdated = now;
+            }
+            int user = (int) (i % connections);
+            write(channels[user], NAME_PREFIX + user + "#" + runId + ":" + intended + ":" + padding + "#" + date);
+            if (intended >= measureFrom) measured++;
+        }
+        return measured;
+    }
+
+    /**
+     * Writes one <code>writeUTF</code> frame of an ASCII string, waiting if the socket buffer is full.
+     */
+    private void write(SocketChannel channel, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer frame = ByteBuffer.allocate(2 + bytes.length);
+        frame.putShort((short) bytes.length).put(bytes).flip();
+        while (frame.hasRemaining()) {
+            if (channel.write(frame) == 0) {
+                stalledWrites++;
+                Thread.yield();
+            }
+        }
+    }
+
+    private void report(long sent, long delivered, LatencyHistogram latency) {
+        long expected = sent * connections;
+        System.out.println("Duration " + duration + " s after " + warmup + " s warm-up, target rate " + rate + " msg/s");
+        System.out.println("Sent " + sent + " (" + sent / Math.max(1, duration) + " msg/s), delivered "
+                + delivered + " of " + expected + " (" + delivered / Math.max(1, duration) + " msg/s), lost "
+                + Math.max(0, expected - delivered) + ", stalled writes " + stalledWrites);
+        System.out.printf("Latency us: p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f, mean %.1f%n",
+                latency.percentile(50) / 1000.0, latency.percentile(99) / 1000.0,
+                latency.percentile(99.9) / 1000.0, latency.getMax() / 1000.0, latency.getMean() / 1000.0);
+    }
+
+    /**
+     * Reader thread: reads the frames of its connections with a selector and records the latency
+     * of every message of this run scheduled within the measurement.
+     */
+    private class Reader extends Thread {
+
+        private static final int BUFFER_SIZE = 8 * 1024;
+
+        private final Selector selector;
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long delivered;
+
+        Reader(String name) throws IOException {
+            super(name);
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = registrations.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(BUFFER_SIZE));
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) read(key);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Reader stopped: " + e);
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            ByteBuffer buffer = (ByteBuffer) key.attachment();
+            if (channel.read(buffer) < 0) {
+                key.cancel();
+                return;
+            }
+            long now = System.nanoTime();
+            buffer.flip();
+            int required = 0;
+            while (buffer.remaining() >= 2) {
+                int length = buffer.getShort(buffer.position()) & 0xFFFF;
+                if (buffer.remaining() < 2 + length) {
+                    required = 2 + length;
+                    break;
+                }
+                onMessage(buffer.array(), buffer.position() + 2, length, now);
+                buffer.position(buffer.position() + 2 + length);
+            }
+            buffer.compact();
+            if (required > buffer.capacity()) {
+                ByteBuffer resized = ByteBuffer.allocate(required);
+                buffer.flip();
+                resized.put(buffer);
+                key.attach(resized);
+            }
+        }
+
+        /**
+         * Parses <code>name#runId:intended:padding#date</code> in place, without making a string.
+         */
+        private void onMessage(byte[] bytes, int offset, int length, long now) {
+            int end = offset + length;
+            int position = offset;
+            while (position < end && bytes[position] != '#') position++;
+            long id = 0;
+            for (position++; position < end && bytes[position] != ':'; position++) {
+                if (bytes[position] < '0' || bytes[position] > '9') return;
+                id = id * 10 + (bytes[position] - '0');
+            }
+            if (id != runId) return;
+            long intended = 0;
+            boolean negative = position + 1 < end && bytes[position + 1] == '-';
+            if (negative) position++;
+            for (position++; position < end && bytes[position] != ':'; position++) {
+                intended = intended * 10 + (bytes[position] - '0');
+            }
+            if (negative) intended = -intended;
+            if (intended < measureFrom || intended >= measureTo) return;
+            latency.record(now - intended);
+            delivered++;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Properties properties = new Properties();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator > 0) properties.setProperty(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        new LoadGenerator(properties).run();
+    }
+}
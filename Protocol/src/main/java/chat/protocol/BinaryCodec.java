@@ -0,0 +1,325 @@
+package chat.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Codec of the binary frame format. A frame is a header followed by the body:
+ * <pre>
+ * magic (1 byte, 0xCA) | version (1 byte) | type (1 byte) | room length (1 byte) | body length (4 bytes)
+ * room (UTF-8)
+ * timestamp (8 bytes) | name length (2 bytes) | name (UTF-8) | text length (2 bytes) | text (UTF-8) | [sequence (8 bytes)]
+ * </pre>
+ * The header alone is enough to route a frame, the body is decoded only when its fields are needed.
+ * The room and the name are taken from the intern table of {@link Utf8}, as they repeat from frame to frame.
+ * The sequence is written only for a message that has one. A decoder skips the bytes of the body
+ * after the fields it knows, so the frames with a sequence are read by the older decoders too.
+ * A CHUNK frame carries a part of a file instead of the message fields:
+ * <pre>
+ * header, no room | transfer id (8 bytes) | offset in the file (8 bytes) | data
+ * </pre>
+ * Version 1 frames had a reserved zero byte in place of the room length, so they are read as
+ * version 2 frames sent to the lobby.
+ * The magic byte can not start a legacy <code>writeUTF</code> frame shorter than 51712 bytes,
+ * so a server can tell the two formats apart by the first byte of a connection.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Message
+ * @see MessageType
+ * @see Utf8
+ */
+public final class BinaryCodec {
+
+    public static final byte MAGIC = (byte) 0xCA;
+    public static final byte VERSION = 2;
+    public static final int HEADER_LENGTH = 8;
+    public static final int MAX_ROOM_LENGTH = 0xFF;
+    public static final int MAX_BODY_LENGTH = 8 + 2 + 0xFFFF + 2 + 0xFFFF + 8;
+    public static final int CHUNK_HEADER_LENGTH = HEADER_LENGTH + 8 + 8;
+
+    private static final int TYPE_OFFSET = 2;
+    private static final int ROOM_LENGTH_OFFSET = 3;
+    private static final int LENGTH_OFFSET = 4;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Encodes the message into a frame.
+     *
+     * @param message Message to encode
+     *
+     * @return Frame bytes, header included
+     *
+     * @throws IllegalArgumentException Exception thrown if the room is longer than 255 UTF-8 bytes
+     * or the name or the text is longer than 65535 UTF-8 bytes
+     */
+    public static byte[] encode(Message message) {
+        byte[] room = utf8(message.getRoom(), MAX_ROOM_LENGTH);
+        byte[] name = utf8(message.getName(), 0xFFFF);
+        byte[] text = utf8(message.getText(), 0xFFFF);
+        int bodyLength = 8 + 2 + name.length + 2 + text.length + (message.getSequence() != 0 ? 8 : 0);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + room.length + bodyLength);
+        frame.put(MAGIC).put(VERSION).put(message.getType().code()).put((byte) room.length).putInt(bodyLength);
+        frame.put(room);
+        frame.putLong(message.getTimestamp());
+        frame.putShort((short) name.length).put(name);
+        frame.putShort((short) text.length).put(text);
+        if (message.getSequence() != 0) frame.putLong(message.getSequence());
+        return frame.array();
+    }
+
+    /**
+     * Stamps a frame with a sequence number without decoding it.
+     *
+     * @param frame Frame bytes, header included, with or without a sequence
+     * @param sequence Sequence to write
+     *
+     * @return Copy of the frame with the given sequence in place of the one it had
+     *
+     * @throws IllegalArgumentException Exception thrown if the body is malformed
+     */
+    public static byte[] sequence(byte[] frame, long sequence) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        int body = HEADER_LENGTH + (frame[ROOM_LENGTH_OFFSET] & 0xFF);
+        if (body + 8 + 2 > frame.length) throw new IllegalArgumentException("malformed frame body");
+        int text = body + 8 + 2 + (buffer.getShort(body + 8) & 0xFFFF);
+        if (text + 2 > frame.length) throw new IllegalArgumentException("malformed frame body");
+        int end = text + 2 + (buffer.getShort(text) & 0xFFFF);
+        if (end > frame.length) throw new IllegalArgumentException("malformed frame body");
+        ByteBuffer stamped = ByteBuffer.wrap(Arrays.copyOf(frame, end + 8));
+        stamped.putInt(LENGTH_OFFSET, end + 8 - body).putLong(end, sequence);
+        return stamped.array();
+    }
+
+    private static byte[] utf8(String value, int maxLength) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxLength) throw new IllegalArgumentException("field too long: " + bytes.length + " bytes");
+        return bytes;
+    }
+
+    /**
+     * Decodes a whole frame.
+     *
+     * @param frame Buffer positioned at the frame header, its position is moved past the frame
+     *
+     * @return Decoded message
+     *
+     * @throws ProtocolException Exception thrown if the frame is malformed or of another version
+     */
+    public static Message decode(ByteBuffer frame) throws ProtocolException {
+        int start = frame.position();
+        MessageType type = type(frame, start);
+        if (type == MessageType.CHUNK) throw new ProtocolException("chunk frame has no message");
+        int length = frameLength(frame, start);
+        if (frame.remaining() < length) throw new ProtocolException("truncated frame");
+        String room = room(frame, start);
+        frame.position(start + HEADER_LENGTH + (frame.get(start + ROOM_LENGTH_OFFSET) & 0xFF));
+        try {
+            long timestamp = frame.getLong();
+            int nameLength = frame.getShort() & 0xFFFF;
+            checkRemaining(frame, nameLength);
+            String name = Utf8.intern(frame, frame.position(), nameLength);
+            frame.position(frame.position() + nameLength);
+            int textLength = frame.getShort() & 0xFFFF;
+            checkRemaining(frame, textLength);
+            String text = Utf8.decode(frame, frame.position(), textLength);
+            frame.position(frame.position() + textLength);
+            long sequence = start + length - frame.position() >= 8 ? frame.getLong() : 0;
+            frame.position(start + length);
+            return new Message(type, room, timestamp, name, text, sequence);
+        } catch (RuntimeException e) {
+            throw new ProtocolException("malformed " + type + " frame");
+        }
+    }
+
+    /**
+     * Checks the body of a whole frame without decoding it: the name and the text lie within the body
+     * and are followed by nothing or by the 8 bytes of the sequence, as {@link BinaryCodec#encode(Message)} writes them.
+     *
+     * @param frame Buffer holding the frame
+     * @param offset Absolute index of the header
+     *
+     * @throws ProtocolException Exception thrown if the frame is truncated or its body is malformed
+     */
+    public static void checkBody(ByteBuffer frame, int offset) throws ProtocolException {
+        int end = offset + frameLength(frame, offset);
+        if (end > frame.limit()) throw new ProtocolException("truncated frame");
+        int name = offset + HEADER_LENGTH + (frame.get(offset + ROOM_LENGTH_OFFSET) & 0xFF) + 8;
+        if (name + 2 > end) throw new ProtocolException("malformed frame body");
+        int text = name + 2 + (frame.getShort(name) & 0xFFFF);
+        if (text + 2 > end) throw new ProtocolException("malformed frame body");
+        int rest = end - (text + 2 + (frame.getShort(text) & 0xFFFF));
+        if (rest != 0 && rest != 8) throw new ProtocolException("malformed frame body");
+    }
+
+    private static void checkRemaining(ByteBuffer frame, int length) {
+        if (frame.remaining() < length) throw new IndexOutOfBoundsException("field past the frame");
+    }
+
+    /**
+     * Reads the message type from the header without touching the body.
+     *
+     * @param frame Buffer holding the header
+     * @param offset Absolute index of the header
+     *
+     * @return Message type
+     *
+     * @throws ProtocolException Exception thrown if the header is not a known frame header
+     */
+    public static MessageType type(ByteBuffer frame, int offset) throws ProtocolException {
+        if (frame.get(offset) != MAGIC) throw new ProtocolException("not a binary frame");
+        byte version = frame.get(offset + 1);
+        if (version < 1 || version > VERSION) throw new ProtocolException("unsupported version " + version);
+        MessageType type = MessageType.of(frame.get(offset + TYPE_OFFSET));
+        if (type == null) throw new ProtocolException("unknown message type " + frame.get(offset + TYPE_OFFSET));
+        return type;
+    }
+
+    /**
+     * Reads the room name from the header without touching the body.
+     *
+     * @param frame Buffer holding the header and the room name
+     * @param offset Absolute index of the header
+     *
+     * @return Room name, {@link Message#LOBBY} if the frame has no room, the interned instance
+     */
+    public static String room(ByteBuffer frame, int offset) {
+        int length = frame.get(offset + ROOM_LENGTH_OFFSET) & 0xFF;
+        if (length == 0) return Message.LOBBY;
+        return Utf8.intern(frame, offset + HEADER_LENGTH, length);
+    }
+
+    /**
+     * Reads the whole frame length from the header.
+     *
+     * @param frame Buffer holding the header
+     * @param offset Absolute index of the header
+     *
+     * @return Length of the header, the room name and the body
+     *
+     * @throws ProtocolException Exception thrown if the body length is negative or too big
+     */
+    public static int frameLength(ByteBuffer frame, int offset) throws ProtocolException {
+        int length = frame.getInt(offset + LENGTH_OFFSET);
+        if (length < 0 || length > MAX_BODY_LENGTH) throw new ProtocolException("bad body length " + length);
+        return HEADER_LENGTH + (frame.get(offset + ROOM_LENGTH_OFFSET) & 0xFF) + length;
+    }
+
+    /**
+     * Writes the header of a CHUNK frame, the data is written right after it.
+     *
+     * @param target Buffer to write to
+     * @param id Transfer id
+     * @param offset Offset of the data in the file
+     * @param length Length of the data
+     */
+    public static void chunkHeader(ByteBuffer target, long id, long offset, int length) {
+        target.put(MAGIC).put(VERSION).put(MessageType.CHUNK.code()).put((byte) 0).putInt(8 + 8 + length);
+        target.putLong(id).putLong(offset);
+    }
+
+    /**
+     * Encodes a CHUNK frame.
+     *
+     * @param id Transfer id
+     * @param offset Offset of the data in the file
+     * @param data Array holding the data
+     * @param from Index of the data in the array
+     * @param length Length of the data
+     *
+     * @return Frame bytes, header included
+     */
+    public static byte[] encodeChunk(long id, long offset, byte[] data, int from, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(CHUNK_HEADER_LENGTH + length);
+        chunkHeader(frame, id, offset, length);
+        frame.put(data, from, length);
+        return frame.array();
+    }
+
+    /**
+     * @param frame Buffer holding a CHUNK frame
+     * @param offset Absolute index of the header
+     *
+     * @return Transfer id of the chunk
+     */
+    public static long chunkId(ByteBuffer frame, int offset) {
+        return frame.getLong(offset + HEADER_LENGTH + (frame.get(offset + ROOM_LENGTH_OFFSET) & 0xFF));
+    }
+
+    /**
+     * @param frame Buffer holding a CHUNK frame
+     * @param offset Absolute index of the header
+     *
+     * @return Offset of the chunk data in the file
+     */
+    public static long chunkOffset(ByteBuffer frame, int offset) {
+        return frame.getLong(offset + HEADER_LENGTH + (frame.get(offset + ROOM_LENGTH_OFFSET) & 0xFF) + 8);
+    }
+
+    /**
+     * @param frame Buffer holding a CHUNK frame
+     * @param offset Absolute index of the header
+     *
+     * @return Absolute index of the chunk data, which lasts to the end of the frame
+     */
+    public static int chunkData(ByteBuffer frame, int offset) {
+        return offset + HEADER_LENGTH + (frame.get(offset + ROOM_LENGTH_OFFSET) & 0xFF) + 8 + 8;
+    }
+
+    /**
+     * Reads one whole frame from a blocking stream.
+     *
+     * @param in Stream positioned at a frame header
+     *
+     * @return Frame bytes, header included
+     *
+     * @throws IOException Exception thrown by the stream or if the header is malformed
+     */
+    public static byte[] read(DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        in.readFully(header);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        type(headerBuffer, 0);
+        byte[] frame = new byte[frameLength(headerBuffer, 0)];
+        System.arraycopy(header, 0, frame, 0, HEADER_LENGTH);
+        in.readFully(frame, HEADER_LENGTH, frame.length - HEADER_LENGTH);
+        return frame;
+    }
+
+    /**
+     * Reads one whole frame from a blocking stream into a buffer kept by the reader, so a reader
+     * allocates nothing per frame once its buffer has grown to the longest frame.
+     *
+     * @param in Stream positioned at a frame header
+     * @param buffer Heap buffer of the previous frame, at least {@link BinaryCodec#HEADER_LENGTH} bytes, overwritten
+     *
+     * @return The buffer, or a larger one if the frame does not fit, holding the frame from index 0
+     * to the limit. Valid until the next read into it
+     *
+     * @throws IOException Exception thrown by the stream or if the header is malformed
+     */
+    public static ByteBuffer read(DataInputStream in, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        in.readFully(buffer.array(), 0, HEADER_LENGTH);
+        type(buffer, 0);
+        int length = frameLength(buffer, 0);
+        if (length > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(length, 2 * buffer.capacity()));
+            System.arraycopy(buffer.array(), 0, larger.array(), 0, HEADER_LENGTH);
+            buffer = larger;
+        }
+        in.readFully(buffer.array(), HEADER_LENGTH, length - HEADER_LENGTH);
+        buffer.limit(length);
+        return buffer;
+    }
+}
@@ -0,0 +1,143 @@
+package chat.protocol;
+
+import java.net.ProtocolException;
+
+/**
+ * Messages of the file transfers. A file goes over the binary protocol in {@link MessageType#CHUNK} frames
+ * of {@link FileTransfer#CHUNK_SIZE} bytes at most, so a transfer broken off goes on from the last
+ * chunk received instead of from the start:
+ * <ol>
+ *     <li>the client offers the file with a FILE message of a random transfer id, the size and the name,
+ *     sent to the room the file is for;</li>
+ *     <li>the server answers with a FETCH of the offset it has the file up to, <code>0</code> for a new one,
+ *     and the client sends the chunks from there;</li>
+ *     <li>once all the bytes are in, the server sends the FILE to the room;</li>
+ *     <li>a member downloads the file with a FETCH of the offset it has it up to and gets the chunks
+ *     from there.</li>
+ * </ol>
+ * A client reconnected in the middle of a transfer offers the file, or fetches it, once again.
+ * The chunks are small, so a chunk with its header fits into a read buffer of the server, and a chat
+ * message sent over a busy connection waits for one chunk at most.
+ * The id and the numbers are the text of the message, the id in hex, so a user can type it:
+ * <pre>
+ * FILE  text: id size name
+ * FETCH text: id offset
+ * </pre>
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see MessageType
+ * @see BinaryCodec
+ */
+public final class FileTransfer {
+
+    public static final int CHUNK_SIZE = 8 * 1024;
+
+    private FileTransfer() {
+    }
+
+    /**
+     * @param name Name of the user sharing the file
+     * @param room Room the file is for
+     * @param id Transfer id
+     * @param size File size in bytes
+     * @param fileName File name without the directory
+     *
+     * @return FILE message
+     */
+    public static Message file(String name, String room, long id, long size, String fileName) {
+        return new Message(MessageType.FILE, room, System.currentTimeMillis(), name,
+                format(id) + " " + size + " " + fileName);
+    }
+
+    /**
+     * @param id Transfer id
+     * @param offset Offset to send the file from
+     *
+     * @return FETCH message
+     */
+    public static Message fetch(long id, long offset) {
+        return new Message(MessageType.FETCH, 0, "", format(id) + " " + offset);
+    }
+
+    /**
+     * @param message FILE or FETCH message
+     *
+     * @return Transfer id
+     *
+     * @throws ProtocolException Exception thrown if the text is malformed
+     */
+    public static long id(Message message) throws ProtocolException {
+        return parseId(field(message.getText(), 0));
+    }
+
+    /**
+     * @param message FILE or FETCH message
+     *
+     * @return File size of a FILE, offset of a FETCH
+     *
+     * @throws ProtocolException Exception thrown if the text is malformed
+     */
+    public static long position(Message message) throws ProtocolException {
+        try {
+            long position = Long.parseLong(field(message.getText(), 1));
+            if (position < 0) throw new ProtocolException("negative " + message.getType() + " position");
+            return position;
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("malformed " + message.getType() + " position");
+        }
+    }
+
+    /**
+     * @param message FILE message
+     *
+     * @return File name, the rest of the text after the size
+     *
+     * @throws ProtocolException Exception thrown if the text is malformed
+     */
+    public static String fileName(Message message) throws ProtocolException {
+        String text = message.getText();
+        int first = text.indexOf(' ');
+        int second = first < 0 ? -1 : text.indexOf(' ', first + 1);
+        if (second < 0) throw new ProtocolException("FILE without a name");
+        return text.substring(second + 1);
+    }
+
+    /**
+     * @param id Transfer id
+     *
+     * @return Id as it is written in the messages and typed by the users
+     */
+    public static String format(long id) {
+        return Long.toHexString(id);
+    }
+
+    /**
+     * @param id Id as written by {@link FileTransfer#format(long)}
+     *
+     * @return Transfer id
+     *
+     * @throws ProtocolException Exception thrown if the id is not a hex number
+     */
+    public static long parseId(String id) throws ProtocolException {
+        try {
+            return Long.parseUnsignedLong(id, 16);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("malformed transfer id " + id);
+        }
+    }
+
+    private static String field(String text, int index) throws ProtocolException {
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            start = text.indexOf(' ', start) + 1;
+            if (start == 0) throw new ProtocolException("missing field " + index);
+        }
+        int end = text.indexOf(' ', start);
+        return end < 0 ? text.substring(start) : text.substring(start, end);
+    }
+}
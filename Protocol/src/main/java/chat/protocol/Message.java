@@ -0,0 +1,211 @@
+package chat.protocol;
+
+/**
+ * Decoded chat message. Every message has a timestamp in epoch milliseconds, the user
+ * name and the text, unused fields are empty strings: JOIN and LEAVE have no text,
+ * SYSTEM has no name, RENAME keeps the old name as the name and the new one as the text.
+ * The room is the one the message is sent to, JOIN and LEAVE enter and leave it.
+ * The empty room name is the {@link Message#LOBBY} every user is in. DIRECT goes to one user
+ * instead of a room, its room is the recipient name, so the server routes it by the header alone.
+ * PRESENCE lists the users online in its text, a name per line. PING and PONG are heartbeats
+ * without any fields.
+ * <p>
+ * The server stamps every message it relays to a room with the sequence number of the message in that room,
+ * <code>0</code> means no sequence. RESUME carries the last sequence a client got from its room,
+ * GAP carries the last sequence of its room and a notice for the user. SEARCH carries a query
+ * of the history to the server and a message found back to the client.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see MessageType
+ * @see BinaryCodec
+ * @see TextCodec
+ */
+public final class Message {
+
+    public static final String LOBBY = "";
+
+    private final MessageType type;
+    private final String room;
+    private final long timestamp;
+    private final String name;
+    private final String text;
+    private final long sequence;
+
+    /**
+     * @param type Message type
+     * @param timestamp Time the message was written, epoch milliseconds
+     * @param name User name
+     * @param text Message text
+     */
+    public Message(MessageType type, long timestamp, String name, String text) {
+        this(type, LOBBY, timestamp, name, text);
+    }
+
+    /**
+     * @param type Message type
+     * @param room Room the message is sent to
+     * @param timestamp Time the message was written, epoch milliseconds
+     * @param name User name
+     * @param text Message text
+     */
+    public Message(MessageType type, String room, long timestamp, String name, String text) {
+        this(type, room, timestamp, name, text, 0);
+    }
+
+    /**
+     * @param type Message type
+     * @param room Room the message is sent to
+     * @param timestamp Time the message was written, epoch milliseconds
+     * @param name User name
+     * @param text Message text
+     * @param sequence Sequence number of the message in the room, <code>0</code> if it has none
+     */
+    public Message(MessageType type, String room, long timestamp, String name, String text, long sequence) {
+        this.type = type;
+        this.sequence = sequence;
+        this.room = room == null ? LOBBY : room;
+        this.timestamp = timestamp;
+        this.name = name == null ? "" : name;
+        this.text = text == null ? "" : text;
+    }
+
+    public static Message chat(String name, String text) {
+        return new Message(MessageType.CHAT, System.currentTimeMillis(), name, text);
+    }
+
+    public static Message join(String name) {
+        return new Message(MessageType.JOIN, System.currentTimeMillis(), name, "");
+    }
+
+    public static Message leave(String name) {
+        return new Message(MessageType.LEAVE, System.currentTimeMillis(), name, "");
+    }
+
+    public static Message rename(String oldName, String newName) {
+        return new Message(MessageType.RENAME, System.currentTimeMillis(), oldName, newName);
+    }
+
+    public static Message system(String text) {
+        return new Message(MessageType.SYSTEM, System.currentTimeMillis(), "", text);
+    }
+
+    /**
+     * @param name Sender name
+     * @param to Recipient name
+     * @param text Message text
+     *
+     * @return Private message to one user
+     */
+    public static Message direct(String name, String to, String text) {
+        return new Message(MessageType.DIRECT, to, System.currentTimeMillis(), name, text);
+    }
+
+    /**
+     * @param names Names of the users online
+     *
+     * @return Presence snapshot
+     */
+    public static Message presence(Iterable<String> names) {
+        return new Message(MessageType.PRESENCE, System.currentTimeMillis(), "", String.join("\n", names));
+    }
+
+    /**
+     * @return Heartbeat request that advertises no interval
+     */
+    public static Message ping() {
+        return new Message(MessageType.PING, 0, "", "");
+    }
+
+    /**
+     * @param intervalSeconds Silence of the client after which the server sends a PING
+     *
+     * @return Heartbeat request of the server, the interval is carried as the text,
+     * so the client can tell a dead link from a quiet one
+     */
+    public static Message ping(long intervalSeconds) {
+        return new Message(MessageType.PING, 0, "", String.valueOf(intervalSeconds));
+    }
+
+    /**
+     * @return Answer to a PING, sent by the client ahead of its queued messages
+     */
+    public static Message pong() {
+        return new Message(MessageType.PONG, 0, "", "");
+    }
+
+    /**
+     * @param room Room the client is about to enter again
+     * @param sequence Last sequence the client got from the room
+     *
+     * @return Request for the messages of the room missed since
+     */
+    public static Message resume(String room, long sequence) {
+        return new Message(MessageType.RESUME, room, 0, "", "", sequence);
+    }
+
+    /**
+     * @param room Room the messages were missed in
+     * @param sequence Last sequence of the room
+     *
+     * @return Marker of messages missed for good
+     */
+    public static Message gap(String room, long sequence) {
+        return new Message(MessageType.GAP, room, System.currentTimeMillis(), "", "Some messages were missed", sequence);
+    }
+
+    /**
+     * @param query Words to find, with the <code>from:</code>, <code>in:</code>, <code>after:</code>
+     *              and <code>before:</code> filters
+     *
+     * @return Search of the chat history
+     */
+    public static Message search(String query) {
+        return new Message(MessageType.SEARCH, System.currentTimeMillis(), "", query);
+    }
+
+    /**
+     * @param room Room to send the message to
+     *
+     * @return Copy of the message sent to the given room
+     */
+    public Message inRoom(String room) {
+        return new Message(type, room, timestamp, name, text, sequence);
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return Sequence number of the message in its room, <code>0</code> if it has none
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public String toString() {
+        return type + " [" + room + "] " + timestamp + " " + name + ": " + text;
+    }
+}
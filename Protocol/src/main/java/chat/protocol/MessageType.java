@@ -0,0 +1,125 @@
+package chat.protocol;
+
+/**
+ * Type of a chat message, written as the type byte of the binary frame header.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Message
+ * @see BinaryCodec
+ */
+public enum MessageType {
+
+    /**
+     * Text written by a user.
+     */
+    CHAT(1),
+
+    /**
+     * User connected to the chat.
+     */
+    JOIN(2),
+
+    /**
+     * User left the chat.
+     */
+    LEAVE(3),
+
+    /**
+     * User changed the name, the new name is the message text.
+     */
+    RENAME(4),
+
+    /**
+     * Text from the server.
+     */
+    SYSTEM(5),
+
+    /**
+     * Private text to one user, the room of the message is the name of the recipient.
+     */
+    DIRECT(6),
+
+    /**
+     * Names of the users online, one per line of the text, sent by the server to a user who has just joined.
+     */
+    PRESENCE(7),
+
+    /**
+     * Heartbeat from the server, the client answers with a PONG.
+     */
+    PING(8),
+
+    /**
+     * Answer of the client to a PING.
+     */
+    PONG(9),
+
+    /**
+     * Sent by a reconnecting client before it enters a room: the sequence of the message is the last one
+     * the client got from the room, the server sends the ones after it.
+     */
+    RESUME(10),
+
+    /**
+     * Sent by the server instead of the messages asked for by a RESUME when they are not kept any more,
+     * its sequence is the last one of the room.
+     */
+    GAP(11),
+
+    /**
+     * File offered by a client for upload, or shared to a room by the server once uploaded.
+     * The fields are read with {@link FileTransfer}.
+     */
+    FILE(12),
+
+    /**
+     * Request for the bytes of a file from an offset: a download by a client, or the server telling
+     * the client where to go on with an upload. The fields are read with {@link FileTransfer}.
+     */
+    FETCH(13),
+
+    /**
+     * Part of a file, the frame body is the raw bytes instead of the message fields,
+     * read with {@link BinaryCodec#chunkId(java.nio.ByteBuffer, int)} and the methods next to it.
+     */
+    CHUNK(14),
+
+    /**
+     * Search of the chat history: the query in the text when sent by a client, one message found,
+     * with its room, time, author and text, when sent by the server.
+     */
+    SEARCH(15);
+
+    private static final MessageType[] BY_CODE = new MessageType[16];
+
+    static {
+        for (MessageType type : values()) BY_CODE[type.code] = type;
+    }
+
+    private final byte code;
+
+    MessageType(int code) {
+        this.code = (byte) code;
+    }
+
+    /**
+     * @return Type byte of the frame header
+     */
+    public byte code() {
+        return code;
+    }
+
+    /**
+     * @param code Type byte of the frame header
+     *
+     * @return Type with the given code, or <code>null</code> if the code is unknown
+     */
+    public static MessageType of(byte code) {
+        return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
@@ -0,0 +1,154 @@
+package chat.protocol;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Codec of the legacy text messages sent with <code>writeUTF</code>: <code>name#text#date</code>
+ * for chat, <code>Connected: name</code> on join, <code>name left chat.</code> on leave and
+ * <code>old changed his name into new</code> on rename. Used only to talk to old clients,
+ * which know nothing about rooms and stay in the lobby. Private messages reach them as chat
+ * messages marked <code>(private)</code>, the presence snapshot as an <code>Online: </code> line,
+ * a shared file as a chat message marked <code>(file)</code>, as they can not download it, and a message
+ * found in the history as a chat message marked <code>(found)</code>.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Message
+ */
+public final class TextCodec {
+
+    private static final String JOIN_PREFIX = "Connected: ";
+    private static final String LEAVE_SUFFIX = " left chat.";
+    private static final String RENAME_INFIX = " changed his name into ";
+    private static final byte[] JOIN_PREFIX_BYTES = JOIN_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LEAVE_SUFFIX_BYTES = LEAVE_SUFFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RENAME_INFIX_BYTES = RENAME_INFIX.getBytes(StandardCharsets.US_ASCII);
+
+    private TextCodec() {
+    }
+
+    /**
+     * @param message Message to format
+     *
+     * @return Legacy text of the message
+     */
+    public static String format(Message message) {
+        switch (message.getType()) {
+            case CHAT:
+                return message.getName() + "#" + message.getText() + "#" + new Date(message.getTimestamp());
+            case JOIN:
+                return JOIN_PREFIX + message.getName();
+            case LEAVE:
+                return message.getName() + LEAVE_SUFFIX;
+            case RENAME:
+                return message.getName() + RENAME_INFIX + message.getText();
+            case DIRECT:
+                return message.getName() + "#(private) " + message.getText() + "#" + new Date(message.getTimestamp());
+            case PRESENCE:
+                return "Online: " + message.getText().replace('\n', ' ');
+            case FILE:
+                return message.getName() + "#(file) " + describeFile(message) + "#" + new Date(message.getTimestamp());
+            case SEARCH:
+                return message.getName() + "#(found) " + message.getText() + "#" + new Date(message.getTimestamp());
+            default:
+                return message.getText();
+        }
+    }
+
+    /**
+     * @param message FILE message
+     *
+     * @return File name and size
+     */
+    private static String describeFile(Message message) {
+        try {
+            return FileTransfer.fileName(message) + " (" + FileTransfer.position(message) + " bytes)";
+        } catch (ProtocolException e) {
+            return message.getText();
+        }
+    }
+
+    /**
+     * Finds out the type of a legacy text message without parsing it.
+     *
+     * @param line Legacy text
+     *
+     * @return Message type
+     */
+    public static MessageType type(String line) {
+        if (line.indexOf('#') >= 0) return MessageType.CHAT;
+        if (line.startsWith(JOIN_PREFIX)) return MessageType.JOIN;
+        if (line.contains(RENAME_INFIX)) return MessageType.RENAME;
+        if (line.endsWith(LEAVE_SUFFIX)) return MessageType.LEAVE;
+        return MessageType.SYSTEM;
+    }
+
+    /**
+     * Finds out the type of a legacy text message from its modified UTF-8 bytes without decoding them,
+     * the same way as {@link TextCodec#type(String)}. The marks are ASCII, and an ASCII byte never occurs
+     * in the encoding of another char.
+     *
+     * @param utf Array holding the bytes
+     * @param offset Index of the first byte, past the length prefix
+     * @param length Number of bytes
+     *
+     * @return Message type
+     */
+    public static MessageType type(byte[] utf, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (utf[i] == '#') return MessageType.CHAT;
+        }
+        if (matches(utf, offset, length, JOIN_PREFIX_BYTES, 0)) return MessageType.JOIN;
+        for (int i = 0; i + RENAME_INFIX_BYTES.length <= length; i++) {
+            if (matches(utf, offset, length, RENAME_INFIX_BYTES, i)) return MessageType.RENAME;
+        }
+        if (matches(utf, offset, length, LEAVE_SUFFIX_BYTES, length - LEAVE_SUFFIX_BYTES.length)) {
+            return MessageType.LEAVE;
+        }
+        return MessageType.SYSTEM;
+    }
+
+    private static boolean matches(byte[] utf, int offset, int length, byte[] mark, int at) {
+        if (at < 0 || at + mark.length > length) return false;
+        for (int i = 0; i < mark.length; i++) {
+            if (utf[offset + at + i] != mark[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses a legacy text message. The date of a chat message is not parsed,
+     * the time the message was received is used instead.
+     *
+     * @param line Legacy text
+     * @param receivedAt Time the text was received, epoch milliseconds
+     *
+     * @return Parsed message
+     */
+    public static Message parse(String line, long receivedAt) {
+        int first = line.indexOf('#');
+        if (first >= 0) {
+            int last = line.lastIndexOf('#');
+            String text = last > first ? line.substring(first + 1, last) : line.substring(first + 1);
+            return new Message(MessageType.CHAT, receivedAt, line.substring(0, first), text);
+        }
+        if (line.startsWith(JOIN_PREFIX)) {
+            return new Message(MessageType.JOIN, receivedAt, line.substring(JOIN_PREFIX.length()), "");
+        }
+        int rename = line.indexOf(RENAME_INFIX);
+        if (rename >= 0) {
+            return new Message(MessageType.RENAME, receivedAt, line.substring(0, rename),
+                    line.substring(rename + RENAME_INFIX.length()));
+        }
+        if (line.endsWith(LEAVE_SUFFIX)) {
+            return new Message(MessageType.LEAVE, receivedAt, line.substring(0, line.length() - LEAVE_SUFFIX.length()), "");
+        }
+        return new Message(MessageType.SYSTEM, receivedAt, "", line);
+    }
+}
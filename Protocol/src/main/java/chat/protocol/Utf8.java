@@ -0,0 +1,161 @@
+package chat.protocol;
+
+import java.io.DataOutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoding of the strings of the frames straight from the bytes they were received in.
+ * <p>
+ * The short fields that repeat from frame to frame, the rooms and the names of the senders, go through
+ * a bounded intern table: a string is looked up by a hash of its bytes, and found without decoding
+ * anything or allocating a new string when the same bytes came before. The table has a fixed number
+ * of slots, a new string takes the place of the one in its slot, so it never grows, whatever the clients
+ * send. Its slots are replaced without a lock: a thread may miss a string another one has just put,
+ * and decodes it again.
+ * <p>
+ * The legacy text frames are in the modified UTF-8 of {@link DataOutputStream#writeUTF(String)},
+ * which is checked and decoded here with no stream and no buffer besides the resulting string.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see BinaryCodec
+ * @see TextCodec
+ */
+public final class Utf8 {
+
+    public static final int MAX_INTERNED_LENGTH = 64;
+
+    private static final int SLOTS = 4096;
+
+    private static final Interned[] TABLE = new Interned[SLOTS];
+
+    private Utf8() {
+    }
+
+    /**
+     * Returns the canonical string of the UTF-8 bytes. A string longer than
+     * {@link Utf8#MAX_INTERNED_LENGTH} bytes is decoded without the table.
+     *
+     * @param buffer Buffer holding the bytes
+     * @param offset Absolute index of the first byte
+     * @param length Number of bytes
+     *
+     * @return Decoded string, the same instance for the same bytes while it stays in the table
+     */
+    public static String intern(ByteBuffer buffer, int offset, int length) {
+        if (length > MAX_INTERNED_LENGTH) return decode(buffer, offset, length);
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) hash = 31 * hash + buffer.get(i);
+        int slot = (hash ^ hash >>> 16) & (SLOTS - 1);
+        Interned interned = TABLE[slot];
+        if (interned != null && interned.matches(buffer, offset, length)) return interned.value;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = buffer.get(offset + i);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        TABLE[slot] = new Interned(bytes, value);
+        return value;
+    }
+
+    /**
+     * @param buffer Buffer holding the bytes
+     * @param offset Absolute index of the first byte
+     * @param length Number of bytes
+     *
+     * @return String of the UTF-8 bytes, malformed bytes replaced
+     */
+    public static String decode(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = buffer.get(offset + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks modified UTF-8 bytes without decoding them.
+     *
+     * @param bytes Array holding the bytes
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     *
+     * @return Number of the chars the bytes decode to
+     *
+     * @throws UTFDataFormatException Exception thrown if the bytes are not valid modified UTF-8,
+     * as {@link java.io.DataInputStream#readUTF()} would
+     */
+    public static int checkModified(byte[] bytes, int offset, int length) throws UTFDataFormatException {
+        int chars = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; chars++) {
+            int c = bytes[i] & 0xFF;
+            int size = c < 0x80 ? 1 : (c >> 5) == 0x06 ? 2 : (c >> 4) == 0x0E ? 3 : 0;
+            if (size == 0 || i + size > end) throw new UTFDataFormatException("malformed input around byte " + i);
+            for (int j = 1; j < size; j++) {
+                if ((bytes[i + j] & 0xC0) != 0x80) throw new UTFDataFormatException("malformed input around byte " + (i + j));
+            }
+            i += size;
+        }
+        return chars;
+    }
+
+    /**
+     * Decodes modified UTF-8 bytes, the format of {@link DataOutputStream#writeUTF(String)} without
+     * the length prefix.
+     *
+     * @param bytes Array holding the bytes
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     *
+     * @return Decoded string
+     *
+     * @throws UTFDataFormatException Exception thrown if the bytes are not valid modified UTF-8
+     */
+    public static String decodeModified(byte[] bytes, int offset, int length) throws UTFDataFormatException {
+        char[] chars = new char[checkModified(bytes, offset, length)];
+        int end = offset + length;
+        int count = 0;
+        for (int i = offset; i < end; ) {
+            int c = bytes[i] & 0xFF;
+            if (c < 0x80) {
+                chars[count++] = (char) c;
+                i++;
+            } else if ((c >> 5) == 0x06) {
+                chars[count++] = (char) ((c & 0x1F) << 6 | bytes[i + 1] & 0x3F);
+                i += 2;
+            } else {
+                chars[count++] = (char) ((c & 0x0F) << 12 | (bytes[i + 1] & 0x3F) << 6 | bytes[i + 2] & 0x3F);
+                i += 3;
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Bytes of an interned string and the string itself, never changed once put into the table.
+     */
+    private static final class Interned {
+
+        final byte[] bytes;
+        final String value;
+
+        Interned(byte[] bytes, String value) {
+            this.bytes = bytes;
+            this.value = value;
+        }
+
+        boolean matches(ByteBuffer buffer, int offset, int length) {
+            if (bytes.length != length) return false;
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != buffer.get(offset + i)) return false;
+            }
+            return true;
+        }
+    }
+}
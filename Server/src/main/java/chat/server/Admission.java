@@ -0,0 +1,200 @@
+package chat.server;
+
+import java.net.InetAddress;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control of a server engine: caps on the concurrent connections and on the accept rate,
+ * and token bucket limits of the messages and bytes every connection and every client address may send.
+ * An engine asks for a {@link Ticket} for every accepted socket and closes the socket at once without one.
+ * A connection asks its ticket about every frame it reads, before the frame is decoded or routed,
+ * and drops the frames over the limits, so a flooding client costs a read and a few arithmetic
+ * operations per frame and never reaches the broadcast. File chunks are charged to the byte limits too,
+ * before they reach the {@link Spool}, but never dropped: the connection stops reading until the tokens
+ * of another chunk are back, so an upload goes at the byte rate of its connection and a message sent
+ * between two chunks still fits into the limits.
+ * <p>
+ * Configured by the keys of the server config, a zero turns the limit off:
+ * <pre>
+ * limit.connections          = concurrent connections, 10000 by default
+ * limit.accept.rate          = connections accepted per second, 500 by default
+ * limit.connection.messages  = messages per second of a connection, 50 by default
+ * limit.connection.bytes     = bytes per second of a connection, 262144 by default
+ * limit.ip.messages          = messages per second of all the connections of an address, off by default
+ * limit.ip.bytes             = bytes per second of all the connections of an address, off by default
+ * limit.burst.seconds        = seconds of the rates a client may send at once, 2 by default
+ * </pre>
+ * Refused connections and dropped frames are counted by {@link ServerMetrics}.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see TokenBucket
+ * @see ServerMetrics
+ */
+class Admission {
+
+    static final int DEFAULT_CONNECTIONS = 10_000;
+    static final int DEFAULT_ACCEPT_RATE = 500;
+    static final int DEFAULT_CONNECTION_MESSAGES = 50;
+    static final int DEFAULT_CONNECTION_BYTES = 256 * 1024;
+    static final double DEFAULT_BURST_SECONDS = 2;
+
+    final int maxConnections;
+    final double acceptRate;
+    final double connectionMessages;
+    final double connectionBytes;
+    final double ipMessages;
+    final double ipBytes;
+    final double burstSeconds;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final TokenBucket accepts;
+    private final ConcurrentHashMap<InetAddress, Address> addresses = new ConcurrentHashMap<>();
+
+    Admission(int maxConnections, double acceptRate, double connectionMessages, double connectionBytes,
+              double ipMessages, double ipBytes, double burstSeconds) {
+        this.maxConnections = maxConnections;
+        this.acceptRate = acceptRate;
+        this.connectionMessages = connectionMessages;
+        this.connectionBytes = connectionBytes;
+        this.ipMessages = ipMessages;
+        this.ipBytes = ipBytes;
+        this.burstSeconds = burstSeconds;
+        accepts = new TokenBucket(acceptRate, 0, burstSeconds);
+    }
+
+    /**
+     * @param properties Server config
+     *
+     * @return Limits read from the config, defaults for the missing keys
+     */
+    static Admission from(Properties properties) {
+        return new Admission(
+                Integer.parseInt(properties.getProperty("limit.connections", String.valueOf(DEFAULT_CONNECTIONS))),
+                Double.parseDouble(properties.getProperty("limit.accept.rate", String.valueOf(DEFAULT_ACCEPT_RATE))),
+                Double.parseDouble(properties.getProperty("limit.connection.messages",
+                        String.valueOf(DEFAULT_CONNECTION_MESSAGES))),
+                Double.parseDouble(properties.getProperty("limit.connection.bytes",
+                        String.valueOf(DEFAULT_CONNECTION_BYTES))),
+                Double.parseDouble(properties.getProperty("limit.ip.messages", "0")),
+                Double.parseDouble(properties.getProperty("limit.ip.bytes", "0")),
+                Double.parseDouble(properties.getProperty("limit.burst.seconds", String.valueOf(DEFAULT_BURST_SECONDS))));
+    }
+
+    /**
+     * Admits an accepted connection if the connection cap and the accept rate allow.
+     *
+     * @param address Address of the client
+     *
+     * @return Ticket of the connection, <code>null</code> if the connection must be closed
+     */
+    Ticket admit(InetAddress address) {
+        if (!accepts.tryTake(0, System.nanoTime())) return null;
+        if (connections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            connections.decrementAndGet();
+            return null;
+        }
+        Address shared = addresses.compute(address, (key, value) -> {
+            if (value == null) {
+                value = new Address(ipMessages > 0 || ipBytes > 0
+                        ? new TokenBucket(ipMessages, ipBytes, burstSeconds) : null);
+            }
+            value.connections++;
+            return value;
+        });
+        return new Ticket(address, shared);
+    }
+
+    /**
+     * @return Number of admitted connections not released yet
+     */
+    int connections() {
+        return connections.get();
+    }
+
+    @Override
+    public String toString() {
+        return "connections " + maxConnections + ", accepts " + acceptRate + "/s, per connection "
+                + connectionMessages + " msg/s " + connectionBytes + " B/s, per address "
+                + ipMessages + " msg/s " + ipBytes + " B/s, burst " + burstSeconds + " s";
+    }
+
+    /**
+     * Limits of one admitted connection. Asked by the reading thread of the connection only,
+     * the bucket of the address is shared by all its connections.
+     */
+    final class Ticket {
+
+        private final InetAddress address;
+        private final Address shared;
+        private final TokenBucket own = connectionMessages > 0 || connectionBytes > 0
+                ? new TokenBucket(connectionMessages, connectionBytes, burstSeconds) : null;
+        private boolean released;
+
+        private Ticket(InetAddress address, Address shared) {
+            this.address = address;
+            this.shared = shared;
+        }
+
+        /**
+         * Takes the tokens of a frame from the bucket of the connection and from the bucket of its address,
+         * or from neither: a frame refused by the address does not use up the limits of the connection.
+         *
+         * @param bytes Length of the frame read
+         *
+         * @return <code>true</code> if the frame is within the limits of the connection and its address
+         */
+        boolean allow(int bytes) {
+            if (own == null && shared.bucket == null) return true;
+            long now = System.nanoTime();
+            if (own != null && !own.tryTake(bytes, now)) return false;
+            if (shared.bucket == null || shared.bucket.tryTake(bytes, now)) return true;
+            if (own != null) own.putBack(bytes);
+            return false;
+        }
+
+        /**
+         * Charges a file chunk to the byte limits of the connection and its address.
+         *
+         * @param bytes Length of the chunk read
+         *
+         * @return Nanoseconds the connection has to stop reading for, <code>0</code> if it is within the limits
+         */
+        long charge(int bytes) {
+            if (own == null && shared.bucket == null) return 0;
+            long now = System.nanoTime();
+            return Math.max(own == null ? 0 : own.charge(bytes, now),
+                    shared.bucket == null ? 0 : shared.bucket.charge(bytes, now));
+        }
+
+        /**
+         * Gives the place of a closed connection back. Safe to call more than once.
+         */
+        synchronized void release() {
+            if (released) return;
+            released = true;
+            connections.decrementAndGet();
+            addresses.computeIfPresent(address, (key, value) -> --value.connections == 0 ? null : value);
+        }
+    }
+
+    /**
+     * Connections of one client address and their shared bucket, <code>null</code> if the addresses
+     * are not limited. The count is guarded by the map bin of the address.
+     */
+    private static final class Address {
+
+        final TokenBucket bucket;
+        int connections;
+
+        Address(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package chat.server;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outbound queue limits of a server engine and counters of what happened to the frames sent.
+ * Configured by <code>outbound.capacity</code> and <code>outbound.policy</code>
+ * (<code>drop_oldest</code>, <code>drop_newest</code> or <code>disconnect</code>) keys of the server config.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see OutboundQueue
+ * @see SlowConsumerPolicy
+ */
+class Backpressure {
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    final int capacity;
+    final SlowConsumerPolicy policy;
+
+    final LongAdder enqueued = new LongAdder();
+    final LongAdder droppedOldest = new LongAdder();
+    final LongAdder droppedNewest = new LongAdder();
+    final LongAdder disconnected = new LongAdder();
+
+    /**
+     * @param capacity Maximum number of frames queued for one connection
+     * @param policy What to do when the queue is full
+     */
+    Backpressure(int capacity, SlowConsumerPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * @param properties Server config
+     *
+     * @return Limits read from the config, defaults for the missing keys
+     */
+    static Backpressure from(Properties properties) {
+        return new Backpressure(
+                Integer.parseInt(properties.getProperty("outbound.capacity", String.valueOf(DEFAULT_CAPACITY))),
+                SlowConsumerPolicy.parse(properties.getProperty("outbound.policy", "drop_oldest")));
+    }
+
+    @Override
+    public String toString() {
+        return "enqueued " + enqueued.sum()
+                + ", dropped oldest " + droppedOldest.sum()
+                + ", dropped newest " + droppedNewest.sum()
+                + ", disconnected " + disconnected.sum();
+    }
+}
@@ -0,0 +1,220 @@
+package chat.server;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct buffers the connections read and write their sockets through. A direct buffer goes to
+ * the socket as it is, while a heap one is copied by the JDK into a temporary direct buffer on every call,
+ * and the buffers are taken for a read or a write and given back right after it, so an idle connection
+ * holds none and a busy one allocates nothing per message.
+ * <p>
+ * A buffer is owned by the {@link Lease} it was acquired with until {@link Lease#release()}, which must be
+ * called exactly once, a second release throws. Buffers of the chunk size are pooled together with their
+ * leases on a stack, up to the retained count, so acquiring and releasing allocates nothing. A larger buffer
+ * is allocated for a frame that does not fit into a chunk and dropped on release.
+ * <p>
+ * With leak detection, which is on when assertions are enabled, as in the test builds, or with
+ * <code>buffers.leaks=true</code>, every acquire gets a new lease that remembers where it was acquired,
+ * so a lease used after its release throws even if its buffer is taken again. A lease collected by
+ * the GC without being released is reported with that stack trace and counted, and its buffer goes back
+ * to the pool. Detection costs a stack trace per acquire, so it is off in production by default.
+ * Config keys:
+ * <pre>
+ * buffers.chunk    = size of a pooled buffer in bytes, 16384 by default
+ * buffers.retained = buffers kept in the pool, 4096 by default
+ * buffers.leaks    = leak detection, off by default unless assertions are enabled
+ * </pre>
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see FrameReader
+ * @see FrameWriter
+ */
+class BufferPool {
+
+    static final int DEFAULT_CHUNK = 16 * 1024;
+    static final int DEFAULT_RETAINED = 4096;
+
+    final int chunk;
+    final int retained;
+    final boolean leakDetection;
+
+    private final Lease[] free;
+    private int freeCount;
+    private int inUse;
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder leaked = new LongAdder();
+    private final ReferenceQueue<Lease> collected = new ReferenceQueue<>();
+    private final Set<Tracker> tracked = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param chunk Size of a pooled buffer
+     * @param retained Buffers kept in the pool
+     * @param leakDetection Whether leases collected without release are reported
+     */
+    BufferPool(int chunk, int retained, boolean leakDetection) {
+        this.chunk = chunk;
+        this.retained = retained;
+        this.leakDetection = leakDetection;
+        free = new Lease[retained];
+    }
+
+    /**
+     * @param properties Server config
+     *
+     * @return Pool configured by the config, defaults for the missing keys
+     */
+    static BufferPool from(Properties properties) {
+        boolean assertions = false;
+        assert assertions = true;
+        return new BufferPool(
+                Integer.parseInt(properties.getProperty("buffers.chunk", String.valueOf(DEFAULT_CHUNK))),
+                Integer.parseInt(properties.getProperty("buffers.retained", String.valueOf(DEFAULT_RETAINED))),
+                Boolean.parseBoolean(properties.getProperty("buffers.leaks", String.valueOf(assertions))));
+    }
+
+    /**
+     * @param capacity Bytes the buffer must hold at least
+     *
+     * @return Lease of a cleared buffer, a pooled one if the capacity fits into a chunk
+     */
+    Lease acquire(int capacity) {
+        if (leakDetection) reportLeaks();
+        Lease lease = pop(capacity <= chunk);
+        if (lease == null) {
+            lease = new Lease(ByteBuffer.allocateDirect(Math.max(capacity, chunk)));
+            allocated.increment();
+        } else if (leakDetection) {
+            lease = new Lease(lease.buffer);
+        }
+        lease.owned = true;
+        if (leakDetection) lease.tracker = new Tracker(lease, collected, tracked);
+        return lease;
+    }
+
+    /**
+     * Counts the acquire and takes a pooled lease if there is one, under one lock.
+     */
+    private synchronized Lease pop(boolean pooled) {
+        inUse++;
+        if (!pooled || freeCount == 0) return null;
+        Lease lease = free[--freeCount];
+        free[freeCount] = null;
+        return lease;
+    }
+
+    private void recycle(Lease lease) {
+        boolean pooled = lease.buffer.capacity() == chunk;
+        if (pooled) lease.buffer.clear();
+        synchronized (this) {
+            inUse--;
+            if (pooled && freeCount < free.length) free[freeCount++] = lease;
+        }
+    }
+
+    /**
+     * Reports the leases collected without release and takes their buffers back.
+     */
+    void reportLeaks() {
+        Tracker tracker;
+        while ((tracker = (Tracker) collected.poll()) != null) {
+            if (!tracked.remove(tracker)) continue;
+            leaked.increment();
+            System.err.println("Buffer of " + tracker.buffer.capacity() + " bytes was not released");
+            tracker.acquired.printStackTrace();
+            recycle(new Lease(tracker.buffer));
+        }
+    }
+
+    /**
+     * @return Buffers acquired and not released yet
+     */
+    synchronized int inUse() {
+        return inUse;
+    }
+
+    /**
+     * @return Direct buffers allocated since the start, the pooled ones are counted once
+     */
+    long allocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * @return Leases found collected without release
+     */
+    long leaked() {
+        return leaked.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "chunk " + chunk + " bytes, retained " + retained + ", leak detection " + (leakDetection ? "on" : "off");
+    }
+
+    /**
+     * Ownership of one buffer, from {@link BufferPool#acquire(int)} until {@link Lease#release()}.
+     */
+    final class Lease {
+
+        private final ByteBuffer buffer;
+        private boolean owned;
+        private Tracker tracker;
+
+        private Lease(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return The buffer, valid until the lease is released
+         *
+         * @throws IllegalStateException Exception thrown if the lease was already released
+         */
+        ByteBuffer buffer() {
+            if (!owned) throw new IllegalStateException("Buffer already released");
+            return buffer;
+        }
+
+        /**
+         * Gives the buffer back to the pool. Neither the lease nor the buffer may be used after this.
+         *
+         * @throws IllegalStateException Exception thrown if the lease was already released
+         */
+        void release() {
+            if (!owned) throw new IllegalStateException("Buffer already released");
+            owned = false;
+            Tracker t = tracker;
+            if (t != null) {
+                tracker = null;
+                tracked.remove(t);
+                t.clear();
+            }
+            recycle(this);
+        }
+    }
+
+    /**
+     * Weak reference to a lease under leak detection, keeps the buffer and the place it was acquired.
+     */
+    private static final class Tracker extends WeakReference<Lease> {
+
+        final ByteBuffer buffer;
+        final Throwable acquired = new Throwable("Acquired here");
+
+        Tracker(Lease lease, ReferenceQueue<Lease> queue, Set<Tracker> tracked) {
+            super(lease, queue);
+            this.buffer = lease.buffer;
+            tracked.add(this);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package chat.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+
+/**
+ * Common contract of the server engines. An engine accepts connections on a port
+ * and relays every message to all connected users. {@link ChatEngine#builder()} starts one from code,
+ * over TCP or in-process.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ChatServer
+ * @see NioChatServer
+ * @see Transport
+ */
+interface ChatEngine {
+
+    /**
+     * @return Address the engine is bound to
+     */
+    String getAddress();
+
+    /**
+     * Stops accepting new connections and releases the engine resources.
+     */
+    void stopServer();
+
+    /**
+     * @return Live metrics of the engine
+     */
+    ServerMetrics getMetrics();
+
+    /**
+     * Starts the engine selected by the <code>engine</code> key of the server config.
+     * <code>thread</code> (default) starts {@link ChatServer} with a thread per connection,
+     * <code>virtual</code> starts {@link ChatServer} with a virtual thread per connection,
+     * <code>nio</code> starts {@link NioChatServer} with <code>nio.threads</code> event loops.
+     * Both get the outbound queue limits described in {@link Backpressure}, the write coalescing
+     * described in {@link WriteBatching}, the message history described in {@link History},
+     * the federation with other nodes described in {@link Federation}, the connection caps and
+     * rate limits described in {@link Admission}, the heartbeats described in {@link Heartbeats},
+     * the socket buffers described in {@link BufferPool}, the session resume described in {@link Resume},
+     * the file transfers described in {@link Spool} and the parallel broadcasts described in {@link FanOut}.
+     * Same as {@link Builder#start()} with the config and no other setting.
+     *
+     * @param properties Server config, must contain <code>port</code>
+     *
+     * @return Started engine
+     *
+     * @since Version 1.2
+     */
+    static ChatEngine start(Properties properties) {
+        return builder().configure(properties).start();
+    }
+
+    /**
+     * @return Builder of an engine, for starting a server with explicit settings from code
+     *
+     * @since Version 1.2
+     */
+    static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Settings of an engine to start. Every setting not given explicitly is read from the server config
+     * the way {@link ChatEngine#start(Properties)} reads it. Without a config the engine keeps nothing on disk:
+     * no history and no file transfers. Connections come over TCP unless a {@link Transport} is given,
+     * a {@link MemoryTransport} lets tests and benchmarks start as many servers in one JVM as they need.
+     * <p>
+     * Usage: <code>ChatEngine.builder().transport(transport).set("fanout.threads", "4").start()</code>.
+     *
+     * @since Version 1.2
+     *
+     * @see Transport
+     */
+    final class Builder {
+
+        private final Map<Class<?>, Object> components = new HashMap<>();
+        private Properties properties = new Properties();
+        private Transport transport;
+
+        private Builder() {
+            properties.setProperty("history.dir", "");
+            properties.setProperty("files.dir", "");
+        }
+
+        /**
+         * @param config Server config, replaces the one set before
+         *
+         * @return This builder
+         */
+        Builder configure(Properties config) {
+            properties = new Properties();
+            for (String key : config.stringPropertyNames()) properties.setProperty(key, config.getProperty(key));
+            return this;
+        }
+
+        /**
+         * @param key Key of the server config
+         * @param value Value of the key
+         *
+         * @return This builder
+         */
+        Builder set(String key, String value) {
+            properties.setProperty(key, value);
+            return this;
+        }
+
+        /**
+         * @param port Port to listen on, <code>0</code> takes a free one
+         *
+         * @return This builder
+         */
+        Builder port(int port) {
+            return set("port", String.valueOf(port));
+        }
+
+        /**
+         * @param engine <code>thread</code>, <code>virtual</code> or <code>nio</code>
+         *
+         * @return This builder
+         */
+        Builder engine(String engine) {
+            return set("engine", engine);
+        }
+
+        /**
+         * @param transport Transport of the connections, the <code>nio</code> engine takes TCP only
+         *
+         * @return This builder
+         */
+        Builder transport(Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * @param backpressure Outbound queue limits of the connections
+         *
+         * @return This builder
+         */
+        Builder backpressure(Backpressure backpressure) {
+            return component(Backpressure.class, backpressure);
+        }
+
+        /**
+         * @param batching Write coalescing limits of the connections
+         *
+         * @return This builder
+         */
+        Builder batching(WriteBatching batching) {
+            return component(WriteBatching.class, batching);
+        }
+
+        /**
+         * @param history History of the server, <code>null</code> keeps none
+         *
+         * @return This builder
+         */
+        Builder history(History history) {
+            return component(History.class, history);
+        }
+
+        /**
+         * @param federation Federation with other nodes, <code>null</code> runs the server alone
+         *
+         * @return This builder
+         */
+        Builder federation(Federation federation) {
+            return component(Federation.class, federation);
+        }
+
+        /**
+         * @param admission Connection caps and rate limits of the clients
+         *
+         * @return This builder
+         */
+        Builder admission(Admission admission) {
+            return component(Admission.class, admission);
+        }
+
+        /**
+         * @param heartbeats Liveness checks of the connections
+         *
+         * @return This builder
+         */
+        Builder heartbeats(Heartbeats heartbeats) {
+            return component(Heartbeats.class, heartbeats);
+        }
+
+        /**
+         * @param buffers Pool of the buffers the connections read and write through
+         *
+         * @return This builder
+         */
+        Builder buffers(BufferPool buffers) {
+            return component(BufferPool.class, buffers);
+        }
+
+        /**
+         * @param resume Replay rings of the rooms for the reconnecting clients
+         *
+         * @return This builder
+         */
+        Builder resume(Resume resume) {
+            return component(Resume.class, resume);
+        }
+
+        /**
+         * @param spool File store, <code>null</code> turns the file transfers off
+         *
+         * @return This builder
+         */
+        Builder spool(Spool spool) {
+            return component(Spool.class, spool);
+        }
+
+        /**
+         * @param fanOut Fan-out workers, <code>null</code> broadcasts from the sending thread
+         *
+         * @return This builder
+         */
+        Builder fanOut(FanOut fanOut) {
+            return component(FanOut.class, fanOut);
+        }
+
+        /**
+         * Starts the engine. The components not given are made from the config only now,
+         * so a builder left unstarted holds no threads and no files.
+         *
+         * @return Started engine
+         *
+         * @throws IllegalStateException If the <code>nio</code> engine is given a transport other than TCP
+         */
+        ChatEngine start() {
+            int port = Integer.parseInt(properties.getProperty("port", "0"));
+            String engine = properties.getProperty("engine", "thread");
+            if ("nio".equals(engine) && transport != null && !(transport instanceof TcpTransport)) {
+                throw new IllegalStateException("The nio engine listens on TCP only, not on " + transport);
+            }
+            Backpressure backpressure = component(Backpressure.class, Backpressure::from);
+            WriteBatching batching = component(WriteBatching.class, WriteBatching::from);
+            History history = component(History.class, History::from);
+            Federation federation = component(Federation.class, Federation::from);
+            Admission admission = component(Admission.class, Admission::from);
+            Heartbeats heartbeats = component(Heartbeats.class, Heartbeats::from);
+            BufferPool buffers = component(BufferPool.class, BufferPool::from);
+            Resume resume = component(Resume.class, Resume::from);
+            Spool spool = component(Spool.class, Spool::from);
+            FanOut fanOut = component(FanOut.class, FanOut::from);
+            if ("nio".equals(engine)) {
+                int threads = Integer.parseInt(properties.getProperty("nio.threads",
+                        String.valueOf(Runtime.getRuntime().availableProcessors())));
+                return new NioChatServer(port, threads, backpressure, batching, history, federation, admission,
+                        heartbeats, buffers, resume, spool, fanOut);
+            }
+            return new ChatServer(port, transport != null ? transport : new TcpTransport(), "virtual".equals(engine),
+                    backpressure, batching, history, federation, admission, heartbeats, buffers, resume, spool, fanOut);
+        }
+
+        private Builder component(Class<?> type, Object component) {
+            components.put(type, component);
+            return this;
+        }
+
+        private <T> T component(Class<T> type, Function<Properties, T> from) {
+            return components.containsKey(type) ? type.cast(components.get(type)) : from.apply(properties);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package chat.server;
+
+import chat.protocol.Message;
+import chat.protocol.MessageType;
+
+import java.io.*;
+import java.nio.channels.ByteChannel;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incoming connection handler. Implements {@link Runnable}, so it can run on its own
+ * platform thread or on a virtual thread. Reads messages on the handler thread and writes them
+ * on a separate writer task, which drains the handler {@link OutboundQueue}. A broadcast to a room
+ * only puts the message into the queues of its members, so a client with a full TCP window delays
+ * nobody but itself.
+ * The message is encoded at most once per wire format. Both the reading thread and the writer go to
+ * the channel of the connection through direct buffers of the {@link BufferPool}, the writer copies the shared
+ * {@link Frame} bytes into its {@link FrameWriter}. The wire format is detected by the first byte
+ * the client sends, binary and legacy text clients talk in the same chat. The connection comes from
+ * the {@link Transport} of the server, a TCP socket or an in-process pair of buffers. Frames over the rate limits
+ * of the {@link Admission} ticket are dropped right after reading. A peer gone without closing the
+ * connection, or one that never sends a whole frame, is found by the {@link Heartbeats}, which watch
+ * the connection from its start. File chunks go from the read buffer to the {@link Spool}
+ * without a copy, charged to the byte limits of the ticket: over them the handler stops reading
+ * until the tokens of another chunk are back. The writer sends the chunks of a {@link Download} while no frame is queued.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.0
+ *
+ * @version 1.2
+ *
+ * @see java.lang.Runnable
+ * @see ChatServer
+ * @see OutboundQueue
+ * @see Frame
+ * @see Rooms
+ */
+class ChatHandler implements Runnable, Session {
+
+    private static final Frame WAKE = Frame.of(Message.ping());
+
+    private final Transport.Connection connection;
+    private final ByteChannel channel;
+    private final Executor executor;
+    private final OutboundQueue<Frame> outbound;
+    private final WriteBatching batching;
+    private volatile Thread writer;
+    private volatile boolean isOn;
+    private volatile String username;
+    private WireFormat format;
+    private final Set<String> joined = ConcurrentHashMap.newKeySet();
+    private final Rooms rooms;
+    private final ServerMetrics metrics;
+    private final Admission.Ticket ticket;
+    private final Heartbeats heartbeats;
+    private Heartbeats.Liveness liveness;
+    private final BufferPool pool;
+    private final FrameReader reader;
+    private final FrameWriter batch;
+    private final long opened = System.nanoTime();
+    private long messages;
+    private long received;
+    private final Queue<Download> downloads = new ConcurrentLinkedQueue<>();
+
+    /**
+     * ChatHandler constructor. Gets connection, accepted in {@link ChatServer}.
+     * Input and output go straight to the channel of the connection {@link ChatHandler#channel}.
+     *
+     * @param connection Connection accepted by the {@link Transport} of the server
+     * @param executor Executor the writer task is started with
+     * @param backpressure Outbound queue limits of the server
+     * @param batching Write coalescing limits of the server
+     * @param rooms Rooms of the server
+     * @param metrics Metrics of the server
+     * @param ticket Limits of the connection given by {@link Admission}
+     * @param heartbeats Liveness checks of the server
+     * @param pool Buffers of the server
+     *
+     * @since Version 1.0
+     *
+     * @see ChatServer
+     * @see Transport
+     * @see OutboundQueue
+     * @see Admission
+     * @see Heartbeats
+     * @see BufferPool
+     */
+    ChatHandler(Transport.Connection connection, Executor executor, Backpressure backpressure, WriteBatching batching, Rooms rooms,
+                ServerMetrics metrics, Admission.Ticket ticket, Heartbeats heartbeats, BufferPool pool) {
+        this.connection = connection;
+        this.batching = batching;
+        this.rooms = rooms;
+        this.metrics = metrics;
+        this.ticket = ticket;
+        this.heartbeats = heartbeats;
+        this.pool = pool;
+        this.executor = executor;
+        outbound = new OutboundQueue<>(backpressure, this);
+        reader = new FrameReader(pool);
+        batch = new FrameWriter(pool, metrics);
+        channel = connection.channel();
+    }
+
+    /**
+     * Starts the connection handling process.
+     *
+     * @since Version 1.0
+     *
+     * @see Runnable#run()
+     * @see Runnable
+     */
+    @Override
+    public void run() {
+        isOn = true;
+        metrics.opened(this);
+        liveness = heartbeats.watch(this, () -> {
+            metrics.evicted();
+            close();
+        });
+        try {
+            if (reader.read(channel) < 0) throw new EOFException();
+            format = WireFormat.detect(reader.first());
+            if (format == WireFormat.TEXT) connection.keepAlive();
+            liveness.detected(format);
+            executor.execute(this::write);
+            rooms.open(this);
+            while (isOn) {
+                int length;
+                while (isOn && (length = reader.next(format)) > 0) {
+                    metrics.received(length);
+                    messages++;
+                    received += length;
+                    if (format == WireFormat.BINARY && reader.type() == MessageType.CHUNK) {
+                        liveness.read(MessageType.CHUNK);
+                        long pause = ticket.charge(length);
+                        rooms.upload(this, reader.slice(length));
+                        if (pause > 0) pause(pause);
+                        continue;
+                    }
+                    if (!ticket.allow(length)) {
+                        liveness.read(null);
+                        reader.skip(length);
+                        metrics.shed(length);
+                        continue;
+                    }
+                    Frame frame = reader.frame(format, length);
+                    liveness.read(frame.type());
+                    FlightEvents.received(this, frame, length);
+                    rooms.route(this, frame);
+                }
+                reader.compact();
+                if (isOn && reader.read(channel) < 0) throw new EOFException();
+            }
+        } catch (IOException e) {
+            System.out.println(username + " " + connection.remoteAddress() + " disconnected");
+        } finally {
+            rooms.close(this);
+            close();
+            liveness.cancel();
+            reader.release();
+            ticket.release();
+            metrics.closed(this);
+            FlightEvents.closed(this, connection.remoteAddress(), opened, messages, received, batch.written());
+        }
+    }
+
+    private static void pause(long nanos) throws InterruptedIOException {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("upload paused");
+        }
+    }
+
+    /**
+     * Writes queued frames to the connection until the handler is closed. Frames queued meanwhile
+     * are copied into one batch and written at once, a busy connection waits for more frames
+     * as long as {@link WriteBatching} allows. The chunks of the downloads are written one at a time
+     * while the queue is empty. A download failing in the middle of a chunk closes the connection.
+     *
+     * @since Version 1.2
+     */
+    private void write() {
+        writer = Thread.currentThread();
+        boolean busy = false;
+        try {
+            while (isOn) {
+                Download download = downloads.peek();
+                if (download != null && (download.inChunk() || outbound.isEmpty())) {
+                    if (download.write(channel) && download.isDone()) downloads.poll();
+                    continue;
+                }
+                Frame frame = outbound.take();
+                long deadline = 0;
+                while (frame != null) {
+                    if (frame != WAKE) batch.add(frame, format);
+                    if (batch.isFull()) break;
+                    frame = outbound.poll();
+                    if (frame == null && batching.linger(busy, batch.frames(), batch.bytes())) {
+                        if (deadline == 0) deadline = System.nanoTime() + batching.nanos;
+                        long timeout = deadline - System.nanoTime();
+                        if (timeout > 0) frame = outbound.poll(timeout);
+                    }
+                }
+                busy = batch.frames() > 1;
+                batch.write(channel);
+            }
+        } catch (InterruptedException e) {
+            // handler closed
+        } catch (IOException e) {
+            metrics.writeError();
+            close();
+        } finally {
+            batch.release();
+        }
+    }
+
+    /**
+     * Stops the writer and closes the connection, which also ends the blocked read.
+     *
+     * @since Version 1.2
+     */
+    private void close() {
+        isOn = false;
+        outbound.clear();
+        downloads.clear();
+        Thread thread = writer;
+        if (thread != null) thread.interrupt();
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Puts the frame into the outbound queue, the writer delivers it.
+     * Closes the handler if the slow consumer policy says so.
+     *
+     * @param frame Frame to deliver
+     *
+     * @return <code>false</code> if the handler is closed by the slow consumer policy
+     *
+     * @since Version 1.2
+     *
+     * @see OutboundQueue
+     */
+    @Override
+    public boolean send(Frame frame) {
+        if (outbound.offer(frame)) return true;
+        close();
+        return false;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    @Override
+    public Set<String> getRooms() {
+        return joined;
+    }
+
+    @Override
+    public int backlog() {
+        return outbound.size();
+    }
+
+    /**
+     * Queues the download and wakes the writer.
+     *
+     * @param file Uploaded file
+     * @param offset Offset the client has the file up to
+     *
+     * @return <code>false</code> if the handler is closed or has {@link Download#MAX_QUEUED} downloads queued
+     */
+    @Override
+    public boolean download(Spool.Entry file, long offset) {
+        if (!isOn || downloads.size() >= Download.MAX_QUEUED) return false;
+        downloads.add(new Download(file, offset, metrics));
+        outbound.wake(WAKE);
+        return true;
+    }
+}
@@ -0,0 +1,263 @@
+package chat.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Класс серверной программы
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.0
+ *
+ * @version 1.2
+ *
+ * @see ChatHandler
+ * @see ChatEngine
+ */
+class ChatServer extends Thread implements ChatEngine {
+
+    private static final Executor PLATFORM_THREADS = task -> new Thread(task).start();
+
+    private volatile Transport.Listener listener;
+    private volatile boolean isOn = true;
+    private final Executor executor;
+    private final Backpressure backpressure;
+    private final WriteBatching batching;
+    private final History history;
+    private final Federation federation;
+    private final Admission admission;
+    private final Heartbeats heartbeats;
+    private final BufferPool buffers;
+    private final Spool spool;
+    private final FanOut fanOut;
+    private final Rooms rooms;
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    /**
+     * Конструктор сервера. Получает порт, создаёт сокет на заданном порту, слушает запросы и создаёт обработчика
+     * запросов {@link ChatHandler} на каждое соединение. Соединения принимает {@link TcpTransport},
+     * обработчики пишут прямо в канал соединения.
+     *
+     * @param port Порт, который слушает сервер.
+     *
+     * @since Version 0.1
+     *
+     * @see TcpTransport
+     * @see ChatHandler
+     */
+    ChatServer(int port) {
+        this(port, new TcpTransport(), false, new Backpressure(Backpressure.DEFAULT_CAPACITY, SlowConsumerPolicy.DROP_OLDEST),
+                new WriteBatching(WriteBatching.DEFAULT_BYTES, WriteBatching.DEFAULT_MICROS), null, null,
+                Admission.from(new Properties()), Heartbeats.from(new Properties()),
+                BufferPool.from(new Properties()), Resume.from(new Properties()), null, null);
+    }
+
+    /**
+     * Конструктор сервера с выбором режима выполнения обработчиков. В режиме виртуальных потоков
+     * каждый {@link ChatHandler} выполняется в своём виртуальном потоке, что позволяет держать десятки
+     * тысяч простаивающих соединений. Если JVM не поддерживает виртуальные потоки (до JDK 21),
+     * используются потоки платформы. Соединения приходят через транспорт: по TCP или,
+     * для тестов и бенчмарков, через буферы в памяти процесса.
+     *
+     * @param port Порт, который слушает сервер.
+     * @param transport Транспорт, принимающий соединения
+     * @param virtualThreads Флаг режима виртуальных потоков
+     * @param backpressure Ограничения исходящих очередей соединений
+     * @param batching Ограничения объединения записей в сокет
+     * @param history История сообщений, <code>null</code>, если сервер её не хранит
+     * @param federation Федерация узлов, <code>null</code>, если сервер работает один
+     * @param admission Ограничения числа соединений и частоты сообщений клиентов
+     * @param heartbeats Проверка живости соединений
+     * @param buffers Пул буферов для чтения и записи сокетов
+     * @param resume Кольца последних сообщений комнат для возобновления сеансов
+     * @param spool Хранилище файлов, <code>null</code>, если передача файлов выключена
+     * @param fanOut Потоки рассылки в большие комнаты, <code>null</code>, если рассылка идёт из потока отправителя
+     *
+     * @since Version 1.2
+     *
+     * @see ChatHandler
+     * @see Transport
+     * @see Executors
+     * @see Backpressure
+     * @see WriteBatching
+     * @see History
+     * @see Federation
+     * @see Admission
+     * @see Heartbeats
+     * @see BufferPool
+     * @see Resume
+     * @see Spool
+     * @see FanOut
+     */
+    ChatServer(int port, Transport transport, boolean virtualThreads, Backpressure backpressure, WriteBatching batching, History history,
+               Federation federation, Admission admission, Heartbeats heartbeats, BufferPool buffers,
+               Resume resume, Spool spool, FanOut fanOut) {
+        executor = virtualThreads ? virtualThreadExecutor() : PLATFORM_THREADS;
+        this.backpressure = backpressure;
+        this.batching = batching;
+        this.history = history;
+        this.federation = federation;
+        this.admission = admission;
+        this.heartbeats = heartbeats;
+        this.buffers = buffers;
+        this.spool = spool;
+        this.fanOut = fanOut;
+        metrics.buffers(buffers);
+        rooms = new Rooms(history, metrics, federation, resume, spool, fanOut);
+        try {
+            listener = transport.listen(port);
+            metrics.register(listener.name());
+            if (federation != null) federation.start(rooms);
+            start();
+        } catch (IOException e) {
+            System.err.println("Error starting server");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Запуск потока обработки входных сигналов сокета
+     *
+     * If this thread was constructed using a separate
+     * <code>Runnable</code> run object, then that
+     * <code>Runnable</code> object's <code>run</code> method is called;
+     * otherwise, this method does nothing and returns.
+     * <p>
+     * Subclasses of <code>Thread</code> should override this method.
+     *
+     * @see #start()
+     * @see #stop()
+     */
+    @Override
+    public void run() {
+        while (isOn) {
+            try {
+                Transport.Connection connection = listener.accept();
+                metrics.accepted();
+                Admission.Ticket ticket = admission.admit(connection.remoteAddress());
+                FlightEvents.accepted(listener.name(), connection.remoteAddress(), ticket != null);
+                if (ticket == null) {
+                    metrics.rejected();
+                    connection.close();
+                    continue;
+                }
+                System.out.println("Accepted from " + connection.remoteAddress());
+                executor.execute(new ChatHandler(connection, executor, backpressure, batching, rooms, metrics, ticket,
+                        heartbeats, buffers));
+            } catch (IOException e) {
+                if (!isOn) break;
+                System.err.println("Error while accepting socket");
+                e.printStackTrace();
+            }
+
+        }
+    }
+
+    /**
+     * @return Исполнитель, создающий виртуальный поток на каждую задачу, либо потоки платформы,
+     * если JVM не поддерживает виртуальные потоки
+     */
+    private static Executor virtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not supported, using platform threads");
+            return PLATFORM_THREADS;
+        }
+    }
+
+    /**
+     * @return Возвращает значение IP сервера
+     */
+    @Override
+    public String getAddress() {
+        return listener.address();
+    }
+
+    /**
+     * @return Метрики сервера
+     */
+    @Override
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Метод остановки сервера. Приводит к образованию исключения в главном
+     * потоке выполнения жизненного цикла сервера, приводя его к остановке.
+     */
+    @Override
+    public synchronized void stopServer() {
+        isOn = false;
+        if (executor instanceof ExecutorService) ((ExecutorService) executor).shutdown();
+        try {
+            listener.close();
+            interrupt();
+            listener = null;
+        } catch (IOException e) {
+            System.err.println("Error closing server socket");
+            e.printStackTrace();
+        }
+        heartbeats.shutdown();
+        metrics.unregister();
+        System.out.println("Outbound queues: " + backpressure);
+        System.out.println("Admission: " + admission + ", " + metrics.getRejectedConnections() + " rejected, "
+                + metrics.getShedMessages() + " shed");
+        buffers.reportLeaks();
+        System.out.println("Buffers: " + buffers + ", " + buffers.allocated() + " allocated, " + buffers.inUse()
+                + " in use, " + buffers.leaked() + " leaked");
+        if (history != null) {
+            history.close();
+            System.out.println("History: " + history);
+        }
+        if (federation != null) {
+            federation.close();
+            System.out.println("Federation: " + federation);
+        }
+        if (spool != null) {
+            spool.close();
+            System.out.println("Files: " + spool);
+        }
+        if (fanOut != null) {
+            fanOut.close();
+            System.out.println("Fan-out: " + fanOut);
+        }
+    }
+
+    /**
+     * Консольная версия серверной программы
+     * @param args аргументы командной строки, не используется
+     */
+    public static void main(String[] args) {
+        Properties properties = new Properties();
+        File propFile = new File("config.properties");
+        if (!propFile.exists()) {
+            properties.setProperty("port", "8082");
+            properties.setProperty("engine", "thread");
+            properties.setProperty("history.dir", "history");
+            try {
+                if (!propFile.createNewFile())
+                    System.err.println("Error making config file");
+                properties.store(new FileOutputStream(propFile), "Server config");
+            } catch (IOException e) {
+                System.err.println("Error loading config");
+                e.printStackTrace();
+            }
+        }
+        else try {
+            properties.load(new FileInputStream(propFile));
+        } catch (IOException e) {
+            System.err.println("Error loading config file");
+            e.printStackTrace();
+        }
+        System.out.println("Server started");
+        ChatEngine.start(properties);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,117 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.FileTransfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * File sent to one connection in CHUNK frames, from the offset the client asked for. The header of a chunk
+ * is written from a small heap buffer and the data goes from the {@link Spool} file to the socket with
+ * <code>transferTo</code>, which is <code>sendfile</code> on Linux. A file found shorter than its size
+ * fails the write, the chunk frame is cut then and the connection has to be closed.
+ * <p>
+ * A connection writes a chunk only when no chat frame waits in its outbound queue, and a chunk is never
+ * cut by a chat frame, so a chat frame waits for one chunk of {@link FileTransfer#CHUNK_SIZE} bytes
+ * at most, whatever the size of the file. Used by one thread at a time: the writer task of
+ * a {@link ChatHandler} or the loop of a {@link NioConnection}.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Spool
+ * @see FileTransfer
+ */
+final class Download {
+
+    static final int MAX_QUEUED = 4;
+
+    private final Spool.Entry file;
+    private final ServerMetrics metrics;
+    private final ByteBuffer header = ByteBuffer.allocate(BinaryCodec.CHUNK_HEADER_LENGTH);
+    private long position;
+    private long chunkEnd;
+    private int chunkLength;
+
+    /**
+     * @param file Uploaded file
+     * @param offset Offset the client has the file up to
+     * @param metrics Metrics the chunks are counted in
+     */
+    Download(Spool.Entry file, long offset, ServerMetrics metrics) {
+        this.file = file;
+        this.metrics = metrics;
+        position = Math.min(offset, file.size);
+        chunkEnd = position;
+        header.limit(0);
+    }
+
+    /**
+     * @return <code>true</code> if a chunk is written in part and must be finished before anything else
+     */
+    boolean inChunk() {
+        return header.hasRemaining() || position < chunkEnd;
+    }
+
+    /**
+     * @return <code>true</code> if all the chunks are written
+     */
+    boolean isDone() {
+        return position == file.size && !inChunk();
+    }
+
+    /**
+     * Writes the current chunk, or starts the next one, as far as the channel takes.
+     * A blocking channel takes the whole chunk.
+     *
+     * @param channel Channel of the connection
+     *
+     * @return <code>true</code> if the chunk is written completely
+     *
+     * @throws IOException Exception thrown by the file or the channel, or if the file is shorter than its size
+     */
+    boolean write(WritableByteChannel channel) throws IOException {
+        if (!inChunk()) {
+            if (position == file.size) return true;
+            chunkLength = (int) Math.min(FileTransfer.CHUNK_SIZE, file.size - position);
+            header.clear();
+            BinaryCodec.chunkHeader(header, file.id, position, chunkLength);
+            header.flip();
+            chunkEnd = position + chunkLength;
+        }
+        if (header.hasRemaining()) {
+            channel.write(header);
+            if (header.hasRemaining()) return false;
+        }
+        while (position < chunkEnd) {
+            long count = file.transferTo(position, chunkEnd - position, channel);
+            if (count == 0) {
+                if (isBlocking(channel) || file.length() < chunkEnd) {
+                    throw new EOFException(file.fileName + " is shorter than " + file.size + " bytes");
+                }
+                return false;
+            }
+            position += count;
+        }
+        metrics.sent(1, BinaryCodec.CHUNK_HEADER_LENGTH + chunkLength);
+        return true;
+    }
+
+    private static boolean isBlocking(WritableByteChannel channel) {
+        return !(channel instanceof SelectableChannel) || ((SelectableChannel) channel).isBlocking();
+    }
+
+    /**
+     * @return Transfer id of the file
+     */
+    long id() {
+        return file.id;
+    }
+}
@@ -0,0 +1,79 @@
+package chat.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations recorded concurrently by many threads. Durations are counted in log-linear
+ * buckets, every power of two is split into 4 sub-buckets, so a percentile is reported within 25%
+ * of its value. Every bucket is a {@link LongAdder}, threads recording at once touch different cells
+ * instead of fighting over one counter, so the histogram can stay on in production.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ServerMetrics
+ */
+class DurationHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final LongAdder[] counts = new LongAdder[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    DurationHistogram() {
+        for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+    }
+
+    /**
+     * @param nanos Duration in nanoseconds
+     */
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS);
+        counts[(shift << SUB_BUCKET_BITS) + (int) (nanos >>> shift)].increment();
+        total.increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * @param percentile Percentile from 0 to 100
+     *
+     * @return Upper bound of the bucket holding the percentile in nanoseconds, <code>0</code> if nothing is recorded
+     */
+    long percentile(double percentile) {
+        long[] snapshot = new long[counts.length];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) count += snapshot[i] = counts[i].sum();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return highestValue(i);
+        }
+        return highestValue(snapshot.length - 1);
+    }
+
+    private static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        return (((long) index - ((long) shift << SUB_BUCKET_BITS) + 1) << shift) - 1;
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    /**
+     * @return Mean duration in nanoseconds
+     */
+    double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+}
@@ -0,0 +1,294 @@
+package chat.server;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parallel fan-out of the broadcasts to big rooms. A fixed pool of workers splits the sessions between them:
+ * a session always belongs to the same worker, chosen by its identity hash, and the members of a room are
+ * kept in {@link Members}, one set per worker. A broadcast to a room of at least <code>fanout.threshold</code>
+ * members queues the frame to every worker and returns, each worker sends it to its own members later.
+ * So the sessions of a worker are only ever touched by its thread and stay in its cache, and an event loop
+ * or a virtual thread broadcasting to a big room is not held up by the sends. The frames are queued
+ * under the ring lock of their room, and the queue of a worker is sent in order: every member gets
+ * the frames in the same order as from a single loop over the room. A member entering the room is skipped
+ * by the broadcasts queued before, it gets those from the ring, and a room with broadcasts still queued
+ * is sent to by the workers whatever its size. A smaller room is otherwise sent to by the broadcasting
+ * thread, where handing it over would cost more than the sends. The recorded event of a broadcast
+ * is committed by the worker done last.
+ * Config keys:
+ * <pre>
+ * fanout.threads = number of workers, 0 by default, which sends every broadcast from its thread
+ * fanout.threshold = members of a room it is broadcast to in parallel from, 1024 by default
+ * </pre>
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Rooms
+ */
+class FanOut {
+
+    static final int DEFAULT_THRESHOLD = 1024;
+
+    private final Worker[] workers;
+    final int threshold;
+
+    final LongAdder parallel = new LongAdder();
+
+    /**
+     * Starts the workers.
+     *
+     * @param threads Number of workers, at least one
+     * @param threshold Members of a room it is broadcast to in parallel from
+     */
+    FanOut(int threads, int threshold) {
+        this.threshold = threshold;
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * @param properties Server config
+     *
+     * @return Fan-out configured by the config, <code>null</code> if <code>fanout.threads</code> is <code>0</code>
+     * or not set
+     */
+    static FanOut from(Properties properties) {
+        int threads = Integer.parseInt(properties.getProperty("fanout.threads", "0"));
+        if (threads <= 0) return null;
+        return new FanOut(threads,
+                Integer.parseInt(properties.getProperty("fanout.threshold", String.valueOf(DEFAULT_THRESHOLD))));
+    }
+
+    /**
+     * @return New empty member set of a room, split between the workers
+     */
+    Members newMembers() {
+        return new Members(workers.length);
+    }
+
+    /**
+     * Sends the frame to every member of a room from the calling thread, or queues it to the workers.
+     * The caller holds the ring lock of the room, if it has one.
+     *
+     * @param members Members of the room, made by {@link FanOut#newMembers()}
+     * @param frame Frame to send
+     * @param event Recorded event of the broadcast, <code>null</code> if the sends are not timed
+     *
+     * @return <code>true</code> if the frame is queued to the workers, they commit the event then
+     */
+    boolean send(Members members, Frame frame, FlightEvents.Broadcast event) {
+        if (members.size() < threshold && members.pending.get() == 0) {
+            if (event == null) {
+                for (Session member : members) member.send(frame);
+                return false;
+            }
+            FlightEvents.Sends sends = new FlightEvents.Sends();
+            for (Session member : members) sends.send(member, frame);
+            event.add(sends);
+            return false;
+        }
+        members.pending.incrementAndGet();
+        Task task = new Task(members, frame, members.queued.incrementAndGet(), workers.length, event);
+        for (Worker worker : workers) {
+            worker.tasks.add(task);
+            if (worker.isStopped) worker.drain();
+        }
+        parallel.increment();
+        return true;
+    }
+
+    /**
+     * Stops the workers once they have sent the broadcasts queued. The broadcasts handed over meanwhile
+     * are sent by the broadcasting threads.
+     */
+    void close() {
+        for (Worker worker : workers) worker.interrupt();
+        boolean isInterrupted = false;
+        for (Worker worker : workers) {
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+        }
+        if (isInterrupted) Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return workers.length + " workers from " + threshold + " members, " + parallel.sum() + " parallel broadcasts";
+    }
+
+    private int partition(Session session) {
+        return (System.identityHashCode(session) & Integer.MAX_VALUE) % workers.length;
+    }
+
+    /**
+     * Members of a room, one concurrent map per worker from a member to the number of broadcasts
+     * queued to the room before it entered. Read and changed as one set by {@link Rooms}.
+     */
+    final class Members extends AbstractSet<Session> {
+
+        private final Set<Session> all = ConcurrentHashMap.newKeySet();
+        private final Map<Session, Long>[] partitions;
+        private final AtomicLong queued = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Members(int count) {
+            partitions = new Map[count];
+            for (int i = 0; i < count; i++) partitions[i] = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * @return Number of broadcasts to the room queued and not sent by every worker yet
+         */
+        int pending() {
+            return pending.get();
+        }
+
+        @Override
+        public boolean add(Session session) {
+            if (!all.add(session)) return false;
+            partitions[partition(session)].put(session, queued.get());
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object session) {
+            if (!all.remove(session)) return false;
+            partitions[partition((Session) session)].remove(session);
+            return true;
+        }
+
+        @Override
+        public boolean contains(Object session) {
+            return all.contains(session);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return all.isEmpty();
+        }
+
+        @Override
+        public int size() {
+            return all.size();
+        }
+
+        @Override
+        public Iterator<Session> iterator() {
+            return all.iterator();
+        }
+    }
+
+    /**
+     * Broadcast of one frame, done once every worker has sent it to its members. A timed broadcast
+     * keeps the sends of every worker apart, the worker done last adds them to the event and commits it.
+     */
+    private static final class Task {
+
+        final Members members;
+        final Frame frame;
+        private final long number;
+        private final FlightEvents.Broadcast event;
+        private final FlightEvents.Sends[] sends;
+        private final AtomicInteger running;
+
+        /**
+         * @param number Number of the broadcast in its room, the members that entered after it was queued
+         *               are skipped
+         */
+        Task(Members members, Frame frame, long number, int workers, FlightEvents.Broadcast event) {
+            this.members = members;
+            this.frame = frame;
+            this.number = number;
+            this.event = event;
+            sends = event != null ? new FlightEvents.Sends[workers] : null;
+            running = new AtomicInteger(workers);
+        }
+
+        void run(int partition) {
+            try {
+                FlightEvents.Sends timed = sends != null ? new FlightEvents.Sends() : null;
+                for (Map.Entry<Session, Long> member : members.partitions[partition].entrySet()) {
+                    if (member.getValue() >= number) continue;
+                    if (timed == null) member.getKey().send(frame);
+                    else timed.send(member.getKey(), frame);
+                }
+                if (timed != null) sends[partition] = timed;
+            } finally {
+                if (running.decrementAndGet() == 0) done();
+            }
+        }
+
+        private void done() {
+            members.pending.decrementAndGet();
+            if (event == null) return;
+            event.parallel = true;
+            for (FlightEvents.Sends timed : sends) {
+                if (timed != null) event.add(timed);
+            }
+            event.commit();
+        }
+    }
+
+    /**
+     * Thread sending the broadcasts to the members of its partition, in the order they were handed over.
+     */
+    private static final class Worker extends Thread {
+
+        final BlockingQueue<Task> tasks = new LinkedBlockingQueue<>();
+        volatile boolean isStopped;
+        private final int partition;
+
+        Worker(int partition) {
+            super("fanout-" + partition);
+            this.partition = partition;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    tasks.take().run(partition);
+                } catch (InterruptedException e) {
+                    isStopped = true;
+                    drain();
+                    return;
+                } catch (RuntimeException e) {
+                    System.err.println("Error broadcasting");
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Sends the queued broadcasts of the partition from the calling thread, once the worker has stopped.
+         */
+        void drain() {
+            for (Task task = tasks.poll(); task != null; task = tasks.poll()) task.run(partition);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Federation of server nodes sharing one chat. Every frame a local user sends to a room is relayed
+ * to the local members by {@link Rooms} and to every peer node by its {@link PeerLink}, every frame
+ * got from a peer is delivered to the local members only. The users of the chat may so be spread over
+ * several processes and machines.
+ * <p>
+ * A node relays only the frames of its own users, not the ones got from peers, so the nodes must form
+ * a full mesh: every node lists all the others in <code>federation.peers</code>. A relayed frame is
+ * identified by its origin, the node name and the start time of the node process, and by its sequence
+ * number at the origin. A frame one link delivers in the order of the origin, and a frame sent again
+ * after a reconnect or a frame whose number is not above the last one delivered from its origin is
+ * dropped as a duplicate, so every node sees the frames of every origin in order and at most once.
+ * <p>
+ * A link between two nodes carries one direction: the connecting node writes the federation hello,
+ * its origin, then the sequence number and the binary frame for every relayed frame.
+ * Config keys, federation is off without <code>federation.port</code>:
+ * <pre>
+ * federation.port  = port this node accepts the links of its peers on
+ * federation.peers = comma separated host:port federation addresses of the other nodes
+ * federation.node  = node name, node-&lt;federation.port&gt; by default
+ * federation.queue = frames queued per peer while it is unreachable, 10000 by default
+ * </pre>
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see PeerLink
+ * @see Rooms
+ */
+class Federation extends Thread {
+
+    static final String HELLO = "chat-federation/1";
+    static final int DEFAULT_QUEUE = 10_000;
+
+    private final String origin;
+    private final ServerSocket serverSocket;
+    private final List<PeerLink> peers = new ArrayList<>();
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, AtomicLong> delivered = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder relayed = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private volatile Rooms rooms;
+    private volatile boolean isOn = true;
+
+    /**
+     * Binds the federation port. The node starts accepting and linking with {@link Federation#start(Rooms)}.
+     *
+     * @param node Node name
+     * @param port Port the peers link to
+     * @param peers Federation addresses of the other nodes
+     * @param capacity Number of frames queued per peer while it is unreachable
+     *
+     * @throws IOException Exception thrown while binding the port
+     */
+    Federation(String node, int port, List<InetSocketAddress> peers, int capacity) throws IOException {
+        super("federation-" + node);
+        setDaemon(true);
+        origin = node + "@" + System.currentTimeMillis();
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(port));
+        for (InetSocketAddress peer : peers) this.peers.add(new PeerLink(this, peer, capacity));
+    }
+
+    /**
+     * Reads the federation keys of the server config.
+     *
+     * @param properties Server config
+     *
+     * @return Federation of the node, <code>null</code> if it is off or the port can not be bound
+     *
+     * @throws IllegalArgumentException Exception thrown if a peer is not written as <code>host:port</code>
+     */
+    static Federation from(Properties properties) {
+        String port = properties.getProperty("federation.port", "");
+        if (port.isEmpty()) return null;
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : properties.getProperty("federation.peers", "").split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) continue;
+            peers.add(peer(peer));
+        }
+        try {
+            return new Federation(properties.getProperty("federation.node", "node-" + port),
+                    Integer.parseInt(port), peers,
+                    Integer.parseInt(properties.getProperty("federation.queue", String.valueOf(DEFAULT_QUEUE))));
+        } catch (IOException e) {
+            System.err.println("Error binding federation port, running without federation");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static InetSocketAddress peer(String peer) {
+        int colon = peer.lastIndexOf(':');
+        try {
+            if (colon > 0) {
+                return InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                        Integer.parseInt(peer.substring(colon + 1)));
+            }
+        } catch (IllegalArgumentException e) {
+            // reported below with the peer
+        }
+        throw new IllegalArgumentException("bad federation peer '" + peer + "', expected host:port");
+    }
+
+    /**
+     * Starts accepting the links of the peers and linking to them.
+     *
+     * @param rooms Rooms the frames of the peers are delivered to
+     */
+    void start(Rooms rooms) {
+        this.rooms = rooms;
+        start();
+        for (PeerLink peer : peers) peer.start();
+    }
+
+    /**
+     * @return Name and start time of this node, told to the peers in the hello
+     */
+    String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Queues the frame of a local user for every peer, never blocks. Numbering and queueing are done
+     * under the lock of the node, so every link gets the frames in the order of their numbers.
+     *
+     * @param frame Frame relayed to a room
+     */
+    synchronized void publish(Frame frame) {
+        if (peers.isEmpty()) return;
+        long number = sequence.incrementAndGet();
+        ByteBuffer bytes = frame.view(WireFormat.BINARY);
+        for (PeerLink peer : peers) peer.offer(number, bytes);
+        relayed.increment();
+    }
+
+    /**
+     * Accepts the links of the peers, a thread each.
+     */
+    @Override
+    public void run() {
+        while (isOn) {
+            try {
+                Socket s = serverSocket.accept();
+                Thread reader = new Thread(() -> receive(s), "federation-in-" + s.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (isOn) {
+                    System.err.println("Error while accepting federation link");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the frames of a peer and delivers the new ones to the local members of their rooms.
+     *
+     * @param s Socket of the link
+     */
+    private void receive(Socket s) {
+        String from = null;
+        inbound.add(s);
+        try (Socket socket = s) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (!HELLO.equals(in.readUTF())) throw new ProtocolException("not a federation link");
+            from = in.readUTF();
+            AtomicLong last = delivered.computeIfAbsent(from, key -> new AtomicLong());
+            System.out.println("Federation link from " + from + " is up");
+            while (isOn) {
+                long number = in.readLong();
+                byte[] frame = BinaryCodec.read(in);
+                received.increment();
+                if (advance(last, number)) {
+                    rooms.deliver(Frame.binary(frame));
+                } else {
+                    duplicates.increment();
+                }
+            }
+        } catch (IOException e) {
+            if (isOn) System.err.println("Federation link from " + (from != null ? from : s.getRemoteSocketAddress())
+                    + " is down: " + e);
+        } finally {
+            inbound.remove(s);
+        }
+    }
+
+    /**
+     * Moves the last number delivered from an origin to the given one if it is greater.
+     *
+     * @return <code>true</code> if the frame is new
+     */
+    private static boolean advance(AtomicLong last, long number) {
+        while (true) {
+            long current = last.get();
+            if (number <= current) return false;
+            if (last.compareAndSet(current, number)) return true;
+        }
+    }
+
+    /**
+     * Closes the federation port and all the links.
+     */
+    void close() {
+        isOn = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (PeerLink peer : peers) peer.close();
+        for (Socket s : inbound) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "node " + origin + ", relayed " + relayed.sum() + ", received " + received.sum()
+                + ", duplicates " + duplicates.sum() + ", peers " + peers;
+    }
+}
@@ -0,0 +1,325 @@
+package chat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * Custom JDK Flight Recorder events of the server: connections accepted and closed, messages received,
+ * broadcasts and slow consumer actions, so latency spikes can be matched against what the server was doing.
+ * The events are always compiled in. While no recording takes them, {@link Event#isEnabled()} is false and
+ * a call site costs one check, the event objects are never used and the JIT drops them. The per-recipient
+ * timings of a broadcast are only taken while its event is recorded. The events have no stack traces.
+ * <p>
+ * <code>chat.jfc</code>, bundled with the server classes, records them with the JDK events worth
+ * comparing them to. Copy it out of the jar or take it from the resources, for example:
+ * <pre>
+ * java -XX:StartFlightRecording:settings=chat.jfc,filename=chat.jfr ...
+ * jcmd &lt;pid&gt; JFR.start settings=chat.jfc duration=5m filename=incident.jfr
+ * </pre>
+ * A recording started from code, by a test or a benchmark, takes it from {@link FlightEvents#configuration()}.
+ * On a JVM without the <code>jdk.jfr</code> module the events are skipped.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Rooms
+ * @see OutboundQueue
+ */
+final class FlightEvents {
+
+    private static final boolean AVAILABLE = available();
+
+    private FlightEvents() {
+    }
+
+    /**
+     * Records an accepted connection.
+     *
+     * @param server Port or in-process listener of the server
+     * @param address Address of the peer
+     * @param admitted <code>false</code> if {@link Admission} closed the connection at once
+     */
+    static void accepted(String server, InetAddress address, boolean admitted) {
+        if (!AVAILABLE) return;
+        ConnectionAccepted event = new ConnectionAccepted();
+        if (!event.isEnabled()) return;
+        event.server = server;
+        event.address = String.valueOf(address);
+        event.admitted = admitted;
+        event.commit();
+    }
+
+    /**
+     * Records a closed connection.
+     *
+     * @param session Session of the connection
+     * @param address Address of the peer
+     * @param opened {@link System#nanoTime()} the connection was accepted at
+     * @param messages Messages read from the connection
+     * @param bytesIn Bytes of the messages read
+     * @param bytesOut Bytes of the frames written
+     */
+    static void closed(Session session, InetAddress address, long opened, long messages, long bytesIn,
+                       long bytesOut) {
+        if (!AVAILABLE) return;
+        ConnectionClosed event = new ConnectionClosed();
+        if (!event.isEnabled()) return;
+        event.username = session.getUsername();
+        event.address = String.valueOf(address);
+        event.lifetime = System.nanoTime() - opened;
+        event.messages = messages;
+        event.bytesIn = bytesIn;
+        event.bytesOut = bytesOut;
+        event.commit();
+    }
+
+    /**
+     * Records a message read from a connection and let through the rate limits.
+     *
+     * @param session Sender
+     * @param frame Message
+     * @param length Bytes of the message on the wire
+     */
+    static void received(Session session, Frame frame, int length) {
+        if (!AVAILABLE) return;
+        MessageReceived event = new MessageReceived();
+        if (!event.isEnabled()) return;
+        event.username = session.getUsername();
+        event.type = frame.type().name();
+        event.room = frame.room();
+        event.length = length;
+        event.commit();
+    }
+
+    /**
+     * Starts timing a broadcast.
+     *
+     * @param room Room of the broadcast
+     * @param recipients Members of the room
+     *
+     * @return Started event, <code>null</code> if no recording takes it
+     */
+    static Broadcast broadcast(String room, int recipients) {
+        if (!AVAILABLE) return null;
+        Broadcast event = new Broadcast();
+        if (!event.isEnabled()) return null;
+        event.begin();
+        event.room = room;
+        event.recipients = recipients;
+        return event;
+    }
+
+    /**
+     * Records an action of the slow consumer policy.
+     *
+     * @param session Slow recipient, <code>null</code> if unknown
+     * @param action Policy applied
+     * @param backlog Frames queued to the recipient
+     */
+    static void slowConsumer(Session session, SlowConsumerPolicy action, int backlog) {
+        if (!AVAILABLE) return;
+        SlowConsumer event = new SlowConsumer();
+        if (!event.isEnabled()) return;
+        event.username = session != null ? session.getUsername() : null;
+        event.action = action.name();
+        event.backlog = backlog;
+        event.commit();
+    }
+
+    /**
+     * @return Settings of the bundled <code>chat.jfc</code>
+     *
+     * @throws IOException Exception thrown when the settings can not be read
+     * @throws ParseException Exception thrown when the settings are malformed
+     */
+    static Configuration configuration() throws IOException, ParseException {
+        try (Reader reader = new InputStreamReader(FlightEvents.class.getResourceAsStream("/chat.jfc"),
+                StandardCharsets.UTF_8)) {
+            return Configuration.create(reader);
+        }
+    }
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends of a broadcast by one thread, timed one by one.
+     */
+    static final class Sends {
+
+        private long slowest = -1;
+        private Session slowestRecipient;
+        private int errors;
+
+        /**
+         * Sends the frame to the recipient and keeps the time taken if it is the longest so far.
+         *
+         * @param recipient Member of the room
+         * @param frame Frame to send
+         */
+        void send(Session recipient, Frame frame) {
+            long start = System.nanoTime();
+            if (!recipient.send(frame)) errors++;
+            long nanos = System.nanoTime() - start;
+            if (nanos > slowest) {
+                slowest = nanos;
+                slowestRecipient = recipient;
+            }
+        }
+    }
+
+    @Name("chat.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Category({"Chat", "Connections"})
+    @Description("Connection accepted by a server, admitted or closed at once by the connection limits")
+    @StackTrace(false)
+    static final class ConnectionAccepted extends Event {
+
+        @Label("Server")
+        @Description("Port or in-process listener of the server")
+        String server;
+
+        @Label("Address")
+        String address;
+
+        @Label("Admitted")
+        boolean admitted;
+    }
+
+    @Name("chat.ConnectionClosed")
+    @Label("Connection Closed")
+    @Category({"Chat", "Connections"})
+    @Description("Connection closed by the peer, by the server or by the slow consumer policy")
+    @StackTrace(false)
+    static final class ConnectionClosed extends Event {
+
+        @Label("Username")
+        String username;
+
+        @Label("Address")
+        String address;
+
+        @Label("Lifetime")
+        @Timespan(Timespan.NANOSECONDS)
+        long lifetime;
+
+        @Label("Messages")
+        @Description("Messages read from the connection")
+        long messages;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Bytes Out")
+        @Description("Bytes of the frames written to the connection, file chunks aside")
+        @DataAmount
+        long bytesOut;
+    }
+
+    @Name("chat.MessageReceived")
+    @Label("Message Received")
+    @Category({"Chat", "Messages"})
+    @Description("Message read from a connection and let through its rate limits")
+    @StackTrace(false)
+    @Enabled(false)
+    static final class MessageReceived extends Event {
+
+        @Label("Username")
+        String username;
+
+        @Label("Type")
+        String type;
+
+        @Label("Room")
+        String room;
+
+        @Label("Length")
+        @DataAmount
+        int length;
+    }
+
+    @Name("chat.Broadcast")
+    @Label("Broadcast")
+    @Category({"Chat", "Messages"})
+    @Description("Frame queued to every member of a room")
+    @StackTrace(false)
+    static final class Broadcast extends Event {
+
+        @Label("Room")
+        String room;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Slowest Recipient")
+        String slowestRecipient;
+
+        @Label("Slowest Send")
+        @Timespan(Timespan.NANOSECONDS)
+        long slowestSend;
+
+        @Label("Errors")
+        @Description("Recipients the frame was not queued to: closed or disconnected as slow consumers")
+        int errors;
+
+        @Label("Parallel")
+        @Description("Sent by the fan-out workers")
+        boolean parallel;
+
+        /**
+         * Adds the sends of one thread.
+         *
+         * @param sends Sends done
+         */
+        void add(Sends sends) {
+            errors += sends.errors;
+            if (sends.slowestRecipient != null && sends.slowest > slowestSend) {
+                slowestSend = sends.slowest;
+                slowestRecipient = sends.slowestRecipient.getUsername();
+            }
+        }
+    }
+
+    @Name("chat.SlowConsumer")
+    @Label("Slow Consumer")
+    @Category({"Chat", "Connections"})
+    @Description("Frame dropped or connection closed because the outbound queue of a recipient was full")
+    @StackTrace(false)
+    static final class SlowConsumer extends Event {
+
+        @Label("Username")
+        String username;
+
+        @Label("Action")
+        String action;
+
+        @Label("Backlog")
+        @Description("Frames queued to the recipient")
+        int backlog;
+    }
+}
@@ -0,0 +1,288 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import chat.protocol.MessageType;
+import chat.protocol.TextCodec;
+import chat.protocol.Utf8;
+
+import java.io.DataOutputStream;
+import java.io.UTFDataFormatException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Message relayed by the server. Keeps the bytes it was received in and encodes itself into
+ * the other {@link WireFormat} only when a recipient of that format shows up, at most once per format.
+ * The encoded bytes are shared by all the recipients of a broadcast and never change, every connection
+ * copies them into its pooled write buffer with {@link Frame#copy(WireFormat, int, ByteBuffer)}.
+ * A binary frame is routed by its header, the body is decoded only when a text recipient
+ * or a join/rename needs the fields. A legacy text frame is typed by its bytes and relayed to the text
+ * recipients as it came, the text is decoded only when a binary recipient or a join/rename needs it.
+ * <p>
+ * A frame relayed to a room is stamped with its sequence in the room before it is sent to anyone,
+ * the binary recipients get the bytes with the sequence, stamped once per frame. The legacy text has no place
+ * for the sequence. A binary body is checked once, when the frame is received, so a malformed one is never
+ * relayed: its sender is disconnected instead of every binary member of the room failing to decode it.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ChatHandler
+ * @see NioConnection
+ * @see WireFormat
+ */
+final class Frame {
+
+    private final WireFormat origin;
+    private final MessageType type;
+    private final long receivedAt = System.currentTimeMillis();
+    private volatile Message message;
+    private volatile String room;
+    private volatile String line;
+    private volatile byte[] binary;
+    private volatile byte[] stamped;
+    private volatile byte[] text;
+    private volatile long sequence;
+
+    private Frame(WireFormat origin, MessageType type) {
+        this.origin = origin;
+        this.type = type;
+    }
+
+    /**
+     * @param frame Binary frame bytes, header included, owned by the frame from now on
+     *
+     * @return Frame relaying the bytes as they are to binary recipients
+     *
+     * @throws ProtocolException Exception thrown if the header or the body is malformed
+     */
+    static Frame binary(byte[] frame) throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        MessageType type = BinaryCodec.type(buffer, 0);
+        BinaryCodec.checkBody(buffer, 0);
+        return binary(frame, type, null);
+    }
+
+    /**
+     * @param frame Binary frame bytes, header included, body checked by {@link BinaryCodec#checkBody(ByteBuffer, int)},
+     *              owned by the frame from now on
+     * @param type Message type read from the header
+     * @param room Room read from the header, <code>null</code> to read it on first call
+     *
+     * @return Frame relaying the bytes as they are to binary recipients
+     */
+    static Frame binary(byte[] frame, MessageType type, String room) {
+        Frame result = new Frame(WireFormat.BINARY, type);
+        result.binary = frame;
+        result.room = room;
+        return result;
+    }
+
+    /**
+     * @param frame Legacy text frame bytes, length prefix included, valid modified UTF-8 owned by the frame from now on
+     *
+     * @return Frame relaying the bytes as they are to text recipients
+     */
+    static Frame text(byte[] frame) {
+        Frame result = new Frame(WireFormat.TEXT, TextCodec.type(frame, 2, frame.length - 2));
+        result.text = frame;
+        result.room = Message.LOBBY;
+        return result;
+    }
+
+    /**
+     * @param message Message made by the server
+     *
+     * @return Frame of the message
+     */
+    static Frame of(Message message) {
+        Frame result = new Frame(WireFormat.BINARY, message.getType());
+        result.message = message;
+        result.room = message.getRoom();
+        return result;
+    }
+
+    /**
+     * @return Decoded message, parsed from the legacy text or the binary body on first call
+     */
+    Message message() {
+        Message result = message;
+        if (result == null) {
+            try {
+                result = origin == WireFormat.TEXT
+                        ? TextCodec.parse(line(), receivedAt)
+                        : BinaryCodec.decode(ByteBuffer.wrap(binary));
+            } catch (ProtocolException e) {
+                throw new IllegalStateException("checked frame does not decode", e);
+            }
+            message = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return Message type, taken from the header for binary frames
+     */
+    MessageType type() {
+        return type;
+    }
+
+    /**
+     * @return Room the frame is sent to, taken from the header for binary frames
+     */
+    String room() {
+        String result = room;
+        if (result == null) room = result = BinaryCodec.room(ByteBuffer.wrap(binary), 0);
+        return result;
+    }
+
+    /**
+     * Name the sender takes with this frame. A legacy text without <code>#</code> sets the name
+     * to its last word, as the <code>Connected: name</code> and rename texts end with the name.
+     *
+     * @return New name of the sender, or <code>null</code> if the frame does not name the sender
+     */
+    String username() {
+        if (origin == WireFormat.TEXT) {
+            if (type == MessageType.CHAT) return null;
+            String value = line();
+            return value.substring(value.lastIndexOf(' ') + 1);
+        }
+        if (type == MessageType.JOIN) return message().getName();
+        if (type == MessageType.RENAME) return message().getText();
+        return null;
+    }
+
+    /**
+     * @return Text of a legacy frame, decoded on first call
+     */
+    private String line() {
+        String result = line;
+        if (result == null) {
+            try {
+                result = Utf8.decodeModified(text, 2, text.length - 2);
+            } catch (UTFDataFormatException e) {
+                result = "";
+            }
+            line = result;
+        }
+        return result;
+    }
+
+    /**
+     * Sets the sequence of the frame in its room. Called before the frame is sent to anyone.
+     *
+     * @param sequence Sequence number
+     */
+    void stamp(long sequence) {
+        this.sequence = sequence;
+        stamped = null;
+    }
+
+    /**
+     * @return Sequence of the frame in its room, <code>0</code> if it was not stamped here
+     */
+    long sequence() {
+        return sequence;
+    }
+
+    /**
+     * @param format Wire format of the recipient
+     *
+     * @return Read-only buffer over the shared frame bytes, no bytes are copied
+     */
+    ByteBuffer view(WireFormat format) {
+        return ByteBuffer.wrap(bytes(format)).asReadOnlyBuffer();
+    }
+
+    /**
+     * @param format Wire format of the recipient
+     *
+     * @return Length of the frame in the format, prefix or header included
+     */
+    int length(WireFormat format) {
+        return bytes(format).length;
+    }
+
+    /**
+     * Copies the frame bytes of the format into the buffer, as many as fit.
+     *
+     * @param format Wire format of the recipient
+     * @param offset Bytes of the frame copied before
+     * @param target Buffer to copy to
+     *
+     * @return Number of bytes copied
+     */
+    int copy(WireFormat format, int offset, ByteBuffer target) {
+        byte[] bytes = bytes(format);
+        int count = Math.min(bytes.length - offset, target.remaining());
+        target.put(bytes, offset, count);
+        return count;
+    }
+
+    private byte[] bytes(WireFormat format) {
+        if (format == WireFormat.BINARY) {
+            byte[] bytes = binary;
+            if (bytes == null) binary = bytes = BinaryCodec.encode(message());
+            long seq = sequence;
+            if (seq == 0) return bytes;
+            byte[] result = stamped;
+            if (result == null) {
+                try {
+                    result = BinaryCodec.sequence(bytes, seq);
+                } catch (IllegalArgumentException e) {
+                    result = bytes;
+                }
+                stamped = result;
+            }
+            return result;
+        }
+        byte[] bytes = text;
+        if (bytes == null) text = bytes = encodeText(TextCodec.format(message()));
+        return bytes;
+    }
+
+    /**
+     * Encodes the text straight into the frame array, the same way as
+     * {@link DataOutputStream#writeUTF(String)} does. Text longer than 65535 encoded
+     * bytes is cut, as a legacy client can not read it anyway.
+     *
+     * @param message Text to encode
+     *
+     * @return Frame bytes
+     */
+    static byte[] encodeText(String message) {
+        int length = message.length();
+        int utfLength = 0;
+        int count = 0;
+        for (; count < length; count++) {
+            char c = message.charAt(count);
+            int size = c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+            if (utfLength + size > 0xFFFF) break;
+            utfLength += size;
+        }
+
+        byte[] frame = new byte[2 + utfLength];
+        frame[0] = (byte) (utfLength >>> 8);
+        frame[1] = (byte) utfLength;
+        int position = 2;
+        for (int i = 0; i < count; i++) {
+            char c = message.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                frame[position++] = (byte) c;
+            } else if (c > 0x07FF) {
+                frame[position++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                frame[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                frame[position++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                frame[position++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                frame[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return frame;
+    }
+}
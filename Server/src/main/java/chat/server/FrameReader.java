@@ -0,0 +1,194 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.MessageType;
+import chat.protocol.Utf8;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a connection into a buffer of the {@link BufferPool} and cuts the bytes into frames of its
+ * {@link WireFormat}. The buffer is taken for a read and given back once all the bytes read are cut,
+ * so it is kept between the reads only by a connection in the middle of a frame. A frame longer than
+ * the buffer moves the bytes to a larger one for as long as it takes to read it.
+ * <p>
+ * Used by one thread at a time: the reading thread of a {@link ChatHandler} or the loop of
+ * a {@link NioConnection}.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see BufferPool
+ * @see FrameWriter
+ */
+final class FrameReader {
+
+    private final BufferPool pool;
+    private BufferPool.Lease lease;
+    private int required;
+
+    /**
+     * @param pool Pool of the engine
+     */
+    FrameReader(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Reads what the channel has after the bytes kept from the previous read.
+     *
+     * @param channel Channel of the connection
+     *
+     * @return Number of bytes read, <code>-1</code> at the end of the stream
+     *
+     * @throws IOException Exception thrown by the channel
+     */
+    int read(ReadableByteChannel channel) throws IOException {
+        if (lease == null) lease = pool.acquire(pool.chunk);
+        ByteBuffer buffer = lease.buffer();
+        int count = channel.read(buffer);
+        buffer.flip();
+        return count;
+    }
+
+    /**
+     * @return First byte read, for the wire format detection
+     */
+    byte first() {
+        ByteBuffer buffer = lease.buffer();
+        return buffer.get(buffer.position());
+    }
+
+    /**
+     * @return <code>true</code> if bytes were read and not cut yet
+     */
+    boolean hasRemaining() {
+        return lease != null && lease.buffer().hasRemaining();
+    }
+
+    /**
+     * @param format Wire format of the connection
+     *
+     * @return Length of the next frame, prefix or header included, <code>0</code> if it is not read completely
+     *
+     * @throws IOException Exception thrown if the binary header is malformed
+     */
+    int next(WireFormat format) throws IOException {
+        if (lease == null) return 0;
+        ByteBuffer buffer = lease.buffer();
+        int position = buffer.position();
+        int length;
+        if (format == WireFormat.BINARY) {
+            if (buffer.remaining() < BinaryCodec.HEADER_LENGTH) return 0;
+            BinaryCodec.type(buffer, position);
+            length = BinaryCodec.frameLength(buffer, position);
+        } else {
+            if (buffer.remaining() < 2) return 0;
+            length = 2 + (buffer.getShort(position) & 0xFFFF);
+        }
+        if (buffer.remaining() < length) {
+            required = length;
+            return 0;
+        }
+        return length;
+    }
+
+    /**
+     * @return Type of the next binary frame, its length is known from {@link FrameReader#next(WireFormat)}
+     *
+     * @throws ProtocolException Exception thrown if the header is malformed
+     */
+    MessageType type() throws ProtocolException {
+        ByteBuffer buffer = lease.buffer();
+        return BinaryCodec.type(buffer, buffer.position());
+    }
+
+    /**
+     * Cuts the next frame without copying it, for a frame that is used up at once, such as a file chunk.
+     *
+     * @param length Length returned by {@link FrameReader#next(WireFormat)}
+     *
+     * @return View of the frame in the pooled buffer, valid until the next read or compact
+     */
+    ByteBuffer slice(int length) {
+        ByteBuffer buffer = lease.buffer();
+        ByteBuffer frame = buffer.duplicate();
+        frame.limit(buffer.position() + length);
+        buffer.position(buffer.position() + length);
+        return frame;
+    }
+
+    /**
+     * Cuts the next frame, the bytes are copied out of the pooled buffer. The type and the room of a binary
+     * frame are read in the pooled buffer, a legacy text frame is checked, not decoded.
+     *
+     * @param format Wire format of the connection
+     * @param length Length returned by {@link FrameReader#next(WireFormat)}
+     *
+     * @return Frame
+     *
+     * @throws IOException Exception thrown if the frame is malformed
+     */
+    Frame frame(WireFormat format, int length) throws IOException {
+        ByteBuffer buffer = lease.buffer();
+        byte[] bytes = new byte[length];
+        if (format == WireFormat.BINARY) {
+            int start = buffer.position();
+            MessageType type = BinaryCodec.type(buffer, start);
+            BinaryCodec.checkBody(buffer, start);
+            String room = BinaryCodec.room(buffer, start);
+            buffer.get(bytes);
+            return Frame.binary(bytes, type, room);
+        }
+        buffer.get(bytes);
+        Utf8.checkModified(bytes, 2, length - 2);
+        return Frame.text(bytes);
+    }
+
+    /**
+     * Skips the next frame without copying it.
+     *
+     * @param length Length returned by {@link FrameReader#next(WireFormat)}
+     */
+    void skip(int length) {
+        ByteBuffer buffer = lease.buffer();
+        buffer.position(buffer.position() + length);
+    }
+
+    /**
+     * Keeps the bytes of an incomplete frame for the next read, in a larger buffer if the frame does not fit,
+     * or gives the buffer back if all the bytes are cut.
+     */
+    void compact() {
+        if (lease == null) return;
+        ByteBuffer buffer = lease.buffer();
+        if (!buffer.hasRemaining()) {
+            release();
+            return;
+        }
+        if (required > buffer.capacity()) {
+            BufferPool.Lease larger = pool.acquire(required);
+            larger.buffer().put(buffer);
+            lease.release();
+            lease = larger;
+        } else {
+            buffer.compact();
+        }
+        required = 0;
+    }
+
+    /**
+     * Gives the buffer back, the bytes kept are dropped. Safe to call more than once.
+     */
+    void release() {
+        if (lease != null) lease.release();
+        lease = null;
+        required = 0;
+    }
+}
@@ -0,0 +1,144 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Batch of frames waiting for one write to a connection. The frame bytes are copied into a buffer of
+ * the {@link BufferPool}, which goes to the socket as it is, so a recipient of a broadcast allocates
+ * nothing per frame. A frame that does not fit into the rest of the buffer is copied on as the buffer
+ * is written. The buffer is taken for the first frame and given back once everything is written,
+ * an idle connection holds none.
+ * <p>
+ * Used by one thread at a time: the writer task of a {@link ChatHandler} or the loop of
+ * a {@link NioConnection}.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see BufferPool
+ * @see FrameReader
+ */
+final class FrameWriter {
+
+    private final BufferPool pool;
+    private final ServerMetrics metrics;
+    private BufferPool.Lease lease;
+    private Frame partial;
+    private WireFormat partialFormat;
+    private int partialOffset;
+    private int frames;
+    private volatile long written;
+
+    /**
+     * @param pool Pool of the engine
+     * @param metrics Metrics the writes are counted in
+     */
+    FrameWriter(BufferPool pool, ServerMetrics metrics) {
+        this.pool = pool;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Copies the frame into the batch. Must not be called while the batch is full.
+     *
+     * @param frame Frame to send
+     * @param format Wire format of the connection
+     */
+    void add(Frame frame, WireFormat format) {
+        if (lease == null) lease = pool.acquire(pool.chunk);
+        int copied = frame.copy(format, 0, lease.buffer());
+        if (copied < frame.length(format)) {
+            partial = frame;
+            partialFormat = format;
+            partialOffset = copied;
+        } else {
+            frames++;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if no more frames fit until the batch is written
+     */
+    boolean isFull() {
+        return partial != null || (lease != null && !lease.buffer().hasRemaining());
+    }
+
+    /**
+     * @return <code>true</code> if nothing waits to be written
+     */
+    boolean isEmpty() {
+        return lease == null;
+    }
+
+    /**
+     * @return Frames copied completely into the batch
+     */
+    int frames() {
+        return frames;
+    }
+
+    /**
+     * @return Bytes written by the batch so far, read by other threads for the {@link FlightEvents}
+     */
+    long written() {
+        return written;
+    }
+
+    /**
+     * @return Bytes waiting to be written
+     */
+    int bytes() {
+        return lease == null ? 0 : lease.buffer().position();
+    }
+
+    /**
+     * Writes the batch, as much as the channel takes, and copies on the rest of a frame that did not fit.
+     * A blocking channel takes everything.
+     *
+     * @param channel Channel of the connection
+     *
+     * @return <code>true</code> if everything was written and the buffer is given back
+     *
+     * @throws IOException Exception thrown by the channel
+     */
+    boolean write(WritableByteChannel channel) throws IOException {
+        while (lease != null) {
+            ByteBuffer buffer = lease.buffer();
+            buffer.flip();
+            long bytes = channel.write(buffer);
+            written += bytes;
+            boolean drained = !buffer.hasRemaining();
+            buffer.compact();
+            metrics.sent(drained ? frames : 0, bytes);
+            if (drained) frames = 0;
+            if (partial != null) {
+                partialOffset += partial.copy(partialFormat, partialOffset, buffer);
+                if (partialOffset == partial.length(partialFormat)) {
+                    partial = null;
+                    frames++;
+                }
+            }
+            if (buffer.position() == 0) {
+                release();
+                return true;
+            }
+            if (!drained) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives the buffer back, the frames not written are dropped. Safe to call more than once.
+     */
+    void release() {
+        if (lease != null) lease.release();
+        lease = null;
+        partial = null;
+        frames = 0;
+    }
+}
@@ -0,0 +1,231 @@
+package chat.server;
+
+import chat.protocol.Message;
+import chat.protocol.MessageType;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heartbeats and idle timeouts of the connections of a server engine, checked on one {@link TimerWheel}.
+ * A connection is watched from the moment it is accepted: one that sends no whole frame within
+ * <code>handshake.timeout</code> is evicted as silent, so a half-open or a mute connection never holds
+ * its {@link Admission} slot. A connection silent for <code>heartbeat.interval</code> gets a PING and
+ * is evicted as dead unless some frame, a PONG normally, comes within <code>heartbeat.timeout</code>.
+ * The PING carries the interval, so the client knows how long a healthy link may stay silent.
+ * A connection sending nothing but PONGs for <code>idle.timeout</code> is closed as idle.
+ * <p>
+ * Every connection has one {@link Liveness} with one timeout in the wheel. Reading a frame only writes
+ * the time into a volatile field, the timeout checks the times when it fires and schedules itself again
+ * for the nearest time that matters, so the wheel is touched about once per heartbeat interval
+ * per connection, not per frame.
+ * <p>
+ * Legacy text clients can not answer a PING, they are never pinged, nor is a connection whose wire format
+ * is not known yet. Their sockets get the TCP keep-alive of the system instead, and the idle timeout
+ * applies to them too.
+ * Config keys, in seconds, a zero turns the check off:
+ * <pre>
+ * handshake.timeout  = time from the accept to the first whole frame, 10 by default
+ * heartbeat.interval = silence before a PING, 30 by default
+ * heartbeat.timeout  = wait for an answer to the PING, 15 by default
+ * idle.timeout       = time without any frame but PONG, off by default
+ * </pre>
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see TimerWheel
+ * @see ChatHandler
+ * @see NioConnection
+ */
+class Heartbeats {
+
+    static final int DEFAULT_INTERVAL = 30;
+    static final int DEFAULT_TIMEOUT = 15;
+    static final int DEFAULT_HANDSHAKE = 10;
+
+    private static final long TICK_MILLIS = 100;
+    private static final int SLOTS = 512;
+
+    final long intervalNanos;
+    final long timeoutNanos;
+    final long idleNanos;
+    final long handshakeNanos;
+
+    private final Frame ping;
+    private volatile TimerWheel wheel;
+
+    /**
+     * @param intervalSeconds Silence before a PING, <code>0</code> to send none
+     * @param timeoutSeconds Wait for an answer to the PING
+     * @param idleSeconds Time without any frame but PONG, <code>0</code> for no limit
+     * @param handshakeSeconds Time from the accept to the first whole frame, <code>0</code> for no limit
+     */
+    Heartbeats(long intervalSeconds, long timeoutSeconds, long idleSeconds, long handshakeSeconds) {
+        intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        handshakeNanos = TimeUnit.SECONDS.toNanos(handshakeSeconds);
+        ping = Frame.of(Message.ping(intervalSeconds));
+    }
+
+    /**
+     * @param properties Server config
+     *
+     * @return Heartbeat settings read from the config, defaults for the missing keys
+     */
+    static Heartbeats from(Properties properties) {
+        return new Heartbeats(
+                Long.parseLong(properties.getProperty("heartbeat.interval", String.valueOf(DEFAULT_INTERVAL))),
+                Long.parseLong(properties.getProperty("heartbeat.timeout", String.valueOf(DEFAULT_TIMEOUT))),
+                Long.parseLong(properties.getProperty("idle.timeout", "0")),
+                Long.parseLong(properties.getProperty("handshake.timeout", String.valueOf(DEFAULT_HANDSHAKE))));
+    }
+
+    /**
+     * Starts watching a connection, as soon as it is accepted.
+     *
+     * @param session Connection, gets the PINGs once its wire format is known
+     * @param evict Closes the connection, called on the wheel thread
+     *
+     * @return Liveness the connection reports its format and its reads to
+     */
+    synchronized Liveness watch(Session session, Runnable evict) {
+        Liveness liveness = new Liveness(session, evict);
+        long first = Math.min(Math.min(intervalNanos > 0 ? intervalNanos : Long.MAX_VALUE,
+                idleNanos > 0 ? idleNanos : Long.MAX_VALUE), handshakeNanos > 0 ? handshakeNanos : Long.MAX_VALUE);
+        if (first == Long.MAX_VALUE) return liveness;
+        if (wheel == null) {
+            wheel = new TimerWheel("heartbeats", TICK_MILLIS, SLOTS);
+            wheel.start();
+        }
+        liveness.timeout = wheel.schedule(liveness, first);
+        return liveness;
+    }
+
+    /**
+     * Stops the wheel.
+     */
+    synchronized void shutdown() {
+        if (wheel != null) wheel.shutdown();
+        wheel = null;
+    }
+
+    @Override
+    public String toString() {
+        return "interval " + TimeUnit.NANOSECONDS.toSeconds(intervalNanos) + " s, timeout "
+                + TimeUnit.NANOSECONDS.toSeconds(timeoutNanos) + " s, idle "
+                + TimeUnit.NANOSECONDS.toSeconds(idleNanos) + " s, handshake "
+                + TimeUnit.NANOSECONDS.toSeconds(handshakeNanos) + " s";
+    }
+
+    /**
+     * Times of the last frames of a connection and its timeout in the wheel.
+     */
+    final class Liveness implements Runnable {
+
+        private final Session session;
+        private final Runnable evict;
+        private volatile long lastRead = System.nanoTime();
+        private volatile long lastActive = lastRead;
+        private volatile TimerWheel.Timeout timeout;
+        private volatile boolean closed;
+        private volatile boolean pingable;
+        private volatile boolean handshaken;
+        private boolean pinged;
+        private long pingedAt;
+
+        private Liveness(Session session, Runnable evict) {
+            this.session = session;
+            this.evict = evict;
+        }
+
+        /**
+         * Notes the wire format of the connection, detected by its first byte. Only binary connections are pinged.
+         *
+         * @param format Wire format of the connection
+         */
+        void detected(WireFormat format) {
+            pingable = format == WireFormat.BINARY && intervalNanos > 0;
+        }
+
+        /**
+         * Notes a frame read from the connection.
+         *
+         * @param type Type of the frame, a PONG does not count as activity, <code>null</code> if not decoded
+         */
+        void read(MessageType type) {
+            long now = System.nanoTime();
+            lastRead = now;
+            if (type != MessageType.PONG) lastActive = now;
+            handshaken = true;
+        }
+
+        /**
+         * Stops watching a closed connection.
+         */
+        void cancel() {
+            closed = true;
+            TimerWheel.Timeout t = timeout;
+            if (t != null) t.cancel();
+        }
+
+        /**
+         * Checks the connection when its timeout fires and schedules the next check.
+         */
+        @Override
+        public void run() {
+            if (closed) return;
+            long now = System.nanoTime();
+            long next = Long.MAX_VALUE;
+            if (handshakeNanos > 0 && !handshaken) {
+                long waited = now - lastRead;
+                if (waited >= handshakeNanos) {
+                    evict("silent");
+                    return;
+                }
+                next = handshakeNanos - waited;
+            }
+            if (idleNanos > 0) {
+                long idle = now - lastActive;
+                if (idle >= idleNanos) {
+                    evict("idle");
+                    return;
+                }
+                next = Math.min(next, idleNanos - idle);
+            }
+            if (intervalNanos > 0) {
+                long read = lastRead;
+                if (pinged && read - pingedAt >= 0) pinged = false;
+                long silent = now - read;
+                if (silent < intervalNanos) {
+                    next = Math.min(next, intervalNanos - silent);
+                } else if (!pingable) {
+                    next = Math.min(next, intervalNanos);
+                } else if (!pinged) {
+                    pinged = true;
+                    pingedAt = now;
+                    session.send(ping);
+                    next = Math.min(next, timeoutNanos);
+                } else if (now - pingedAt >= timeoutNanos) {
+                    evict("dead");
+                    return;
+                } else {
+                    next = Math.min(next, timeoutNanos - (now - pingedAt));
+                }
+            }
+            if (next == Long.MAX_VALUE) return;
+            TimerWheel w = wheel;
+            if (w != null && !closed) timeout = w.schedule(this, next);
+        }
+
+        private void evict(String reason) {
+            closed = true;
+            System.out.println(session.getUsername() + " evicted as " + reason);
+            evict.run();
+        }
+    }
+}
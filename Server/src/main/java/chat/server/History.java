@@ -0,0 +1,397 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.MessageType;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Persistent chat history. Chat frames are appended in their binary format to an append-only log
+ * split into {@link HistorySegment} files, which are mapped into memory. Every message gets
+ * an offset, the number of messages stored before it, and every segment is named by the offset
+ * of its first message.
+ * <p>
+ * A broadcast only puts the frame into a bounded queue, a writer thread appends the queued frames
+ * in batches, so disk never delays a broadcast. If the writer falls behind the queue drops frames
+ * and counts them instead of blocking. The offsets of the last messages of every room are kept
+ * in memory, so a user joining a room gets them read from the mapped segments at once, without
+ * walking the log past other rooms. They are rebuilt from the segments when the history is opened.
+ * Old segments are deleted once the history is bigger or older than the retention limits.
+ * <p>
+ * Configured by the server config keys:
+ * <code>history.dir</code> (default <code>history</code>, empty to keep no history),
+ * <code>history.segment.bytes</code>, <code>history.retention.bytes</code>,
+ * <code>history.retention.hours</code> and <code>history.replay</code>, the number of messages
+ * sent to a joining user.
+ * <p>
+ * The stored messages are also added to a {@link SearchIndex} kept in the <code>index</code> directory
+ * of the history, configured by <code>search.flush.docs</code>, the number of messages an index segment
+ * is written to disk at, and <code>search.results</code>, the maximum number of messages found by a search,
+ * <code>0</code> to keep no index.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see HistorySegment
+ * @see SearchIndex
+ * @see Rooms
+ */
+class History {
+
+    static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    static final long DEFAULT_RETENTION_BYTES = 256L * 1024 * 1024;
+    static final long DEFAULT_RETENTION_HOURS = 7 * 24;
+    static final int DEFAULT_REPLAY = 50;
+
+    private static final int MIN_SEGMENT_BYTES = 1024 * 1024;
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_BATCH = 1024;
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+    private static final long POLL_MILLIS = 100;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final int replay;
+    private final ConcurrentSkipListMap<Long, HistorySegment> segments = new ConcurrentSkipListMap<>();
+    private volatile HistorySegment active;
+    private final Map<String, Tail> tails = new ConcurrentHashMap<>();
+    private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private final SearchIndex index;
+    private volatile boolean isOn = true;
+
+    final LongAdder appended = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder batches = new LongAdder();
+
+    /**
+     * Opens the segments found in the directory, the search index, and starts the writer thread.
+     *
+     * @param directory History directory, created if missing
+     * @param segmentBytes Size of a segment log file
+     * @param retentionBytes Size of the history the oldest segments are deleted above
+     * @param retentionMillis Age of the last message of a segment it is deleted after
+     * @param replay Number of messages sent to a joining user
+     * @param flushDocs Number of messages an index segment is written to disk at
+     * @param results Maximum number of messages found by a search, <code>0</code> to keep no index
+     *
+     * @throws IOException Exception thrown while opening the segments
+     */
+    History(Path directory, int segmentBytes, long retentionBytes, long retentionMillis, int replay,
+            int flushDocs, int results) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.max(MIN_SEGMENT_BYTES, segmentBytes);
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.replay = replay;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + HistorySegment.LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long baseOffset = Long.parseLong(name.substring(0, name.length() - HistorySegment.LOG_SUFFIX.length()));
+                segments.put(baseOffset, new HistorySegment(directory, baseOffset, this.segmentBytes));
+            }
+        }
+        if (segments.isEmpty()) segments.put(0L, new HistorySegment(directory, 0, this.segmentBytes));
+        active = segments.lastEntry().getValue();
+        if (replay > 0) {
+            for (HistorySegment segment : segments.values()) {
+                long offset = segment.baseOffset;
+                int end = segment.end();
+                for (int position = 0; position >= 0 && position < end; position = segment.next(position)) {
+                    roomTail(BinaryCodec.room(segment.frame(position), 0)).add(offset++);
+                }
+            }
+        }
+        index = results > 0 ? new SearchIndex(directory.resolve("index"), this, flushDocs, results) : null;
+        writer = new Thread(this::write, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @param properties Server config
+     *
+     * @return History configured by the config, or <code>null</code> if <code>history.dir</code> is empty
+     * or the history can not be opened
+     */
+    static History from(Properties properties) {
+        String dir = properties.getProperty("history.dir", "history");
+        if (dir.isEmpty()) return null;
+        try {
+            return new History(Paths.get(dir),
+                    Integer.parseInt(properties.getProperty("history.segment.bytes", String.valueOf(DEFAULT_SEGMENT_BYTES))),
+                    Long.parseLong(properties.getProperty("history.retention.bytes", String.valueOf(DEFAULT_RETENTION_BYTES))),
+                    TimeUnit.HOURS.toMillis(Long.parseLong(
+                            properties.getProperty("history.retention.hours", String.valueOf(DEFAULT_RETENTION_HOURS)))),
+                    Integer.parseInt(properties.getProperty("history.replay", String.valueOf(DEFAULT_REPLAY))),
+                    Integer.parseInt(properties.getProperty("search.flush.docs",
+                            String.valueOf(SearchIndex.DEFAULT_FLUSH_DOCS))),
+                    Integer.parseInt(properties.getProperty("search.results", String.valueOf(SearchIndex.DEFAULT_RESULTS))));
+        } catch (IOException e) {
+            System.err.println("Error opening history, running without it");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Queues a chat frame for the writer, never blocks. Frames of other types are not kept.
+     *
+     * @param frame Frame relayed to a room
+     */
+    void append(Frame frame) {
+        if (frame.type() != MessageType.CHAT) return;
+        if (!queue.offer(frame)) dropped.increment();
+    }
+
+    /**
+     * Appends queued frames in batches until closed and applies the retention limits
+     * after a segment is rolled and once a minute.
+     */
+    private void write() {
+        List<Frame> batch = new ArrayList<>(MAX_BATCH);
+        long lastCheck = System.currentTimeMillis();
+        while (isOn || !queue.isEmpty()) {
+            try {
+                Frame first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (Frame frame : batch) store(frame);
+                    batches.increment();
+                    batch.clear();
+                }
+                if (System.currentTimeMillis() - lastCheck > RETENTION_CHECK_MILLIS) {
+                    retain();
+                    lastCheck = System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Error writing history");
+                e.printStackTrace();
+                batch.clear();
+            }
+        }
+        for (HistorySegment segment : segments.values()) segment.force();
+    }
+
+    private void store(Frame frame) throws IOException {
+        ByteBuffer bytes = frame.view(WireFormat.BINARY);
+        if (!active.append(bytes)) {
+            active.force();
+            HistorySegment segment = new HistorySegment(directory, active.nextOffset(), segmentBytes);
+            segments.put(segment.baseOffset, segment);
+            active = segment;
+            retain();
+            if (!active.append(bytes)) {
+                dropped.increment();
+                return;
+            }
+        }
+        appended.increment();
+        long offset = active.nextOffset() - 1;
+        if (replay > 0) roomTail(frame.room()).add(offset);
+        if (index != null) index.add(offset, frame);
+    }
+
+    /**
+     * Deletes the oldest segments while the history is too big or they are too old,
+     * and forgets the rooms with no message left. The active segment is never deleted.
+     */
+    private void retain() throws IOException {
+        long size = 0;
+        for (HistorySegment segment : segments.values()) size += segment.size();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, HistorySegment> entry : segments.entrySet()) {
+            HistorySegment segment = entry.getValue();
+            if (segment == active) break;
+            if (size <= retentionBytes && now - segment.lastAppend() <= retentionMillis) break;
+            segments.remove(entry.getKey());
+            segment.delete();
+            size -= segment.size();
+        }
+        long first = segments.firstKey();
+        tails.values().removeIf(tail -> tail.last() < first);
+    }
+
+    /**
+     * Reads the last messages of a room by the offsets kept for it.
+     *
+     * @param room Room name
+     *
+     * @return Up to <code>history.replay</code> frames of the room, oldest first
+     */
+    List<Frame> tail(String room) {
+        Tail tail = replay > 0 ? tails.get(room) : null;
+        if (tail == null) return Collections.emptyList();
+        long[] offsets = tail.offsets();
+        List<Frame> result = new ArrayList<>(offsets.length);
+        for (long offset : offsets) {
+            Frame frame = frame(offset);
+            if (frame != null) result.add(frame);
+        }
+        return result;
+    }
+
+    private Tail roomTail(String room) {
+        return tails.computeIfAbsent(room, name -> new Tail(replay));
+    }
+
+    /**
+     * Reads messages in offset order, the first one found with the sparse index of its segment.
+     *
+     * @param offset Offset of the first message
+     * @param max Maximum number of messages
+     *
+     * @return Frames of the messages still kept, oldest first
+     */
+    List<Frame> read(long offset, int max) {
+        List<Frame> result = new ArrayList<>();
+        Map.Entry<Long, HistorySegment> first = segments.floorEntry(offset);
+        if (first == null) {
+            first = segments.firstEntry();
+            offset = first.getKey();
+        }
+        for (HistorySegment segment : segments.tailMap(first.getKey()).values()) {
+            int end = segment.end();
+            for (int position = segment.position(Math.max(offset, segment.baseOffset));
+                 position >= 0 && position < end && result.size() < max; position = segment.next(position)) {
+                result.add(copy(segment.frame(position)));
+            }
+            if (result.size() >= max) break;
+        }
+        return result;
+    }
+
+    /**
+     * Reads a message by its offset.
+     *
+     * @param offset Message offset
+     *
+     * @return Frame of the message, <code>null</code> if it is no longer kept or not written yet
+     */
+    Frame frame(long offset) {
+        Map.Entry<Long, HistorySegment> entry = segments.floorEntry(offset);
+        if (entry == null) return null;
+        HistorySegment segment = entry.getValue();
+        int position = segment.position(offset);
+        if (offset >= segment.nextOffset() || position >= segment.end()) return null;
+        return copy(segment.frame(position));
+    }
+
+    private static Frame copy(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        try {
+            return Frame.binary(bytes);
+        } catch (ProtocolException e) {
+            throw new IllegalStateException("corrupted history record", e);
+        }
+    }
+
+    /**
+     * @return Offset of the oldest message kept
+     */
+    long firstOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * @return Search index of the history, <code>null</code> if it keeps none
+     */
+    SearchIndex index() {
+        return index;
+    }
+
+    /**
+     * @return Offset the next stored message gets
+     */
+    long nextOffset() {
+        return active.nextOffset();
+    }
+
+    /**
+     * Stops the writer once the queued frames are stored and writes the segments to disk,
+     * then closes the search index.
+     */
+    void close() {
+        isOn = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (index != null) index.close();
+    }
+
+    @Override
+    public String toString() {
+        return "appended " + appended.sum()
+                + ", dropped " + dropped.sum()
+                + ", batches " + batches.sum()
+                + ", segments " + segments.size()
+                + (index == null ? "" : ", search " + index);
+    }
+
+    /**
+     * Offsets of the last messages of one room, a ring of <code>history.replay</code> entries.
+     * Added to by the writer thread, read by the joining users.
+     */
+    private static final class Tail {
+
+        private final long[] offsets;
+        private int count;
+        private int next;
+
+        Tail(int capacity) {
+            offsets = new long[capacity];
+        }
+
+        synchronized void add(long offset) {
+            offsets[next] = offset;
+            next = (next + 1) % offsets.length;
+            if (count < offsets.length) count++;
+        }
+
+        /**
+         * @return Offsets kept, oldest first
+         */
+        synchronized long[] offsets() {
+            long[] result = new long[count];
+            int first = (next - count + offsets.length) % offsets.length;
+            for (int i = 0; i < count; i++) result[i] = offsets[(first + i) % offsets.length];
+            return result;
+        }
+
+        /**
+         * @return Offset of the newest message
+         */
+        synchronized long last() {
+            return offsets[(next - 1 + offsets.length) % offsets.length];
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One segment of the {@link History} log: a preallocated log file and its sparse index,
+ * both mapped into memory. A record of the log is a binary frame framed by its length on both sides:
+ * <pre>
+ * length (4 bytes) | frame | length (4 bytes)
+ * </pre>
+ * so the log can be walked forward from an index entry and backward from the end. A zero length
+ * marks the end of the written part. Every {@link HistorySegment#INDEX_INTERVAL} bytes of the log
+ * the index gets an entry of the message offset relative to the segment base and the record position.
+ * <p>
+ * Only the history writer thread appends. Readers may walk the segment from any thread up to
+ * {@link HistorySegment#end}, which is published after the record bytes.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see History
+ */
+class HistorySegment {
+
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".index";
+    static final int INDEX_INTERVAL = 4096;
+
+    private static final int INDEX_ENTRY = 8;
+    private static final int RECORD_OVERHEAD = 8;
+
+    final long baseOffset;
+    private final Path logPath;
+    private final Path indexPath;
+    private final MappedByteBuffer log;
+    private final MappedByteBuffer index;
+    private int indexEntries;
+    private int lastIndexed = -INDEX_INTERVAL;
+    private volatile int end;
+    private volatile long nextOffset;
+    private volatile long lastAppend;
+
+    /**
+     * Maps the segment files, creating them if needed. An existing segment is recovered:
+     * the end of the log is found from the last index entry, a torn last record is discarded.
+     *
+     * @param directory History directory
+     * @param baseOffset Offset of the first message of the segment
+     * @param capacity Size of the log file in bytes
+     *
+     * @throws IOException Exception thrown while opening or mapping the files
+     */
+    HistorySegment(Path directory, long baseOffset, int capacity) throws IOException {
+        this.baseOffset = baseOffset;
+        String name = String.format("%020d", baseOffset);
+        logPath = directory.resolve(name + LOG_SUFFIX);
+        indexPath = directory.resolve(name + INDEX_SUFFIX);
+        boolean exists = Files.exists(logPath);
+        if (exists) capacity = (int) Math.max(capacity, Files.size(logPath));
+        log = map(logPath, capacity);
+        index = map(indexPath, (capacity / INDEX_INTERVAL + 1) * INDEX_ENTRY);
+        nextOffset = baseOffset;
+        lastAppend = exists ? Files.getLastModifiedTime(logPath).toMillis() : System.currentTimeMillis();
+        if (exists) recover();
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private void recover() {
+        while (indexEntries * INDEX_ENTRY < index.capacity()) {
+            int position = index.getInt(indexEntries * INDEX_ENTRY + 4);
+            if (indexEntries > 0 && position == 0) break;
+            if (indexEntries == 0 && log.getInt(0) == 0) break;
+            indexEntries++;
+        }
+        int position = 0;
+        long offset = baseOffset;
+        if (indexEntries > 0) {
+            int entry = (indexEntries - 1) * INDEX_ENTRY;
+            offset += index.getInt(entry);
+            position = lastIndexed = index.getInt(entry + 4);
+        }
+        int next;
+        while ((next = next(position)) > 0) {
+            position = next;
+            offset++;
+        }
+        end = position;
+        nextOffset = offset;
+    }
+
+    /**
+     * Appends a frame to the log.
+     *
+     * @param frame Binary frame bytes, not modified
+     *
+     * @return <code>false</code> if the segment has no room for the frame
+     */
+    boolean append(ByteBuffer frame) {
+        int length = frame.remaining();
+        int position = end;
+        int next = position + RECORD_OVERHEAD + length;
+        if (next > log.capacity()) return false;
+        ByteBuffer target = log.duplicate();
+        target.position(position);
+        target.putInt(length).put(frame.duplicate()).putInt(length);
+        if (next + 4 <= log.capacity()) target.putInt(0);
+        if (position - lastIndexed >= INDEX_INTERVAL) {
+            index.putInt(indexEntries * INDEX_ENTRY, (int) (nextOffset - baseOffset));
+            index.putInt(indexEntries * INDEX_ENTRY + 4, position);
+            indexEntries++;
+            lastIndexed = position;
+        }
+        lastAppend = System.currentTimeMillis();
+        nextOffset++;
+        end = next;
+        return true;
+    }
+
+    /**
+     * Finds the record of a message with the sparse index: the nearest indexed record
+     * before the offset and a short walk forward from it.
+     *
+     * @param offset Message offset, at least {@link HistorySegment#baseOffset}
+     *
+     * @return Position of the record, or the end of the log if the offset is not written yet
+     */
+    int position(long offset) {
+        int relative = (int) (offset - baseOffset);
+        int low = 0;
+        int high = indexEntries - 1;
+        int position = 0;
+        long current = baseOffset;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entryOffset = index.getInt(middle * INDEX_ENTRY);
+            if (entryOffset <= relative) {
+                position = index.getInt(middle * INDEX_ENTRY + 4);
+                current = baseOffset + entryOffset;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int limit = end;
+        while (current < offset && position < limit) {
+            position = next(position);
+            current++;
+        }
+        return Math.min(position, limit);
+    }
+
+    /**
+     * @param position Position of a record
+     *
+     * @return Position of the record after it, or <code>-1</code> if there is no whole record at the position
+     */
+    int next(int position) {
+        if (position + RECORD_OVERHEAD > log.capacity()) return -1;
+        int length = log.getInt(position);
+        if (length <= 0 || position + RECORD_OVERHEAD + length > log.capacity()) return -1;
+        if (log.getInt(position + 4 + length) != length) return -1;
+        return position + RECORD_OVERHEAD + length;
+    }
+
+    /**
+     * @param position Position right after a record
+     *
+     * @return Position of that record
+     */
+    int previous(int position) {
+        return position - RECORD_OVERHEAD - log.getInt(position - 4);
+    }
+
+    /**
+     * @param position Position of a record
+     *
+     * @return View of the frame in the mapped log, nothing is copied
+     */
+    ByteBuffer frame(int position) {
+        ByteBuffer frame = log.duplicate();
+        frame.position(position + 4).limit(position + 4 + log.getInt(position));
+        return frame.slice();
+    }
+
+    /**
+     * @return Position right after the last written record
+     */
+    int end() {
+        return end;
+    }
+
+    /**
+     * @return Offset the next appended message gets
+     */
+    long nextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * @return Time of the last append, or of the last file modification for a recovered segment
+     */
+    long lastAppend() {
+        return lastAppend;
+    }
+
+    /**
+     * @return Bytes taken by the segment on disk
+     */
+    long size() {
+        return log.capacity() + index.capacity();
+    }
+
+    /**
+     * Writes the mapped pages to disk.
+     */
+    void force() {
+        log.force();
+        index.force();
+    }
+
+    /**
+     * Deletes the segment files. The mapping stays readable until it is collected,
+     * so a reader walking the segment meanwhile is not affected.
+     *
+     * @throws IOException Exception thrown while deleting the files
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(indexPath);
+    }
+}
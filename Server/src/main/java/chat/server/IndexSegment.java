@@ -0,0 +1,401 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Immutable segment of the {@link SearchIndex} on disk, covering a range of history offsets. The file
+ * is written once, by a flush of the messages indexed in memory or by a merge of smaller segments,
+ * and then mapped into memory and only read:
+ * <pre>
+ * magic (4 bytes) | version (4 bytes) | first offset (8 bytes) | end offset (8 bytes) | times
+ * terms: term length (2 bytes) | term (UTF-8) | {@link Postings}, in term order
+ * term table: position of every term (4 bytes)
+ * term table position (4 bytes) | number of terms (4 bytes)
+ * </pre>
+ * A term is found by a binary search of the term table, its postings are read in place.
+ * The {@link Times} of the segment keep the earliest and the latest message time of every
+ * {@link IndexSegment#TIME_BLOCK} offsets, so a search for a time range skips the blocks outside it.
+ * <p>
+ * A segment is written to a temporary file and renamed once complete, so a segment file found at start
+ * is always whole. The file is named by the range of offsets it covers.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see SearchIndex
+ * @see Postings
+ */
+class IndexSegment implements SearchIndex.Searchable {
+
+    static final String SUFFIX = ".idx";
+    static final String TEMP_SUFFIX = ".tmp";
+    static final int TIME_BLOCK = 1024;
+
+    private static final int MAGIC = 0x43494458;
+    private static final int VERSION = 1;
+
+    final Path path;
+    private final long docBase;
+    private final long docEnd;
+    private final Times times;
+    private final MappedByteBuffer map;
+    private final int table;
+    private final int termCount;
+
+    private IndexSegment(Path path) throws IOException {
+        this.path = path;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) throw new IOException("not an index segment " + path);
+        docBase = map.getLong(8);
+        docEnd = map.getLong(16);
+        ByteBuffer header = map.duplicate();
+        header.position(24);
+        times = Times.read(header);
+        table = map.getInt(map.capacity() - 8);
+        termCount = map.getInt(map.capacity() - 4);
+    }
+
+    /**
+     * @param path Segment file
+     *
+     * @return Mapped segment
+     *
+     * @throws IOException Exception thrown if the file can not be mapped or is not a segment
+     */
+    static IndexSegment open(Path path) throws IOException {
+        return new IndexSegment(path);
+    }
+
+    @Override
+    public long docBase() {
+        return docBase;
+    }
+
+    @Override
+    public long docEnd() {
+        return docEnd;
+    }
+
+    @Override
+    public Times times() {
+        return times;
+    }
+
+    @Override
+    public Postings postings(String term) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compared = term(middle).compareTo(term);
+            if (compared < 0) {
+                low = middle + 1;
+            } else if (compared > 0) {
+                high = middle - 1;
+            } else {
+                return postingsAt(middle);
+            }
+        }
+        return null;
+    }
+
+    private String term(int index) {
+        int position = map.getInt(table + index * 4);
+        int length = map.getShort(position) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = map.get(position + 2 + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Postings postingsAt(int index) {
+        int position = map.getInt(table + index * 4);
+        return new Postings(map, position + 2 + (map.getShort(position) & 0xFFFF));
+    }
+
+    /**
+     * @return Number of the offsets the segment covers
+     */
+    long docs() {
+        return docEnd - docBase;
+    }
+
+    /**
+     * Deletes the file. The mapping stays readable until it is collected, so a search running
+     * meanwhile is not affected.
+     */
+    void delete() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("Error deleting " + path);
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path.getFileName() + ", " + termCount + " terms";
+    }
+
+    /**
+     * Writes a segment.
+     *
+     * @param directory Index directory
+     * @param docBase First offset covered
+     * @param docEnd Offset after the last one covered
+     * @param times Message times of the offsets
+     * @param terms Terms in {@link String#compareTo(String)} order with their postings
+     *
+     * @return The written segment, mapped
+     *
+     * @throws IOException Exception thrown while writing, the temporary file is deleted
+     */
+    static IndexSegment write(Path directory, long docBase, long docEnd, Times times,
+                              Iterator<Map.Entry<String, Postings.Builder>> terms) throws IOException {
+        String name = String.format("%020d-%020d", docBase, docEnd);
+        Path temp = directory.resolve(name + TEMP_SUFFIX);
+        Path path = directory.resolve(name + SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(24 + times.length());
+            header.putInt(MAGIC).putInt(VERSION).putLong(docBase).putLong(docEnd);
+            times.writeTo(header);
+            header.flip();
+            long position = writeFully(channel, header);
+            int[] positions = new int[1024];
+            int count = 0;
+            while (terms.hasNext()) {
+                Map.Entry<String, Postings.Builder> term = terms.next();
+                byte[] bytes = term.getKey().getBytes(StandardCharsets.UTF_8);
+                Postings.Builder postings = term.getValue();
+                ByteBuffer entry = ByteBuffer.allocate(2 + bytes.length + postings.size());
+                entry.putShort((short) bytes.length).put(bytes);
+                postings.writeTo(entry);
+                entry.flip();
+                if (position + entry.remaining() > Integer.MAX_VALUE) throw new IOException("index segment too big");
+                if (count == positions.length) positions = Arrays.copyOf(positions, count * 2);
+                positions[count++] = (int) position;
+                position += writeFully(channel, entry);
+            }
+            ByteBuffer footer = ByteBuffer.allocate(count * 4 + 8);
+            for (int i = 0; i < count; i++) footer.putInt(positions[i]);
+            footer.putInt((int) position).putInt(count);
+            footer.flip();
+            writeFully(channel, footer);
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        return open(path);
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int count = buffer.remaining();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        return count;
+    }
+
+    /**
+     * Merges segments of consecutive offset ranges into one. The postings of a term are joined in the order
+     * of the segments, which is the order of their offsets.
+     *
+     * @param directory Index directory
+     * @param sources Segments, oldest first
+     *
+     * @return The merged segment, the sources are left to the caller
+     *
+     * @throws IOException Exception thrown while writing
+     */
+    static IndexSegment merge(Path directory, List<IndexSegment> sources) throws IOException {
+        Times times = new Times();
+        for (IndexSegment source : sources) times.addAll(source.times);
+        return write(directory, sources.get(0).docBase, sources.get(sources.size() - 1).docEnd, times,
+                new MergedTerms(sources));
+    }
+
+    /**
+     * Terms of several segments in order, each with the joined postings of the segments having it.
+     */
+    private static final class MergedTerms implements Iterator<Map.Entry<String, Postings.Builder>> {
+
+        private final PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+        private final long[] block = new long[Postings.BLOCK];
+
+        MergedTerms(List<IndexSegment> sources) {
+            for (int i = 0; i < sources.size(); i++) {
+                Cursor cursor = new Cursor(sources.get(i), i);
+                if (cursor.advance()) cursors.add(cursor);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !cursors.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String, Postings.Builder> next() {
+            if (cursors.isEmpty()) throw new NoSuchElementException();
+            String term = cursors.peek().term;
+            Postings.Builder builder = new Postings.Builder();
+            while (!cursors.isEmpty() && cursors.peek().term.equals(term)) {
+                Cursor cursor = cursors.poll();
+                Postings postings = cursor.segment.postingsAt(cursor.index);
+                for (int b = 0; b < postings.blocks(); b++) {
+                    int size = postings.decode(b, block);
+                    for (int i = 0; i < size; i++) builder.add(block[i]);
+                }
+                if (cursor.advance()) cursors.add(cursor);
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(term, builder);
+        }
+    }
+
+    /**
+     * Position in the terms of one segment, ordered by the term and then by the age of the segment.
+     */
+    private static final class Cursor implements Comparable<Cursor> {
+
+        final IndexSegment segment;
+        final int order;
+        int index = -1;
+        String term;
+
+        Cursor(IndexSegment segment, int order) {
+            this.segment = segment;
+            this.order = order;
+        }
+
+        boolean advance() {
+            if (++index >= segment.termCount) return false;
+            term = segment.term(index);
+            return true;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int compared = term.compareTo(other.term);
+            return compared != 0 ? compared : Integer.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Earliest and latest message time of every {@link IndexSegment#TIME_BLOCK} offsets, counted from
+     * offset zero, so the blocks of consecutive segments line up when they are merged.
+     */
+    static final class Times {
+
+        private long first = -1;
+        private long[] min = new long[4];
+        private long[] max = new long[4];
+        private int count;
+
+        /**
+         * @param offset History offset of a message
+         * @param time Time of the message
+         */
+        void add(long offset, long time) {
+            long block = offset / TIME_BLOCK;
+            if (first < 0) first = block;
+            int index = (int) (block - first);
+            if (index < 0) return;
+            if (index >= min.length) {
+                int capacity = Math.max(index + 1, min.length * 2);
+                min = Arrays.copyOf(min, capacity);
+                max = Arrays.copyOf(max, capacity);
+            }
+            for (; count <= index; count++) {
+                min[count] = Long.MAX_VALUE;
+                max[count] = Long.MIN_VALUE;
+            }
+            min[index] = Math.min(min[index], time);
+            max[index] = Math.max(max[index], time);
+        }
+
+        /**
+         * @param other Times of the offsets after these
+         */
+        void addAll(Times other) {
+            for (int i = 0; i < other.count; i++) {
+                if (other.min[i] > other.max[i]) continue;
+                long offset = (other.first + i) * TIME_BLOCK;
+                add(offset, other.min[i]);
+                add(offset, other.max[i]);
+            }
+        }
+
+        /**
+         * @param from First history offset
+         * @param to Last history offset
+         * @param after Earliest time searched for
+         * @param before Latest time searched for
+         *
+         * @return <code>false</code> if no message of the blocks of the offsets is in the time range
+         */
+        boolean mayHave(long from, long to, long after, long before) {
+            if (first < 0) return false;
+            long low = Math.max(from / TIME_BLOCK - first, 0);
+            long high = Math.min(to / TIME_BLOCK - first, count - 1);
+            for (long i = low; i <= high; i++) {
+                if (max[(int) i] >= after && min[(int) i] <= before) return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return Copy of the times, not changed by the later adds
+         */
+        Times copy() {
+            Times copy = new Times();
+            copy.first = first;
+            copy.min = Arrays.copyOf(min, Math.max(count, 1));
+            copy.max = Arrays.copyOf(max, Math.max(count, 1));
+            copy.count = count;
+            return copy;
+        }
+
+        int length() {
+            return 12 + count * 16;
+        }
+
+        void writeTo(ByteBuffer target) {
+            target.putLong(first).putInt(count);
+            for (int i = 0; i < count; i++) target.putLong(min[i]).putLong(max[i]);
+        }
+
+        static Times read(ByteBuffer source) {
+            Times times = new Times();
+            times.first = source.getLong();
+            times.count = source.getInt();
+            times.min = new long[Math.max(times.count, 1)];
+            times.max = new long[Math.max(times.count, 1)];
+            for (int i = 0; i < times.count; i++) {
+                times.min[i] = source.getLong();
+                times.max[i] = source.getLong();
+            }
+            return times;
+        }
+    }
+}
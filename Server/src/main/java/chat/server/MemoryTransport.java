@@ -0,0 +1,268 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process {@link Transport}. A connection is a pair of bounded byte rings, one per direction:
+ * {@link MemoryTransport#connect()} gives the client end and queues the server end for the listener.
+ * The ends behave like blocking socket channels: a read waits for bytes and returns <code>-1</code>
+ * once the peer has closed, a write waits for room until every byte is in the ring, a write to a closed
+ * peer fails, and an interrupted read or write closes the end. No byte goes through the kernel, so
+ * the benchmarks measure the server alone, and every transport is a server of its own, named
+ * <code>memory-N</code>, so a JVM starts as many as it needs.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Transport
+ * @see ChatEngine.Builder
+ */
+class MemoryTransport implements Transport {
+
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+    private static final long ACCEPT_POLL_MILLIS = 100;
+
+    private final int capacity;
+    private final String name = "memory-" + COUNT.incrementAndGet();
+    private volatile MemoryListener listener;
+
+    MemoryTransport() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Bytes buffered in each direction of a connection
+     */
+    MemoryTransport(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized Listener listen(int port) throws IOException {
+        if (listener != null) throw new BindException(name + " is already listened on");
+        listener = new MemoryListener();
+        return listener;
+    }
+
+    /**
+     * Opens a connection to the server listening on the transport.
+     *
+     * @return Client end of the connection
+     *
+     * @throws IOException Exception thrown when no server listens on the transport
+     */
+    ByteChannel connect() throws IOException {
+        MemoryListener server = listener;
+        if (server == null || !server.isOn) throw new ConnectException("Connection refused: " + name);
+        Ring in = new Ring(capacity);
+        Ring out = new Ring(capacity);
+        End end = new End(in, out);
+        server.pending.add(end);
+        if (!server.isOn) {
+            end.close();
+            throw new ConnectException("Connection refused: " + name);
+        }
+        return new End(out, in);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Queue of the server ends of the connections not accepted yet.
+     */
+    private final class MemoryListener implements Listener {
+
+        final BlockingQueue<End> pending = new LinkedBlockingQueue<>();
+        volatile boolean isOn = true;
+
+        @Override
+        public Connection accept() throws IOException {
+            try {
+                while (isOn) {
+                    End end = pending.poll(ACCEPT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (end != null) return end;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClosedByInterruptException();
+            }
+            throw new AsynchronousCloseException();
+        }
+
+        @Override
+        public String address() {
+            return name;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public void close() {
+            isOn = false;
+            for (End end = pending.poll(); end != null; end = pending.poll()) end.close();
+        }
+    }
+
+    /**
+     * End of a connection, reading one ring and writing the other.
+     */
+    private static final class End implements Connection, ByteChannel {
+
+        private final Ring in;
+        private final Ring out;
+        private volatile boolean isOpen = true;
+
+        End(Ring in, Ring out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public ByteChannel channel() {
+            return this;
+        }
+
+        @Override
+        public InetAddress remoteAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public void keepAlive() {
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws IOException {
+            if (!isOpen) throw new ClosedChannelException();
+            try {
+                return in.read(target);
+            } catch (InterruptedException e) {
+                throw interrupted();
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            if (!isOpen) throw new ClosedChannelException();
+            try {
+                return out.write(source);
+            } catch (InterruptedException e) {
+                throw interrupted();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return isOpen;
+        }
+
+        @Override
+        public void close() {
+            isOpen = false;
+            in.close();
+            out.close();
+        }
+
+        private IOException interrupted() {
+            close();
+            Thread.currentThread().interrupt();
+            return new ClosedByInterruptException();
+        }
+    }
+
+    /**
+     * Bounded byte ring of one direction of a connection. Closed by either end: the reader gets the bytes
+     * left and then the end of stream, the writer gets an exception.
+     */
+    private static final class Ring {
+
+        private final byte[] bytes;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition readable = lock.newCondition();
+        private final Condition writable = lock.newCondition();
+        private int head;
+        private int size;
+        private boolean isClosed;
+
+        Ring(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        int read(ByteBuffer target) throws InterruptedException {
+            if (!target.hasRemaining()) return 0;
+            lock.lock();
+            try {
+                while (size == 0 && !isClosed) readable.await();
+                if (size == 0) return -1;
+                int length = Math.min(target.remaining(), size);
+                int first = Math.min(length, bytes.length - head);
+                target.put(bytes, head, first);
+                if (length > first) target.put(bytes, 0, length - first);
+                head = (head + length) % bytes.length;
+                size -= length;
+                writable.signal();
+                return length;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int write(ByteBuffer source) throws IOException, InterruptedException {
+            int written = 0;
+            lock.lock();
+            try {
+                while (source.hasRemaining()) {
+                    while (size == bytes.length && !isClosed) writable.await();
+                    if (isClosed) throw new IOException("Connection closed by peer");
+                    int length = Math.min(source.remaining(), bytes.length - size);
+                    int tail = (head + size) % bytes.length;
+                    int first = Math.min(length, bytes.length - tail);
+                    source.get(bytes, tail, first);
+                    if (length > first) source.get(bytes, 0, length - first);
+                    size += length;
+                    written += length;
+                    readable.signal();
+                }
+                return written;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                isClosed = true;
+                readable.signalAll();
+                writable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
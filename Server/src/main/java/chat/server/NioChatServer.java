@@ -0,0 +1,305 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Non-blocking server engine. Accepts connections on a {@link ServerSocketChannel} and spreads them
+ * over a fixed set of {@link NioEventLoop} threads, so the number of threads does not grow with
+ * the number of users. Speaks the same wire format as {@link ChatHandler}. File chunks are written into
+ * the {@link Spool} by one spool writer thread, so a slow disk never stalls a loop.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ChatEngine
+ * @see NioEventLoop
+ * @see NioConnection
+ * @see Rooms
+ */
+class NioChatServer extends Thread implements ChatEngine {
+
+    private volatile ServerSocketChannel serverChannel;
+    private Selector selector;
+    private NioEventLoop[] loops;
+    private int nextLoop;
+    private volatile boolean isOn = true;
+    private final Backpressure backpressure;
+    private final WriteBatching batching;
+    private final History history;
+    private final Federation federation;
+    private final Admission admission;
+    private final Heartbeats heartbeats;
+    private final BufferPool buffers;
+    private final Spool spool;
+    private final FanOut fanOut;
+    private final BlockingQueue<Runnable> chunks = new LinkedBlockingQueue<>();
+    private final Thread spoolWriter;
+    private final Rooms rooms;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final String name;
+
+    /**
+     * Binds the server channel on the given port and starts the acceptor and event loop threads.
+     *
+     * @param port Port the server listens on
+     * @param threads Number of event loop threads
+     * @param backpressure Outbound queue limits of the connections
+     * @param batching Write coalescing limits of the connections
+     * @param history Message history, <code>null</code> to keep none
+     * @param federation Federation of nodes, <code>null</code> if the server runs alone
+     * @param admission Connection caps and rate limits of the clients
+     * @param heartbeats Liveness checks of the connections
+     * @param buffers Pool of the buffers the connections read and write through
+     * @param resume Replay rings of the rooms for the reconnecting clients
+     * @param spool Spool of the shared files, <code>null</code> if the file transfers are off
+     * @param fanOut Workers of the broadcasts to big rooms, <code>null</code> to broadcast from the event loops
+     *
+     * @since Version 1.2
+     *
+     * @see ServerSocketChannel
+     * @see Selector
+     */
+    NioChatServer(int port, int threads, Backpressure backpressure, WriteBatching batching, History history,
+                  Federation federation, Admission admission, Heartbeats heartbeats, BufferPool buffers,
+                  Resume resume, Spool spool, FanOut fanOut) {
+        super("nio-acceptor");
+        this.backpressure = backpressure;
+        this.batching = batching;
+        this.history = history;
+        this.federation = federation;
+        this.admission = admission;
+        this.heartbeats = heartbeats;
+        this.buffers = buffers;
+        this.spool = spool;
+        this.fanOut = fanOut;
+        metrics.buffers(buffers);
+        rooms = new Rooms(history, metrics, federation, resume, spool, fanOut);
+        name = String.valueOf(port);
+        spoolWriter = spool == null ? null : new Thread(this::writeChunks, "nio-spool");
+        if (spoolWriter != null) {
+            spoolWriter.setDaemon(true);
+            spoolWriter.start();
+        }
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            metrics.register(name);
+            if (federation != null) federation.start(rooms);
+            serverChannel.configureBlocking(false);
+            selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            loops = new NioEventLoop[Math.max(1, threads)];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop("nio-loop-" + i);
+                loops[i].start();
+            }
+            start();
+        } catch (IOException e) {
+            System.err.println("Error starting server");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for accept readiness and hands every accepted channel to the next event loop.
+     */
+    @Override
+    public void run() {
+        while (isOn) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) accept();
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (isOn) {
+                    System.err.println("Error while accepting socket");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            metrics.accepted();
+            Admission.Ticket ticket = admission.admit(channel.socket().getInetAddress());
+            FlightEvents.accepted(name, channel.socket().getInetAddress(), ticket != null);
+            if (ticket == null) {
+                metrics.rejected();
+                channel.close();
+                continue;
+            }
+            System.out.println("Accepted from " + channel.socket().getInetAddress());
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            NioEventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            NioConnection connection = new NioConnection(this, loop, channel, backpressure, batching, metrics,
+                    ticket, buffers);
+            metrics.opened(connection);
+            connection.setLiveness(heartbeats.watch(connection, connection::evict));
+            loop.register(channel, connection);
+        }
+    }
+
+    /**
+     * Handles a message read from a connection.
+     *
+     * @param connection Connection the message came from
+     * @param frame Message got from user
+     *
+     * @see Rooms#route(Session, Frame)
+     */
+    void onMessage(NioConnection connection, Frame frame) {
+        rooms.route(connection, frame);
+    }
+
+    /**
+     * Queues a file chunk read from a connection to the spool writer. The connection reads nothing
+     * until it is told the chunk is written.
+     *
+     * @param connection Connection the chunk came from
+     * @param chunk CHUNK frame in the read buffer of the connection
+     *
+     * @see Rooms#upload(Session, ByteBuffer)
+     * @see NioConnection#uploaded()
+     */
+    void onChunk(NioConnection connection, ByteBuffer chunk) {
+        if (spoolWriter == null) {
+            connection.uploaded();
+            return;
+        }
+        chunks.add(() -> {
+            try {
+                rooms.upload(connection, chunk);
+            } finally {
+                connection.uploaded();
+            }
+        });
+    }
+
+    /**
+     * Writes the queued chunks until interrupted, then the chunks left in the queue.
+     */
+    private void writeChunks() {
+        while (true) {
+            try {
+                chunks.take().run();
+            } catch (InterruptedException e) {
+                for (Runnable chunk = chunks.poll(); chunk != null; chunk = chunks.poll()) chunk.run();
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Error writing file chunk");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Joins a connection whose wire format is known to the chat.
+     *
+     * @param connection Connection that sent its first byte
+     */
+    void onOpen(NioConnection connection) {
+        rooms.open(connection);
+    }
+
+    void onClose(NioConnection connection) {
+        metrics.closed(connection);
+        if (isOn) {
+            rooms.close(connection);
+            System.out.println(connection.getUsername() + " " + connection.getAddress() + " disconnected");
+        }
+    }
+
+    /**
+     * @return Address the server channel is bound to
+     */
+    @Override
+    public String getAddress() {
+        return serverChannel.socket().getInetAddress().toString();
+    }
+
+    @Override
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the server channel, closes every connection and stops the event loops, then writes the chunks
+     * already read. The stores are closed only once the loops and the spool writer have stopped, so nothing
+     * read before the stop is written after them.
+     */
+    @Override
+    public synchronized void stopServer() {
+        isOn = false;
+        try {
+            selector.close();
+            serverChannel.close();
+            serverChannel = null;
+        } catch (IOException e) {
+            System.err.println("Error closing server socket");
+            e.printStackTrace();
+        }
+        join(this);
+        for (NioEventLoop loop : loops) loop.shutdown();
+        for (NioEventLoop loop : loops) join(loop);
+        if (spoolWriter != null) {
+            spoolWriter.interrupt();
+            join(spoolWriter);
+        }
+        for (NioEventLoop loop : loops) loop.drain();
+        heartbeats.shutdown();
+        metrics.unregister();
+        System.out.println("Outbound queues: " + backpressure);
+        System.out.println("Admission: " + admission + ", " + metrics.getRejectedConnections() + " rejected, "
+                + metrics.getShedMessages() + " shed");
+        buffers.reportLeaks();
+        System.out.println("Buffers: " + buffers + ", " + buffers.allocated() + " allocated, " + buffers.inUse()
+                + " in use, " + buffers.leaked() + " leaked");
+        if (history != null) {
+            history.close();
+            System.out.println("History: " + history);
+        }
+        if (federation != null) {
+            federation.close();
+            System.out.println("Federation: " + federation);
+        }
+        if (spool != null) {
+            spool.close();
+            System.out.println("Files: " + spool);
+        }
+        if (fanOut != null) {
+            fanOut.close();
+            System.out.println("Fan-out: " + fanOut);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.MessageType;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection of {@link NioChatServer}. Cuts the input into frames of the {@link WireFormat} detected
+ * by the first byte: binary frames of {@link BinaryCodec} or legacy {@link DataOutputStream#writeUTF(String)}
+ * strings, drops the frames over the rate limits of its {@link Admission} ticket before decoding them,
+ * and writes queued frames when the channel is ready. Reads and writes go through direct buffers of the
+ * {@link BufferPool}, taken only while there are bytes to cut or to write. The connection joins the chat once
+ * its format is known. File chunks go from the read buffer to the {@link Spool} without a copy, written by
+ * the spool writer of the server off the loop thread. The connection reads nothing until the chunk is written
+ * and, if the chunk goes over the byte limits of the ticket, until the tokens of another chunk are back. The chunks
+ * of a {@link Download} are written while no frame is queued. Reads and writes happen only on the
+ * thread of its {@link NioEventLoop}, {@link NioConnection#send(Frame)} may be called from any thread.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see NioChatServer
+ * @see NioEventLoop
+ */
+class NioConnection implements Session {
+
+    private static final int CHUNKS_PER_FLUSH = 16;
+
+    private final NioChatServer server;
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final InetAddress address;
+    private SelectionKey key;
+    private final FrameReader reader;
+    private final FrameWriter batch;
+    private final OutboundQueue<Frame> outbound;
+    private final Queue<Download> downloads = new ConcurrentLinkedQueue<>();
+    private final WriteBatching batching;
+    private final ServerMetrics metrics;
+    private final Admission.Ticket ticket;
+    private Heartbeats.Liveness liveness;
+    private boolean busy;
+    private boolean suspended;
+    private boolean uploading;
+    private long resumeAt;
+    private long lingerUntil;
+    private final long opened;
+    private long messages;
+    private long received;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean isClosed;
+    private volatile String username;
+    private volatile WireFormat format;
+    private final Set<String> joined = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param server Server the connection belongs to
+     * @param loop Event loop the channel is registered with
+     * @param channel Accepted non-blocking channel
+     * @param backpressure Outbound queue limits of the server
+     * @param batching Write coalescing limits of the server
+     * @param metrics Metrics of the server
+     * @param ticket Limits of the connection given by {@link Admission}
+     * @param pool Buffers of the server
+     */
+    NioConnection(NioChatServer server, NioEventLoop loop, SocketChannel channel, Backpressure backpressure,
+                  WriteBatching batching, ServerMetrics metrics, Admission.Ticket ticket, BufferPool pool) {
+        this.batching = batching;
+        this.metrics = metrics;
+        this.ticket = ticket;
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.outbound = new OutboundQueue<>(backpressure, this);
+        this.reader = new FrameReader(pool);
+        this.batch = new FrameWriter(pool, metrics);
+        this.opened = System.nanoTime();
+        this.address = channel.socket().getInetAddress();
+    }
+
+    /**
+     * Attaches the selection key once the channel is registered.
+     *
+     * @param key Key of the channel in the loop selector
+     */
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Attaches the liveness the connection reports its format and its reads to, before the channel is registered.
+     *
+     * @param liveness Liveness given by {@link Heartbeats}
+     */
+    void setLiveness(Heartbeats.Liveness liveness) {
+        this.liveness = liveness;
+    }
+
+    /**
+     * Closes a connection found dead or idle, on the loop thread.
+     */
+    void evict() {
+        loop.execute(() -> {
+            if (isClosed) return;
+            metrics.evicted();
+            close();
+        });
+    }
+
+    /**
+     * Reads available bytes and passes every complete frame to the server.
+     * The bytes of an incomplete frame are kept for the next read.
+     */
+    void read() {
+        if (suspended) return;
+        try {
+            if (reader.read(channel) < 0) {
+                close();
+                return;
+            }
+            if (format == null && reader.hasRemaining()) {
+                format = WireFormat.detect(reader.first());
+                if (format == WireFormat.TEXT) channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                liveness.detected(format);
+                server.onOpen(this);
+            }
+            frames();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void frames() throws IOException {
+        int length;
+        while ((length = reader.next(format)) > 0) {
+            metrics.received(length);
+            messages++;
+            received += length;
+            if (format == WireFormat.BINARY && reader.type() == MessageType.CHUNK) {
+                liveness.read(MessageType.CHUNK);
+                resumeAt = System.nanoTime() + ticket.charge(length);
+                suspended = true;
+                uploading = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                server.onChunk(this, reader.slice(length));
+                return;
+            }
+            if (!ticket.allow(length)) {
+                liveness.read(null);
+                reader.skip(length);
+                metrics.shed(length);
+                continue;
+            }
+            Frame frame = reader.frame(format, length);
+            liveness.read(frame.type());
+            FlightEvents.received(this, frame, length);
+            server.onMessage(this, frame);
+            if (isClosed) return;
+        }
+        reader.compact();
+    }
+
+    /**
+     * Resumes reading once the spool writer is done with the chunk, on the loop thread. The connection
+     * stays suspended while the chunk is over the byte limits of its ticket.
+     */
+    void uploaded() {
+        loop.execute(() -> {
+            uploading = false;
+            if (isClosed) {
+                reader.release();
+                return;
+            }
+            long wait = resumeAt - System.nanoTime();
+            if (wait > 0) loop.schedule(this::resume, wait);
+            else resume();
+        });
+    }
+
+    private void resume() {
+        if (isClosed) return;
+        suspended = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        try {
+            frames();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Queues the frame and schedules a flush on the loop thread. If the queue is full
+     * the slow consumer policy is applied.
+     *
+     * @param frame Encoded frame shared with the other recipients
+     *
+     * @return <code>false</code> if the connection is closed or is being closed by the slow consumer policy
+     */
+    @Override
+    public boolean send(Frame frame) {
+        if (isClosed || format == null) return false;
+        if (!outbound.offer(frame)) {
+            loop.execute(this::close);
+            return false;
+        }
+        if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+        return true;
+    }
+
+    /**
+     * Copies queued frames into the batch and writes it until the socket buffer is full. Then waits
+     * for write readiness instead of blocking the loop. Frames in the batch are out of the queue,
+     * so the slow consumer policy never drops a partly written one. A busy connection waits
+     * for more frames on a loop timer as long as {@link WriteBatching} allows.
+     * <p>
+     * A chunk of a download is started only when no frame is queued and is finished before any frame.
+     * After {@link NioConnection#CHUNKS_PER_FLUSH} chunks the connection waits for write readiness
+     * again, so the other connections of the loop get their turn.
+     */
+    void flush() {
+        flushScheduled.set(false);
+        if (key == null || !key.isValid()) return;
+        try {
+            int chunks = 0;
+            while (true) {
+                Download download = downloads.peek();
+                if (download != null && download.inChunk()) {
+                    if (!download.write(channel)) {
+                        interest(true);
+                        return;
+                    }
+                    if (download.isDone()) downloads.poll();
+                    chunks++;
+                    continue;
+                }
+                Frame frame;
+                while (!batch.isFull() && (frame = outbound.poll()) != null) batch.add(frame, format);
+                if (batch.isEmpty()) {
+                    if (download == null) {
+                        interest(false);
+                        return;
+                    }
+                    if (chunks >= CHUNKS_PER_FLUSH || !download.write(channel)) {
+                        interest(true);
+                        return;
+                    }
+                    if (download.isDone()) downloads.poll();
+                    chunks++;
+                    continue;
+                }
+                if (!batch.isFull() && download == null && batching.linger(busy, batch.frames(), batch.bytes())) {
+                    if (lingerUntil == 0) {
+                        lingerUntil = System.nanoTime() + batching.nanos;
+                        loop.schedule(this::flush, batching.nanos);
+                    }
+                    if (System.nanoTime() < lingerUntil) {
+                        interest(false);
+                        return;
+                    }
+                }
+                lingerUntil = 0;
+                busy = batch.frames() > 1;
+                if (!batch.write(channel)) {
+                    interest(true);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            metrics.writeError();
+            close();
+        }
+    }
+
+    private void interest(boolean write) {
+        key.interestOps((suspended ? 0 : SelectionKey.OP_READ) | (write ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * Closes the channel and removes the connection from the server. The read buffer of a chunk still
+     * being written is released by {@link NioConnection#uploaded()}.
+     */
+    void close() {
+        if (isClosed) return;
+        isClosed = true;
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        outbound.clear();
+        downloads.clear();
+        if (!uploading) reader.release();
+        batch.release();
+        liveness.cancel();
+        ticket.release();
+        server.onClose(this);
+        FlightEvents.closed(this, address, opened, messages, received, batch.written());
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    @Override
+    public Set<String> getRooms() {
+        return joined;
+    }
+
+    @Override
+    public int backlog() {
+        return outbound.size() + batch.frames();
+    }
+
+    /**
+     * Queues the download and schedules a flush on the loop thread.
+     *
+     * @param file Uploaded file
+     * @param offset Offset the client has the file up to
+     *
+     * @return <code>false</code> if the connection is closed or has {@link Download#MAX_QUEUED} downloads queued
+     */
+    @Override
+    public boolean download(Spool.Entry file, long offset) {
+        if (isClosed || downloads.size() >= Download.MAX_QUEUED) return false;
+        downloads.add(new Download(file, offset, metrics));
+        if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+        return true;
+    }
+
+    InetAddress getAddress() {
+        return address;
+    }
+}
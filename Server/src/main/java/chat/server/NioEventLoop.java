@@ -0,0 +1,169 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop thread of {@link NioChatServer}. Owns a {@link Selector} and handles read and write
+ * readiness for all the connections registered with it. Other threads never touch the selector
+ * directly, they submit tasks with {@link NioEventLoop#execute(Runnable)}. Tasks of the loop thread itself
+ * may be delayed with {@link NioEventLoop#schedule(Runnable, long)}, the selector waits no longer than
+ * the nearest of them and polls without blocking once it is less than a millisecond away.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see NioChatServer
+ * @see NioConnection
+ */
+class NioEventLoop extends Thread {
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Scheduled> scheduled = new PriorityQueue<>();
+    private volatile boolean isOn = true;
+
+    /**
+     * @param name Name of the loop thread
+     *
+     * @throws IOException Exception thrown while opening the selector
+     */
+    NioEventLoop(String name) throws IOException {
+        super(name);
+        selector = Selector.open();
+    }
+
+    /**
+     * Registers an accepted channel with this loop.
+     *
+     * @param channel Non-blocking channel of the connection
+     * @param connection Connection attached to the channel key
+     */
+    void register(SocketChannel channel, NioConnection connection) {
+        execute(() -> {
+            try {
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                e.printStackTrace();
+                connection.close();
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the loop thread.
+     *
+     * @param task Task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop thread after the delay. May be called on the loop thread only.
+     *
+     * @param task Task to run
+     * @param delayNanos Delay in nanoseconds
+     */
+    void schedule(Runnable task, long delayNanos) {
+        scheduled.add(new Scheduled(System.nanoTime() + delayNanos, task));
+    }
+
+    /**
+     * Stops the loop, closing all its connections.
+     */
+    void shutdown() {
+        isOn = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the tasks submitted after the loop has stopped, on the calling thread, once the loop thread is joined.
+     */
+    void drain() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) task.run();
+    }
+
+    /**
+     * Selects ready keys and dispatches them to their connections, then runs submitted tasks.
+     */
+    @Override
+    public void run() {
+        try {
+            while (isOn) {
+                select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) connection.read();
+                    if (key.isValid() && key.isWritable()) connection.flush();
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+                long now = System.nanoTime();
+                while (!scheduled.isEmpty() && scheduled.peek().deadline - now <= 0) scheduled.poll().task.run();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (isOn) e.printStackTrace();
+        } finally {
+            Runnable task;
+            while ((task = tasks.poll()) != null) task.run();
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void select() throws IOException {
+        Scheduled next = scheduled.peek();
+        if (next == null) {
+            selector.select();
+            return;
+        }
+        long millis = (next.deadline - System.nanoTime()) / 1_000_000;
+        if (millis > 0) {
+            selector.select(millis);
+        } else {
+            selector.selectNow();
+        }
+    }
+
+    /**
+     * Task delayed until its deadline.
+     */
+    private static final class Scheduled implements Comparable<Scheduled> {
+
+        final long deadline;
+        final Runnable task;
+
+        Scheduled(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Scheduled other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+}
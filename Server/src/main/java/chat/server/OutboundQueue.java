@@ -0,0 +1,130 @@
+package chat.server;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of frames waiting to be written to one connection. Senders never block on it:
+ * when the queue is full the {@link SlowConsumerPolicy} of the engine decides what to drop,
+ * so one slow client cannot stall delivery to the others. Every action of the policy is recorded
+ * as a {@link FlightEvents.SlowConsumer} event.
+ *
+ * @param <T> Frame type
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Backpressure
+ * @see SlowConsumerPolicy
+ */
+class OutboundQueue<T> {
+
+    private final BlockingQueue<T> queue = new LinkedBlockingQueue<>();
+    private final Backpressure backpressure;
+    private final Session owner;
+
+    /**
+     * @param backpressure Limits and counters of the engine
+     */
+    OutboundQueue(Backpressure backpressure) {
+        this(backpressure, null);
+    }
+
+    /**
+     * @param backpressure Limits and counters of the engine
+     * @param owner Session the queue belongs to, named in the slow consumer events
+     */
+    OutboundQueue(Backpressure backpressure, Session owner) {
+        this.backpressure = backpressure;
+        this.owner = owner;
+    }
+
+    /**
+     * Queues the frame, applying the slow consumer policy if the queue is full.
+     * Concurrent senders may overshoot the capacity by at most one frame each.
+     *
+     * @param frame Frame to send
+     *
+     * @return <code>false</code> if the connection has to be disconnected
+     */
+    boolean offer(T frame) {
+        while (queue.size() >= backpressure.capacity) {
+            switch (backpressure.policy) {
+                case DROP_OLDEST:
+                    if (queue.poll() != null) {
+                        backpressure.droppedOldest.increment();
+                        FlightEvents.slowConsumer(owner, SlowConsumerPolicy.DROP_OLDEST, queue.size());
+                    }
+                    break;
+                case DROP_NEWEST:
+                    backpressure.droppedNewest.increment();
+                    FlightEvents.slowConsumer(owner, SlowConsumerPolicy.DROP_NEWEST, queue.size());
+                    return true;
+                default:
+                    backpressure.disconnected.increment();
+                    FlightEvents.slowConsumer(owner, SlowConsumerPolicy.DISCONNECT, queue.size());
+                    return false;
+            }
+        }
+        queue.add(frame);
+        backpressure.enqueued.increment();
+        return true;
+    }
+
+    /**
+     * @return Next frame, or <code>null</code> if the queue is empty
+     */
+    T poll() {
+        return queue.poll();
+    }
+
+    /**
+     * Waits for the next frame no longer than the timeout.
+     *
+     * @param nanos Timeout in nanoseconds
+     *
+     * @return Next frame, or <code>null</code> if none came in time
+     *
+     * @throws InterruptedException Exception thrown if the writer was interrupted while waiting
+     */
+    T poll(long nanos) throws InterruptedException {
+        return queue.poll(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Waits for the next frame.
+     *
+     * @return Next frame
+     *
+     * @throws InterruptedException Exception thrown if the writer was interrupted while waiting
+     */
+    T take() throws InterruptedException {
+        return queue.take();
+    }
+
+    /**
+     * Puts a marker that wakes a writer waiting in {@link OutboundQueue#take()}, past the limits
+     * and not counted, the writer skips it.
+     *
+     * @param marker Marker known to the writer
+     */
+    void wake(T marker) {
+        queue.add(marker);
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    void clear() {
+        queue.clear();
+    }
+}
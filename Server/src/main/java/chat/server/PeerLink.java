@@ -0,0 +1,178 @@
+package chat.server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outbound link of a {@link Federation} node to one of its peers. A link thread connects, introduces
+ * the node with the federation hello and then writes the queued frames, each one after its sequence
+ * number, up to {@link PeerLink#MAX_BATCH} frames in one gathering write.
+ * <p>
+ * Frames queue while the peer is unreachable, up to the queue capacity, the oldest ones are dropped
+ * beyond it. A lost link is reconnected after a pause doubling from half a second up to 30 seconds.
+ * The frames of a failed write are put back and sent again after reconnecting, the peer drops the ones
+ * it got already by their sequence numbers.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Federation
+ */
+class PeerLink extends Thread {
+
+    static final int MAX_BATCH = 64;
+
+    private static final long MIN_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final Federation federation;
+    private final InetSocketAddress address;
+    private final BlockingDeque<Outgoing> queue;
+    private final LongAdder dropped = new LongAdder();
+    private volatile SocketChannel channel;
+    private volatile boolean isOn = true;
+    private volatile boolean connected;
+
+    /**
+     * @param federation Node the link belongs to
+     * @param address Federation address of the peer, resolved again on every attempt
+     * @param capacity Number of frames queued while the peer is unreachable
+     */
+    PeerLink(Federation federation, InetSocketAddress address, int capacity) {
+        super("peer-" + address.getHostString() + ":" + address.getPort());
+        setDaemon(true);
+        this.federation = federation;
+        this.address = address;
+        queue = new LinkedBlockingDeque<>(capacity);
+    }
+
+    /**
+     * Queues the frame for the peer, never blocks.
+     *
+     * @param sequence Sequence number of the frame at its origin
+     * @param frame Binary frame bytes, shared read-only buffer
+     */
+    void offer(long sequence, ByteBuffer frame) {
+        Outgoing outgoing = new Outgoing(sequence, frame);
+        while (!queue.offerLast(outgoing)) {
+            if (queue.pollFirst() != null) dropped.increment();
+        }
+    }
+
+    /**
+     * Connects and writes until closed, pausing between the attempts.
+     */
+    @Override
+    public void run() {
+        int attempt = 0;
+        while (isOn) {
+            try (SocketChannel c = SocketChannel.open()) {
+                channel = c;
+                if (!isOn) break;
+                c.socket().connect(new InetSocketAddress(address.getHostString(), address.getPort()),
+                        CONNECT_TIMEOUT_MILLIS);
+                c.socket().setTcpNoDelay(true);
+                DataOutputStream hello = new DataOutputStream(Channels.newOutputStream(c));
+                hello.writeUTF(Federation.HELLO);
+                hello.writeUTF(federation.getOrigin());
+                hello.flush();
+                connected = true;
+                attempt = 0;
+                System.out.println("Federation link to " + getName().substring(5) + " is up");
+                write(c);
+            } catch (IOException e) {
+                if (isOn && (connected || attempt == 0)) {
+                    System.err.println("Federation link to " + getName().substring(5) + " is down: " + e);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(backoff(attempt++));
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes the queued frames in batches while the link is up.
+     */
+    private void write(SocketChannel c) throws IOException, InterruptedException {
+        List<Outgoing> batch = new ArrayList<>(MAX_BATCH);
+        while (isOn) {
+            batch.add(queue.takeFirst());
+            queue.drainTo(batch, MAX_BATCH - 1);
+            ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+            for (int i = 0; i < batch.size(); i++) {
+                Outgoing outgoing = batch.get(i);
+                buffers[2 * i] = ByteBuffer.allocate(Long.BYTES).putLong(0, outgoing.sequence);
+                buffers[2 * i + 1] = outgoing.frame.duplicate();
+            }
+            try {
+                while (buffers[buffers.length - 1].hasRemaining()) c.write(buffers);
+            } catch (IOException e) {
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    if (!queue.offerFirst(batch.get(i))) dropped.increment();
+                }
+                throw e;
+            }
+            batch.clear();
+        }
+    }
+
+    private static long backoff(int attempt) {
+        long step = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return step / 2 + ThreadLocalRandom.current().nextLong(step / 2 + 1);
+    }
+
+    /**
+     * Closes the link and stops reconnecting.
+     */
+    void close() {
+        isOn = false;
+        interrupt();
+        SocketChannel c = channel;
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address.getHostString() + ":" + address.getPort() + (connected ? " up" : " down") + ", queued " + queue.size() + ", dropped " + dropped.sum();
+    }
+
+    /**
+     * Frame waiting for the peer.
+     */
+    private static final class Outgoing {
+
+        final long sequence;
+        final ByteBuffer frame;
+
+        Outgoing(long sequence, ByteBuffer frame) {
+            this.sequence = sequence;
+            this.frame = frame;
+        }
+    }
+}
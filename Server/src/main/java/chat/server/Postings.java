@@ -0,0 +1,214 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compressed posting list of a term of the {@link SearchIndex}: the ascending history offsets of
+ * the messages having the term. The offsets are cut into blocks of {@link Postings#BLOCK} and stored
+ * as variable-length deltas, one or two bytes for a term used now and then. A skip table keeps the last
+ * offset of every block, so lists are intersected from their ends by decoding only the blocks
+ * the offsets found may be in, every block once at most:
+ * <pre>
+ * count (4 bytes) | blocks (4 bytes) | blocks x (last offset (8 bytes) | block position (4 bytes)) | deltas
+ * </pre>
+ * The first delta of a block is taken from the last offset of the block before, or from zero.
+ * A list is read in place from a mapped {@link IndexSegment} or from the copy of a {@link Builder}.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see SearchIndex
+ * @see IndexSegment
+ */
+final class Postings {
+
+    static final int BLOCK = 128;
+
+    private static final int SKIP_ENTRY = 12;
+
+    private final ByteBuffer buffer;
+    private final int start;
+    private final int count;
+    private final int blocks;
+    private final int data;
+
+    /**
+     * @param buffer Buffer holding the list
+     * @param start Absolute index of the list
+     */
+    Postings(ByteBuffer buffer, int start) {
+        this.buffer = buffer;
+        this.start = start;
+        count = buffer.getInt(start);
+        blocks = buffer.getInt(start + 4);
+        data = start + 8 + blocks * SKIP_ENTRY;
+    }
+
+    /**
+     * @return Number of offsets
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * @return Number of blocks
+     */
+    int blocks() {
+        return blocks;
+    }
+
+    /**
+     * @param block Block index
+     *
+     * @return Last offset of the block
+     */
+    long last(int block) {
+        return buffer.getLong(start + 8 + block * SKIP_ENTRY);
+    }
+
+    /**
+     * Decodes a block.
+     *
+     * @param block Block index
+     * @param target Array of at least {@link Postings#BLOCK} offsets
+     *
+     * @return Number of offsets decoded, ascending
+     */
+    int decode(int block, long[] target) {
+        int size = Math.min(BLOCK, count - block * BLOCK);
+        int position = blockPosition(block);
+        long value = block == 0 ? 0 : last(block - 1);
+        for (int i = 0; i < size; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            value += delta;
+            target[i] = value;
+        }
+        return size;
+    }
+
+    /**
+     * @return Reader of the list from its end
+     */
+    Backward backward() {
+        return new Backward();
+    }
+
+    private int blockPosition(int block) {
+        return data + buffer.getInt(start + 8 + block * SKIP_ENTRY + 8);
+    }
+
+    /**
+     * Reader of the list from its end, for offsets coming in descending order: it moves from block to block
+     * down the skip table and decodes only the blocks an offset may be in.
+     */
+    final class Backward {
+
+        private final long[] decoded = new long[BLOCK];
+        private int block = blocks - 1;
+        private int decodedBlock = -1;
+        private int size;
+
+        /**
+         * @param offset History offset, not greater than the offset read before
+         *
+         * @return Greatest offset of the list not greater than the offset, <code>-1</code> if there is none
+         */
+        long floor(long offset) {
+            if (block < 0) return -1;
+            while (block > 0 && last(block - 1) >= offset) block--;
+            if (last(block) <= offset) return last(block);
+            if (decodedBlock != block) {
+                size = decode(block, decoded);
+                decodedBlock = block;
+            }
+            int index = Arrays.binarySearch(decoded, 0, size, offset);
+            if (index >= 0) return offset;
+            index = -index - 2;
+            if (index >= 0) return decoded[index];
+            return block > 0 ? last(block - 1) : -1;
+        }
+    }
+
+    /**
+     * Posting list being built in memory, appended in ascending order by one thread at a time.
+     */
+    static final class Builder {
+
+        private byte[] deltas = new byte[16];
+        private int length;
+        private long[] lasts = new long[1];
+        private int[] positions = new int[1];
+        private int count;
+        private long last = -1;
+
+        /**
+         * @param offset History offset, greater than the last one added
+         */
+        void add(long offset) {
+            if (offset <= last) return;
+            int block = count / BLOCK;
+            if (count % BLOCK == 0) {
+                if (block == lasts.length) {
+                    lasts = Arrays.copyOf(lasts, block * 2);
+                    positions = Arrays.copyOf(positions, block * 2);
+                }
+                positions[block] = length;
+            }
+            long delta = offset - Math.max(last, 0);
+            if (length + 10 > deltas.length) deltas = Arrays.copyOf(deltas, Math.max(deltas.length * 2, length + 10));
+            while ((delta & ~0x7FL) != 0) {
+                deltas[length++] = (byte) (delta & 0x7F | 0x80);
+                delta >>>= 7;
+            }
+            deltas[length++] = (byte) delta;
+            lasts[block] = offset;
+            last = offset;
+            count++;
+        }
+
+        int count() {
+            return count;
+        }
+
+        /**
+         * @return Bytes the list takes when written
+         */
+        int size() {
+            int blocks = (count + BLOCK - 1) / BLOCK;
+            return 8 + blocks * SKIP_ENTRY + length;
+        }
+
+        /**
+         * Writes the list in the format read by {@link Postings}.
+         *
+         * @param target Buffer with at least {@link Builder#size()} bytes remaining
+         */
+        void writeTo(ByteBuffer target) {
+            int blocks = (count + BLOCK - 1) / BLOCK;
+            target.putInt(count).putInt(blocks);
+            for (int i = 0; i < blocks; i++) target.putLong(lasts[i]).putInt(positions[i]);
+            target.put(deltas, 0, length);
+        }
+
+        /**
+         * @return Copy of the list, readable while the builder goes on
+         */
+        Postings snapshot() {
+            ByteBuffer copy = ByteBuffer.allocate(size());
+            writeTo(copy);
+            return new Postings(copy, 0);
+        }
+    }
+}
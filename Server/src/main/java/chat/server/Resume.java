@@ -0,0 +1,126 @@
+package chat.server;
+
+import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Session resume for reconnecting clients. Every room keeps its last frames in a {@link Ring} and
+ * stamps each frame relayed to it with the next sequence number of the room. A binary client remembers
+ * the last sequence it got from each room and, when it connects again, sends a RESUME with it before
+ * entering the room, so instead of the history tail it gets just the frames it missed.
+ * If some of them are gone from the ring, or the room was emptied or the server restarted in between,
+ * the client gets a GAP with the current sequence of the room and the history tail, as a new user would.
+ * <p>
+ * The sequences of a room start from the time its ring is made, in microseconds, so they keep growing
+ * across the rings a room gets over time and across server restarts. A ring is made with the room and
+ * dropped with its last member. The ring bounds the memory taken by a room to its last frames, which
+ * are shared with the connections anyway while the room is busy.
+ * Config keys:
+ * <pre>
+ * resume.ring = frames kept per room, 256 by default, 0 turns the resume off
+ * </pre>
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Rooms
+ * @see Frame
+ */
+class Resume {
+
+    static final int DEFAULT_RING = 256;
+
+    final int ring;
+
+    /**
+     * @param ring Frames kept per room, <code>0</code> to keep none and stamp no sequences
+     */
+    Resume(int ring) {
+        this.ring = ring;
+    }
+
+    /**
+     * @param properties Server config
+     *
+     * @return Resume settings read from the config, defaults for the missing keys
+     */
+    static Resume from(Properties properties) {
+        return new Resume(Integer.parseInt(properties.getProperty("resume.ring", String.valueOf(DEFAULT_RING))));
+    }
+
+    /**
+     * @return New ring of a room, <code>null</code> if the resume is off
+     */
+    Ring newRing() {
+        return ring > 0 ? new Ring(ring, System.currentTimeMillis() * 1000) : null;
+    }
+
+    @Override
+    public String toString() {
+        return ring > 0 ? ring + " frames per room" : "off";
+    }
+
+    /**
+     * Last frames of one room and the sequence of the next one. Guarded by its own {@link ReentrantLock},
+     * which {@link Rooms} holds while it stamps a frame and sends it to the members, so the members get
+     * the frames of the room in the order of their sequences. Not a monitor, so a virtual thread
+     * broadcasting to the room is never pinned to its carrier.
+     */
+    static final class Ring {
+
+        final Lock lock = new ReentrantLock();
+
+        private final Frame[] frames;
+        private final long first;
+        private long next;
+
+        /**
+         * @param capacity Frames kept
+         * @param first Sequence of the first frame
+         */
+        Ring(int capacity, long first) {
+            frames = new Frame[capacity];
+            this.first = first;
+            next = first;
+        }
+
+        /**
+         * Stamps the frame with the next sequence and keeps it in place of the oldest one.
+         *
+         * @param frame Frame relayed to the room
+         */
+        void add(Frame frame) {
+            long sequence = next++;
+            frame.stamp(sequence);
+            frames[(int) (sequence % frames.length)] = frame;
+        }
+
+        /**
+         * @return Sequence of the last frame, one less than the first one if there was none
+         */
+        long last() {
+            return next - 1;
+        }
+
+        /**
+         * Sends the frames after the given sequence to the session, if the ring still has all of them.
+         *
+         * @param last Last sequence the session got
+         * @param session Session entering the room again
+         *
+         * @return <code>false</code> if some frames are gone or the sequence is not one of this ring
+         */
+        boolean replay(long last, Session session) {
+            long oldest = Math.max(first, next - frames.length);
+            if (last < oldest - 1 || last >= next) return false;
+            for (long sequence = last + 1; sequence < next; sequence++) {
+                session.send(frames[(int) (sequence % frames.length)]);
+            }
+            return true;
+        }
+    }
+}
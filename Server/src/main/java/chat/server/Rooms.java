@@ -0,0 +1,445 @@
+package chat.server;
+
+import chat.protocol.FileTransfer;
+import chat.protocol.Message;
+import chat.protocol.MessageType;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named rooms and their members. Every session is in the {@link Message#LOBBY}, joins and leaves
+ * other rooms with JOIN and LEAVE frames and sends the rest of the frames to one room.
+ * <p>
+ * Members are kept in a concurrent set per room, the rooms in a {@link ConcurrentHashMap}, so a join
+ * or a leave locks only the map bin of its room, and a broadcast iterates the members of its room
+ * without any lock. A broadcast touches only the members of its room, and a room is removed with
+ * its last member, so rooms without users cost nothing. If the server has a {@link FanOut}, the members
+ * are split between its workers and a broadcast to a big room is queued to all of them at once.
+ * <p>
+ * Chat frames relayed to a room are also stored in the {@link History}, if the server keeps one,
+ * and a user entering a room gets its last messages from there. A SEARCH frame queues a search of the
+ * {@link SearchIndex} of the history, answered to its sender only.
+ * <p>
+ * Every frame relayed to a room is stamped with the next sequence of the room and kept in its
+ * {@link Resume.Ring}. A client that sends a RESUME before entering a room again gets the frames missed
+ * since its last sequence from the ring instead of the history, as described in {@link Resume}.
+ * A broadcast holds the lock of the ring of its room, and so does a session entering the room
+ * until it has got its replay, so the frames of a room reach every member once and in order.
+ * A new session enters the lobby with its first frame other than a RESUME, so the RESUMEs sent first
+ * apply to the lobby too.
+ * <p>
+ * Named users are kept in the {@link Users} registry, a DIRECT frame goes to its recipient only,
+ * found there by the name in the frame header.
+ * <p>
+ * If the server is a node of a {@link Federation}, the frames of the local users are also published
+ * to the peer nodes, and the frames of the peers are delivered to the local members of their rooms.
+ * <p>
+ * Files offered with FILE frames are uploaded into the {@link Spool}, if the server keeps one, and shared
+ * to their room once complete. A FETCH frame queues a {@link Download} on its sender.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Session
+ * @see Frame
+ * @see History
+ * @see Federation
+ * @see Users
+ * @see Resume
+ * @see Spool
+ * @see FanOut
+ */
+class Rooms {
+
+    private static final int MAX_RESUMES = 16;
+
+    private final ConcurrentHashMap<String, Set<Session>> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Resume.Ring> rings = new ConcurrentHashMap<>();
+    private final Set<Session> opening = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<Session, Map<String, Long>> resumes = new ConcurrentHashMap<>();
+    private final Users users = new Users();
+    private final History history;
+    private final ServerMetrics metrics;
+    private final Federation federation;
+    private final Resume resume;
+    private final Spool spool;
+    private final FanOut fanOut;
+
+    Rooms() {
+        this(null, null, null, Resume.from(new Properties()), null, null);
+    }
+
+    /**
+     * @param history History the relayed chat frames are stored in, <code>null</code> to keep none
+     * @param metrics Metrics the broadcast durations are recorded in, <code>null</code> to record none
+     * @param federation Federation the frames of the local users are published to, <code>null</code> if none
+     * @param resume Replay rings of the rooms
+     * @param spool Spool of the files shared in the rooms, <code>null</code> to take no files
+     * @param fanOut Workers the broadcasts to big rooms are split between, <code>null</code> to send every
+     *               broadcast from its thread
+     */
+    Rooms(History history, ServerMetrics metrics, Federation federation, Resume resume, Spool spool, FanOut fanOut) {
+        this.history = history;
+        this.metrics = metrics;
+        this.federation = federation;
+        this.resume = resume;
+        this.spool = spool;
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Takes a newly connected session, it enters the lobby with its first frame other than a RESUME.
+     *
+     * @param session Connected session
+     */
+    void open(Session session) {
+        opening.add(session);
+    }
+
+    /**
+     * Handles a frame got from the session: a join or rename frame names the sender,
+     * JOIN and LEAVE frames enter and leave their room, a DIRECT frame goes to its recipient,
+     * and every other frame is relayed to the members of its room if the sender is one of them.
+     * PRESENCE, PING and GAP frames are made by the server only and are ignored, as are the PONG heartbeats.
+     * A RESUME frame is kept until the sender enters its room. FILE and FETCH frames start the transfers,
+     * CHUNK frames are passed to {@link Rooms#upload(Session, ByteBuffer)} by the connections instead.
+     * A SEARCH frame is answered by the {@link SearchIndex}.
+     *
+     * @param from Session the frame came from
+     * @param frame Frame got from user
+     */
+    void route(Session from, Frame frame) {
+        if (frame.type() == MessageType.RESUME) {
+            resume(from, frame);
+            return;
+        }
+        if (opening.remove(from)) enter(Message.LOBBY, from);
+        String name = frame.username();
+        if (name != null) users.name(from, name);
+        String room = frame.room();
+        switch (frame.type()) {
+            case JOIN:
+                if (!from.getRooms().contains(room)) enter(room, from);
+                broadcast(room, frame);
+                publish(frame);
+                break;
+            case LEAVE:
+                if (from.getRooms().contains(room)) {
+                    broadcast(room, frame);
+                    publish(frame);
+                    leave(room, from);
+                }
+                break;
+            case DIRECT:
+                direct(from, frame);
+                break;
+            case FILE:
+                if (from.getRooms().contains(room)) offer(from, frame);
+                break;
+            case FETCH:
+                fetch(from, frame);
+                break;
+            case SEARCH:
+                search(from, frame);
+                break;
+            case CHUNK:
+            case PRESENCE:
+            case PING:
+            case PONG:
+            case GAP:
+                break;
+            default:
+                if (from.getRooms().contains(room)) {
+                    broadcast(room, frame);
+                    publish(frame);
+                    if (history != null) history.append(frame);
+                }
+        }
+    }
+
+    /**
+     * Queues a search of the history for the sender.
+     *
+     * @param from Sender
+     * @param frame SEARCH frame, its text is the query
+     */
+    private void search(Session from, Frame frame) {
+        SearchIndex index = history == null ? null : history.index();
+        if (index == null) {
+            from.send(Frame.of(Message.system("Search is off")));
+        } else if (!index.search(frame.message().getText(), from)) {
+            from.send(Frame.of(Message.system("Search is busy, try later")));
+        }
+    }
+
+    /**
+     * Delivers a frame got from a peer node to the local members of its room.
+     *
+     * @param frame Frame relayed by the peer
+     */
+    void deliver(Frame frame) {
+        if (frame.type() == MessageType.DIRECT) {
+            Session to = users.find(frame.room());
+            if (to != null) to.send(frame);
+            return;
+        }
+        broadcast(frame.room(), frame);
+        if (history != null) history.append(frame);
+    }
+
+    /**
+     * Sends a private frame to its recipient and back to the sender. A recipient not found here may be
+     * a user of a peer node, so the frame is published to the federation then, and the sender is told
+     * there is no such user only if the server runs alone.
+     *
+     * @param from Sender
+     * @param frame DIRECT frame, its room is the recipient name
+     */
+    private void direct(Session from, Frame frame) {
+        Session to = users.find(frame.room());
+        if (to != null) {
+            to.send(frame);
+        } else if (federation != null) {
+            federation.publish(frame);
+        } else {
+            from.send(Frame.of(Message.system("No user " + frame.room() + " online")));
+            return;
+        }
+        if (to != from) from.send(frame);
+    }
+
+    /**
+     * Takes a file offered to a room, the sender is told where to send it from, or that it is uploaded already.
+     *
+     * @param from Sender, a member of the room
+     * @param frame FILE frame
+     */
+    private void offer(Session from, Frame frame) {
+        if (spool == null || from.getUsername() == null) {
+            from.send(Frame.of(Message.system("File transfers are off")));
+            return;
+        }
+        Message message = frame.message();
+        try {
+            Spool.Entry file = spool.offer(from.getUsername(), frame.room(), FileTransfer.id(message),
+                    FileTransfer.position(message), FileTransfer.fileName(message));
+            from.send(Frame.of(file.isComplete() ? file.announcement() : FileTransfer.fetch(file.id, file.received())));
+        } catch (IOException e) {
+            from.send(Frame.of(Message.system("File not taken: " + e.getMessage())));
+        }
+    }
+
+    /**
+     * Writes a file chunk got from the session into the spool, and shares the file to its room
+     * if the chunk completed it. The chunk is used up before the method returns.
+     *
+     * @param from Session the chunk came from
+     * @param chunk CHUNK frame, from the position to the limit
+     */
+    void upload(Session from, ByteBuffer chunk) {
+        if (spool == null) return;
+        Spool.Entry file = spool.write(from, chunk);
+        if (file != null) broadcast(file.room, Frame.of(file.announcement()));
+    }
+
+    /**
+     * Queues a download of a file on the session.
+     *
+     * @param from Session downloading
+     * @param frame FETCH frame
+     */
+    private void fetch(Session from, Frame frame) {
+        if (spool == null) return;
+        try {
+            Message message = frame.message();
+            long id = FileTransfer.id(message);
+            Spool.Entry file = spool.find(id);
+            if (file == null) {
+                from.send(Frame.of(Message.system("No file " + FileTransfer.format(id))));
+            } else if (!from.download(file, FileTransfer.position(message))) {
+                from.send(Frame.of(Message.system("Too many downloads, try " + file.fileName + " later")));
+            }
+        } catch (ProtocolException e) {
+            // malformed request, nothing to answer
+        }
+    }
+
+    private void publish(Frame frame) {
+        if (federation != null) federation.publish(frame);
+    }
+
+    /**
+     * Keeps the last sequence the session got from a room, until it enters the room.
+     * A session keeps a few of them at most, the rest are ignored.
+     *
+     * @param session Session reconnected
+     * @param frame RESUME frame
+     */
+    private void resume(Session session, Frame frame) {
+        long sequence = frame.message().getSequence();
+        if (sequence <= 0) return;
+        Map<String, Long> points = resumes.computeIfAbsent(session, s -> new ConcurrentHashMap<>());
+        if (points.size() < MAX_RESUMES || points.containsKey(frame.room())) points.put(frame.room(), sequence);
+    }
+
+    /**
+     * Adds the session to the room and sends it the frames it missed there since its RESUME,
+     * or the last stored messages of the room if it sent none or the ring does not have them all.
+     * The stored messages are read before the lock of the ring is taken, only queueing them to the session
+     * is done under it, followed by the frames the ring got after the last of them, so no broadcast
+     * to the room comes in between and none is missed while the history is read.
+     * If the last member drops the room and its ring meanwhile, the session tries again with a new ring.
+     *
+     * @param room Room name
+     * @param session Session entering the room
+     */
+    private void enter(String room, Session session) {
+        Map<String, Long> points = resumes.get(session);
+        Long last = points != null ? points.remove(room) : null;
+        List<Frame> tail = history != null ? history.tail(room) : Collections.<Frame>emptyList();
+        if (resume.ring == 0) {
+            join(room, session, null);
+            replay(tail, session);
+            return;
+        }
+        while (true) {
+            Resume.Ring ring = rings.computeIfAbsent(room, name -> resume.newRing());
+            ring.lock.lock();
+            try {
+                if (!join(room, session, ring)) continue;
+                if (last != null && ring.replay(last, session)) return;
+                if (last != null) session.send(Frame.of(Message.gap(room, ring.last())));
+                replay(tail, session);
+                if (!tail.isEmpty()) ring.replay(tail.get(tail.size() - 1).message().getSequence(), session);
+                return;
+            } finally {
+                ring.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Sends the last stored messages of a room to the session only.
+     *
+     * @param tail Messages read from the history
+     * @param session Session entering the room
+     */
+    private void replay(List<Frame> tail, Session session) {
+        for (Frame frame : tail) {
+            session.send(frame);
+        }
+    }
+
+    /**
+     * Takes a disconnected session out of all its rooms and tells the other members.
+     *
+     * @param session Disconnected session
+     */
+    void close(Session session) {
+        opening.remove(session);
+        resumes.remove(session);
+        users.remove(session);
+        for (String room : session.getRooms()) {
+            leave(room, session);
+            if (session.getUsername() != null) {
+                Frame frame = Frame.of(Message.leave(session.getUsername()).inRoom(room));
+                broadcast(room, frame);
+                publish(frame);
+            }
+        }
+    }
+
+    /**
+     * Stamps the frame with the next sequence of the room and sends it to every member. A broadcast
+     * queued to the fan-out workers is timed up to the queueing only.
+     *
+     * @param room Room name
+     * @param frame Frame to send
+     */
+    void broadcast(String room, Frame frame) {
+        Set<Session> members = rooms.get(room);
+        if (members == null) return;
+        long start = System.nanoTime();
+        FlightEvents.Broadcast event = FlightEvents.broadcast(room, members.size());
+        Resume.Ring ring = rings.get(room);
+        boolean isQueued;
+        if (ring == null) {
+            isQueued = send(members, frame, event);
+        } else {
+            ring.lock.lock();
+            try {
+                ring.add(frame);
+                isQueued = send(members, frame, event);
+            } finally {
+                ring.lock.unlock();
+            }
+        }
+        if (metrics != null) metrics.broadcast(System.nanoTime() - start);
+        if (event != null && !isQueued) event.commit();
+    }
+
+    /**
+     * @return <code>true</code> if the frame is queued to the fan-out workers instead of sent
+     */
+    private boolean send(Set<Session> members, Frame frame, FlightEvents.Broadcast event) {
+        if (fanOut != null) return fanOut.send((FanOut.Members) members, frame, event);
+        if (event != null) {
+            FlightEvents.Sends sends = new FlightEvents.Sends();
+            for (Session member : members) sends.send(member, frame);
+            event.add(sends);
+            return false;
+        }
+        for (Session member : members) {
+            member.send(frame);
+        }
+        return false;
+    }
+
+    /**
+     * @param room Room name
+     *
+     * @return Members of the room, empty if there is no such room
+     */
+    Set<Session> members(String room) {
+        Set<Session> members = rooms.get(room);
+        return members != null ? members : Collections.<Session>emptySet();
+    }
+
+    /**
+     * @param ring Ring of the room the caller holds, <code>null</code> if the resume is off
+     *
+     * @return <code>false</code> if the session is not in, as the room has another ring now
+     */
+    private boolean join(String room, Session session, Resume.Ring ring) {
+        Set<Session> joined = rooms.compute(room, (name, members) -> {
+            if (rings.get(name) != ring) return members;
+            if (members == null) members = fanOut != null ? fanOut.newMembers() : ConcurrentHashMap.newKeySet();
+            members.add(session);
+            return members;
+        });
+        if (joined == null || !joined.contains(session)) return false;
+        session.getRooms().add(room);
+        return true;
+    }
+
+    private void leave(String room, Session session) {
+        session.getRooms().remove(room);
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(session);
+            if (!members.isEmpty()) return members;
+            rings.remove(name);
+            return null;
+        });
+    }
+}
@@ -0,0 +1,652 @@
+package chat.server;
+
+import chat.protocol.Message;
+import chat.protocol.MessageType;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Full-text index of the {@link History}, an inverted index from the terms of the messages to the
+ * {@link Postings} of their history offsets. The terms of a message are the lower case words and numbers
+ * of its text, <code>@name</code> for its sender and <code>#room</code> for its room, <code>#</code> for
+ * the lobby.
+ * <p>
+ * Every message the history writer stores is added to the postings of the segment in memory. Once it
+ * holds <code>search.flush.docs</code> messages it is frozen, still searched, and an indexer thread
+ * writes it to an {@link IndexSegment} file, so the history writer never waits for the disk. The indexer
+ * merges every {@link SearchIndex#MERGE_FACTOR} segments of the same size into one, so a search reads
+ * a few segments however long the history is, and deletes the segments the history no longer has
+ * messages of. At start the messages stored after the last segment written are indexed again.
+ * <p>
+ * A search is a query like <code>from:ann in:team after:2024-05-01 before:2024-06-01 release build</code>,
+ * all its terms must match. It walks the segments from the newest one, skipping the ones whose messages
+ * are all out of the time range, and intersects the posting lists of the query from their ends, every list
+ * leaping to the greatest offset not past the current one of the others, starting with the shortest list,
+ * so it decodes only the blocks of the postings the matching messages may be in. The matching messages are read from the history by their offsets.
+ * Searches run one at a time on a search thread, a search sent while {@link SearchIndex#QUERY_QUEUE}
+ * are waiting is refused.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see History
+ * @see IndexSegment
+ * @see Postings
+ */
+class SearchIndex {
+
+    static final int DEFAULT_FLUSH_DOCS = 100_000;
+    static final int DEFAULT_RESULTS = 50;
+    static final int MERGE_FACTOR = 8;
+    static final int QUERY_QUEUE = 64;
+
+    private static final long MAX_SEGMENT_DOCS = 16L * 1024 * 1024;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int MAX_CHECKED = 10_000;
+    private static final int CATCH_UP_BATCH = 1024;
+    private static final long POLL_MILLIS = 100;
+
+    private final Path directory;
+    private final History history;
+    private final int flushDocs;
+    private final int results;
+    private final Object lock = new Object();
+    private Memory live;
+    private volatile List<Searchable> segments = Collections.emptyList();
+    private final BlockingQueue<Memory> frozen = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Search> searches = new ArrayBlockingQueue<>(QUERY_QUEUE);
+    private final Thread indexer;
+    private final Thread searcher;
+    private volatile boolean isOn = true;
+
+    final LongAdder indexed = new LongAdder();
+    final LongAdder flushes = new LongAdder();
+    final LongAdder merges = new LongAdder();
+    final LongAdder queries = new LongAdder();
+
+    /**
+     * Opens the segments found in the directory, indexes the messages of the history stored after them
+     * and starts the indexer and search threads.
+     *
+     * @param directory Index directory, created if missing
+     * @param history History indexed, its writer not started yet
+     * @param flushDocs Number of messages a segment is written to disk at
+     * @param results Maximum number of messages found by a search
+     *
+     * @throws IOException Exception thrown while opening the segments
+     */
+    SearchIndex(Path directory, History history, int flushDocs, int results) throws IOException {
+        this.directory = directory;
+        this.history = history;
+        this.flushDocs = Math.max(1, flushDocs);
+        this.results = results;
+        Files.createDirectories(directory);
+        List<Searchable> opened = new ArrayList<>(open(directory));
+        segments = Collections.unmodifiableList(opened);
+        long next = opened.isEmpty() ? history.firstOffset() : opened.get(opened.size() - 1).docEnd();
+        live = new Memory(Math.max(next, history.firstOffset()));
+        indexer = new Thread(this::index, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+        catchUp();
+        searcher = new Thread(this::search, "search");
+        searcher.setDaemon(true);
+        searcher.start();
+    }
+
+    /**
+     * Maps the segment files, deletes the unfinished ones and the ones a merge has already covered.
+     */
+    private static List<IndexSegment> open(Path directory) throws IOException {
+        List<IndexSegment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(IndexSegment.TEMP_SUFFIX)) {
+                    Files.delete(file);
+                } else if (name.endsWith(IndexSegment.SUFFIX)) {
+                    try {
+                        found.add(IndexSegment.open(file));
+                    } catch (IOException e) {
+                        System.err.println("Error opening " + file + ", indexing its messages again");
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong(IndexSegment::docBase)
+                .thenComparing(Comparator.comparingLong(IndexSegment::docEnd).reversed()));
+        List<IndexSegment> result = new ArrayList<>();
+        for (IndexSegment segment : found) {
+            if (!result.isEmpty() && segment.docBase() < result.get(result.size() - 1).docEnd()) {
+                segment.delete();
+            } else {
+                result.add(segment);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Indexes the messages stored after the last segment, before the history writer starts.
+     */
+    private void catchUp() {
+        long offset = live.docBase;
+        long end = history.nextOffset();
+        while (offset < end) {
+            List<Frame> frames = history.read(offset, CATCH_UP_BATCH);
+            if (frames.isEmpty()) break;
+            for (Frame frame : frames) add(offset++, frame);
+        }
+    }
+
+    /**
+     * Adds a message stored in the history, called by the history writer in offset order.
+     *
+     * @param offset History offset of the message
+     * @param frame Chat frame
+     */
+    void add(long offset, Frame frame) {
+        Message message = frame.message();
+        Set<String> terms = new HashSet<>();
+        terms(message, terms);
+        synchronized (lock) {
+            live.add(offset, message.getTimestamp(), terms);
+            if (live.docs >= flushDocs) freeze(offset + 1);
+        }
+        indexed.increment();
+    }
+
+    private void freeze(long next) {
+        Memory memory = live;
+        live = new Memory(next);
+        List<Searchable> list = new ArrayList<>(segments);
+        list.add(memory);
+        segments = Collections.unmodifiableList(list);
+        frozen.add(memory);
+    }
+
+    /**
+     * Writes the frozen segments to disk and merges them until closed.
+     */
+    private void index() {
+        while (isOn || !frozen.isEmpty()) {
+            try {
+                Memory memory = frozen.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (memory == null) continue;
+                IndexSegment segment = IndexSegment.write(directory, memory.docBase, memory.docEnd, memory.times,
+                        memory.sorted());
+                replace(Collections.singletonList(memory), segment);
+                flushes.increment();
+                merge();
+                retain();
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Error writing search index");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Merges the oldest run of {@link SearchIndex#MERGE_FACTOR} disk segments of the same size tier, as long as
+     * there is one, so the number of segments grows with the logarithm of the history.
+     */
+    private void merge() throws IOException {
+        for (List<IndexSegment> run = mergeable(); run != null; run = mergeable()) {
+            IndexSegment merged = IndexSegment.merge(directory, run);
+            replace(run, merged);
+            for (IndexSegment segment : run) segment.delete();
+            merges.increment();
+        }
+    }
+
+    private List<IndexSegment> mergeable() {
+        List<IndexSegment> run = new ArrayList<>();
+        for (Searchable searchable : segments) {
+            if (!(searchable instanceof IndexSegment)) break;
+            IndexSegment segment = (IndexSegment) searchable;
+            if (!run.isEmpty() && tier(run.get(0)) != tier(segment)) run.clear();
+            run.add(segment);
+            if (run.size() == MERGE_FACTOR) {
+                long docs = segment.docEnd() - run.get(0).docBase();
+                if (docs <= MAX_SEGMENT_DOCS) return run;
+                run.remove(0);
+            }
+        }
+        return null;
+    }
+
+    private int tier(IndexSegment segment) {
+        int tier = 0;
+        for (long docs = segment.docs() / flushDocs; docs >= MERGE_FACTOR; docs /= MERGE_FACTOR) tier++;
+        return tier;
+    }
+
+    /**
+     * Deletes the segments of the messages the history no longer has.
+     */
+    private void retain() {
+        long first = history.firstOffset();
+        List<IndexSegment> deleted = new ArrayList<>();
+        for (Searchable searchable : segments) {
+            if (searchable instanceof IndexSegment && searchable.docEnd() <= first) deleted.add((IndexSegment) searchable);
+        }
+        if (deleted.isEmpty()) return;
+        replace(deleted, null);
+        for (IndexSegment segment : deleted) segment.delete();
+    }
+
+    private void replace(List<? extends Searchable> old, Searchable segment) {
+        synchronized (lock) {
+            List<Searchable> list = new ArrayList<>(segments);
+            int index = list.indexOf(old.get(0));
+            list.removeAll(old);
+            if (segment != null) list.add(index, segment);
+            segments = Collections.unmodifiableList(list);
+        }
+    }
+
+    /**
+     * Queues a search, never blocks.
+     *
+     * @param query Query as the user typed it
+     * @param from Session the results are sent to
+     *
+     * @return <code>false</code> if too many searches are waiting
+     */
+    boolean search(String query, Session from) {
+        return searches.offer(new Search(query, from));
+    }
+
+    /**
+     * Runs the queued searches until closed.
+     */
+    private void search() {
+        while (isOn) {
+            try {
+                Search search = searches.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (search != null) search.run();
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                System.err.println("Error searching");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Finds the newest messages matching a query.
+     *
+     * @param query Parsed query
+     *
+     * @return Up to <code>search.results</code> frames, newest first
+     */
+    List<Frame> find(Query query) {
+        List<Searchable> list;
+        synchronized (lock) {
+            list = new ArrayList<>(segments);
+            list.add(live.snapshot(query.terms));
+        }
+        List<Frame> found = new ArrayList<>();
+        int[] checked = {0};
+        for (int s = list.size() - 1; s >= 0 && found.size() < results && checked[0] < MAX_CHECKED; s--) {
+            Searchable segment = list.get(s);
+            IndexSegment.Times times = segment.times();
+            if (!times.mayHave(segment.docBase(), segment.docEnd() - 1, query.after, query.before)) continue;
+            Postings[] postings = new Postings[query.terms.size()];
+            boolean isMissing = false;
+            for (int i = 0; i < postings.length && !isMissing; i++) {
+                postings[i] = segment.postings(query.terms.get(i));
+                isMissing = postings[i] == null;
+            }
+            if (isMissing) continue;
+            Arrays.sort(postings, Comparator.comparingInt(Postings::count));
+            if (postings.length == 0) {
+                for (long offset = segment.docEnd() - 1; offset >= segment.docBase(); offset--) {
+                    if (!times.mayHave(offset, offset, query.after, query.before)) {
+                        offset -= offset % IndexSegment.TIME_BLOCK;
+                    } else if (!check(offset, query, found, checked)) {
+                        break;
+                    }
+                }
+                continue;
+            }
+            Postings.Backward[] readers = new Postings.Backward[postings.length];
+            for (int p = 0; p < postings.length; p++) readers[p] = postings[p].backward();
+            long target = segment.docEnd() - 1;
+            while (target >= segment.docBase()) {
+                long offset = readers[0].floor(target);
+                if (offset < 0) break;
+                boolean isMatch = true;
+                for (int p = 1; p < readers.length && isMatch; p++) {
+                    long other = readers[p].floor(offset);
+                    isMatch = other == offset;
+                    target = other;
+                }
+                if (!isMatch) continue;
+                if (query.isTimed() && !times.mayHave(offset, offset, query.after, query.before)) {
+                    target = offset - offset % IndexSegment.TIME_BLOCK - 1;
+                } else if (!check(offset, query, found, checked)) {
+                    break;
+                } else {
+                    target = offset - 1;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads a candidate message from the history and keeps it if its time is in the range.
+     *
+     * @return <code>false</code> if the search has found or checked enough messages
+     */
+    private boolean check(long offset, Query query, List<Frame> found, int[] checked) {
+        checked[0]++;
+        Frame frame = history.frame(offset);
+        if (frame != null) {
+            long time = frame.message().getTimestamp();
+            if (time >= query.after && time <= query.before) found.add(frame);
+        }
+        return found.size() < results && checked[0] < MAX_CHECKED;
+    }
+
+    /**
+     * Writes the segment in memory to disk and stops the threads, called once the history writer has stopped.
+     */
+    void close() {
+        synchronized (lock) {
+            if (live.docs > 0) freeze(live.docEnd);
+        }
+        isOn = false;
+        try {
+            indexer.join();
+            searcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds the terms of a message.
+     *
+     * @param message Chat message
+     * @param terms Set the terms are added to
+     */
+    static void terms(Message message, Collection<String> terms) {
+        words(message.getText(), terms);
+        if (message.getName() != null) terms.add("@" + message.getName().toLowerCase(Locale.ROOT));
+        terms.add("#" + message.getRoom().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Adds the lower case runs of letters and digits of a text, cut to {@link SearchIndex#MAX_TERM_LENGTH} chars.
+     *
+     * @param text Text
+     * @param terms Collection the words are added to
+     */
+    static void words(String text, Collection<String> terms) {
+        int length = text.length();
+        for (int i = 0; i < length; ) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) i++;
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) i++;
+            if (i > start) terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "indexed " + indexed.sum()
+                + ", segments " + segments.size()
+                + ", flushes " + flushes.sum()
+                + ", merges " + merges.sum()
+                + ", searches " + queries.sum();
+    }
+
+    /**
+     * Segment of the index searched, covering the offsets from {@link Searchable#docBase()}
+     * up to {@link Searchable#docEnd()}.
+     */
+    interface Searchable {
+
+        long docBase();
+
+        long docEnd();
+
+        IndexSegment.Times times();
+
+        /**
+         * @param term Term
+         *
+         * @return Postings of the term, <code>null</code> if no message of the segment has it
+         */
+        Postings postings(String term);
+    }
+
+    /**
+     * Segment being built by the history writer. Once frozen it is no longer changed and is searched
+     * without a lock until its file replaces it.
+     */
+    private static final class Memory implements Searchable {
+
+        final long docBase;
+        long docEnd;
+        int docs;
+        final IndexSegment.Times times = new IndexSegment.Times();
+        final Map<String, Postings.Builder> terms = new HashMap<>();
+
+        Memory(long docBase) {
+            this.docBase = docBase;
+            docEnd = docBase;
+        }
+
+        void add(long offset, long time, Set<String> words) {
+            for (String word : words) terms.computeIfAbsent(word, term -> new Postings.Builder()).add(offset);
+            times.add(offset, time);
+            docEnd = offset + 1;
+            docs++;
+        }
+
+        Iterator<Map.Entry<String, Postings.Builder>> sorted() {
+            List<Map.Entry<String, Postings.Builder>> entries = new ArrayList<>(terms.size());
+            for (Map.Entry<String, Postings.Builder> entry : terms.entrySet()) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+            entries.sort(Map.Entry.comparingByKey());
+            return entries.iterator();
+        }
+
+        /**
+         * @param words Terms of a query
+         *
+         * @return Copy of the postings of the terms and of the times, searched out of the lock
+         */
+        Searchable snapshot(List<String> words) {
+            Map<String, Postings> postings = new HashMap<>();
+            for (String word : words) {
+                Postings.Builder builder = terms.get(word);
+                if (builder != null) postings.put(word, builder.snapshot());
+            }
+            return new Snapshot(docBase, docEnd, times.copy(), postings);
+        }
+
+        @Override
+        public long docBase() {
+            return docBase;
+        }
+
+        @Override
+        public long docEnd() {
+            return docEnd;
+        }
+
+        @Override
+        public IndexSegment.Times times() {
+            return times;
+        }
+
+        @Override
+        public Postings postings(String term) {
+            Postings.Builder builder = terms.get(term);
+            return builder == null ? null : builder.snapshot();
+        }
+    }
+
+    /**
+     * Copy of the postings of the segment in memory taken for a search.
+     */
+    private static final class Snapshot implements Searchable {
+
+        private final long docBase;
+        private final long docEnd;
+        private final IndexSegment.Times times;
+        private final Map<String, Postings> postings;
+
+        Snapshot(long docBase, long docEnd, IndexSegment.Times times, Map<String, Postings> postings) {
+            this.docBase = docBase;
+            this.docEnd = docEnd;
+            this.times = times;
+            this.postings = postings;
+        }
+
+        @Override
+        public long docBase() {
+            return docBase;
+        }
+
+        @Override
+        public long docEnd() {
+            return docEnd;
+        }
+
+        @Override
+        public IndexSegment.Times times() {
+            return times;
+        }
+
+        @Override
+        public Postings postings(String term) {
+            return postings.get(term);
+        }
+    }
+
+    /**
+     * Parsed query: the terms all the messages found have, and their time range.
+     */
+    static final class Query {
+
+        final List<String> terms = new ArrayList<>();
+        long after = Long.MIN_VALUE;
+        long before = Long.MAX_VALUE;
+
+        boolean isTimed() {
+            return after != Long.MIN_VALUE || before != Long.MAX_VALUE;
+        }
+
+        /**
+         * @param query Words, <code>from:name</code>, <code>in:room</code> (<code>in:lobby</code> for the lobby),
+         * <code>after:time</code> and <code>before:time</code>, the times in epoch millis, as a date or
+         * as a date and time of the server time zone
+         *
+         * @return Parsed query
+         *
+         * @throws IllegalArgumentException Exception thrown if a time can not be parsed
+         */
+        static Query parse(String query) {
+            Query result = new Query();
+            Set<String> terms = new HashSet<>();
+            for (String token : query.trim().split("\\s+")) {
+                String lower = token.toLowerCase(Locale.ROOT);
+                if (lower.startsWith("from:") && lower.length() > 5) {
+                    terms.add("@" + lower.substring(5));
+                } else if (lower.startsWith("in:")) {
+                    String room = lower.substring(3);
+                    terms.add("#" + (room.equals("lobby") ? Message.LOBBY : room));
+                } else if (lower.startsWith("after:")) {
+                    result.after = time(token.substring(6));
+                } else if (lower.startsWith("before:")) {
+                    result.before = time(token.substring(7));
+                } else {
+                    words(token, terms);
+                }
+            }
+            result.terms.addAll(terms);
+            return result;
+        }
+
+        private static long time(String value) {
+            try {
+                if (value.matches("\\d+")) return Long.parseLong(value);
+                if (value.length() <= 10) return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (DateTimeParseException | NumberFormatException e) {
+                throw new IllegalArgumentException("bad time " + value);
+            }
+        }
+    }
+
+    /**
+     * Search queued by a session, answered with the matching messages, oldest first, and a summary.
+     */
+    private final class Search {
+
+        private final String query;
+        private final Session from;
+
+        Search(String query, Session from) {
+            this.query = query;
+            this.from = from;
+        }
+
+        void run() {
+            long start = System.nanoTime();
+            List<Frame> found;
+            try {
+                found = find(Query.parse(query));
+            } catch (IllegalArgumentException e) {
+                from.send(Frame.of(Message.system("Bad search: " + e.getMessage())));
+                return;
+            }
+            queries.increment();
+            for (int i = found.size() - 1; i >= 0; i--) {
+                Message message = found.get(i).message();
+                from.send(Frame.of(new Message(MessageType.SEARCH, message.getRoom(), message.getTimestamp(),
+                        message.getName(), message.getText())));
+            }
+            from.send(Frame.of(Message.system("Search: " + found.size() + " messages in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms")));
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package chat.server;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live metrics of a server engine: connections, accepts and rejects, messages and bytes in, out and shed, write errors,
+ * evictions, pooled buffers, broadcast durations and outbound backlog. Published as the <code>chat.server:type=ServerMetrics,port=...</code>
+ * MBean, the port being <code>memory-N</code> for a {@link MemoryTransport}, and shown by {@link ServerWindow}.
+ * <p>
+ * Counters are {@link LongAdder}s, the hot paths only add to a striped cell, sums are taken when the
+ * metrics are read. Rates are worked out on reading, from the change of the counters since the previous
+ * reading at least a second ago. The backlog is summed over the open connections on reading, too.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ServerMetricsMBean
+ * @see DurationHistogram
+ */
+class ServerMetrics implements ServerMetricsMBean {
+
+    private final Set<Session> connections = ConcurrentHashMap.newKeySet();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shedMessages = new LongAdder();
+    private final LongAdder shedBytes = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final DurationHistogram broadcasts = new DurationHistogram();
+    private final Rate acceptRate = new Rate(accepted);
+    private final Rate messagesInRate = new Rate(messagesIn);
+    private final Rate messagesOutRate = new Rate(messagesOut);
+    private volatile BufferPool buffers;
+    private ObjectName name;
+
+    void accepted() {
+        accepted.increment();
+    }
+
+    /**
+     * Counts a connection closed at once by {@link Admission}.
+     */
+    void rejected() {
+        rejected.increment();
+    }
+
+    /**
+     * Counts a frame dropped by {@link Admission}.
+     *
+     * @param bytes Length of the frame
+     */
+    void shed(int bytes) {
+        shedMessages.increment();
+        shedBytes.add(bytes);
+    }
+
+    /**
+     * @param buffers Pool of the engine, reported with the metrics
+     */
+    void buffers(BufferPool buffers) {
+        this.buffers = buffers;
+    }
+
+    void opened(Session session) {
+        connections.add(session);
+    }
+
+    void closed(Session session) {
+        connections.remove(session);
+    }
+
+    /**
+     * @param bytes Length of the frame read, prefix or header included
+     */
+    void received(int bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Counts one write to a socket.
+     *
+     * @param frames Number of frames written
+     * @param bytes Number of bytes written
+     */
+    void sent(int frames, long bytes) {
+        if (frames > 0) messagesOut.add(frames);
+        bytesOut.add(bytes);
+        flushes.increment();
+    }
+
+    void writeError() {
+        writeErrors.increment();
+    }
+
+    /**
+     * Counts a connection closed by {@link Heartbeats} as dead or idle.
+     */
+    void evicted() {
+        evicted.increment();
+    }
+
+    /**
+     * @param nanos Time taken to queue a frame to all the members of a room
+     */
+    void broadcast(long nanos) {
+        broadcasts.record(nanos);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server. A failure is reported and ignored,
+     * the server works without JMX then.
+     *
+     * @param port Port of the engine or name of its in-process listener, tells the engines of one JVM apart
+     */
+    void register(String port) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName("chat.server:type=ServerMetrics,port=" + port);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.err.println("Error registering metrics MBean");
+            e.printStackTrace();
+        }
+    }
+
+    void unregister() {
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        name = null;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getShedMessages() {
+        return shedMessages.sum();
+    }
+
+    @Override
+    public long getShedBytes() {
+        return shedBytes.sum();
+    }
+
+    @Override
+    public double getAcceptRate() {
+        return acceptRate.get();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInRate() {
+        return messagesInRate.get();
+    }
+
+    @Override
+    public double getMessagesOutRate() {
+        return messagesOutRate.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    @Override
+    public double getAverageBatchSize() {
+        long count = flushes.sum();
+        return count == 0 ? 0 : (double) messagesOut.sum() / count;
+    }
+
+    @Override
+    public long getWriteErrors() {
+        return writeErrors.sum();
+    }
+
+    @Override
+    public long getEvictedConnections() {
+        return evicted.sum();
+    }
+
+    @Override
+    public int getBuffersInUse() {
+        BufferPool pool = buffers;
+        return pool == null ? 0 : pool.inUse();
+    }
+
+    @Override
+    public long getBuffersAllocated() {
+        BufferPool pool = buffers;
+        return pool == null ? 0 : pool.allocated();
+    }
+
+    @Override
+    public long getLeakedBuffers() {
+        BufferPool pool = buffers;
+        return pool == null ? 0 : pool.leaked();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.count();
+    }
+
+    @Override
+    public double getBroadcastMeanMicros() {
+        return broadcasts.mean() / 1000;
+    }
+
+    @Override
+    public double getBroadcastP50Micros() {
+        return broadcasts.percentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getBroadcastP99Micros() {
+        return broadcasts.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getBroadcastP999Micros() {
+        return broadcasts.percentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public long getOutboundBacklog() {
+        long backlog = 0;
+        for (Session connection : connections) backlog += connection.backlog();
+        return backlog;
+    }
+
+    @Override
+    public int getMaxOutboundBacklog() {
+        int max = 0;
+        for (Session connection : connections) max = Math.max(max, connection.backlog());
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connections %d, accepts %.0f/s, rejected %d, in %.0f msg/s, shed %d, out %.0f msg/s, "
+                        + "bytes in %d, out %d, flushes %d, batch %.1f, write errors %d, evicted %d, "
+                        + "buffers %d allocated %d, broadcast p50 %.0f us, p99 %.0f us, backlog %d",
+                getActiveConnections(), getAcceptRate(), getRejectedConnections(), getMessagesInRate(),
+                getShedMessages(), getMessagesOutRate(),
+                getBytesIn(), getBytesOut(), getFlushes(), getAverageBatchSize(), getWriteErrors(), getEvictedConnections(),
+                getBuffersInUse(), getBuffersAllocated(),
+                getBroadcastP50Micros(), getBroadcastP99Micros(), getOutboundBacklog());
+    }
+
+    /**
+     * Per second rate of a counter between two readings at least a second apart.
+     */
+    private static final class Rate {
+
+        private static final long PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+        private final LongAdder counter;
+        private long lastValue;
+        private long lastTime = System.nanoTime();
+        private double rate;
+
+        Rate(LongAdder counter) {
+            this.counter = counter;
+        }
+
+        synchronized double get() {
+            long now = System.nanoTime();
+            long elapsed = now - lastTime;
+            if (elapsed >= PERIOD) {
+                long value = counter.sum();
+                rate = (value - lastValue) * (double) PERIOD / elapsed;
+                lastValue = value;
+                lastTime = now;
+            }
+            return rate;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package chat.server;
+
+/**
+ * JMX view of {@link ServerMetrics}. Rates are per second, measured since the previous reading at least
+ * a second before, durations are in microseconds.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ServerMetrics
+ */
+public interface ServerMetricsMBean {
+
+    int getActiveConnections();
+
+    long getAcceptedConnections();
+
+    /**
+     * @return Connections closed at once over the connection cap or the accept rate
+     */
+    long getRejectedConnections();
+
+    /**
+     * @return Frames dropped over the message or byte rate limits
+     */
+    long getShedMessages();
+
+    long getShedBytes();
+
+    double getAcceptRate();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInRate();
+
+    double getMessagesOutRate();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * @return Writes to the sockets, one system call each
+     */
+    long getFlushes();
+
+    /**
+     * @return Frames written per write to a socket
+     */
+    double getAverageBatchSize();
+
+    long getWriteErrors();
+
+    /**
+     * @return Connections closed by the heartbeats as dead or idle
+     */
+    long getEvictedConnections();
+
+    /**
+     * @return Pooled socket buffers taken by the connections now
+     */
+    int getBuffersInUse();
+
+    /**
+     * @return Direct buffers the pool allocated since the start
+     */
+    long getBuffersAllocated();
+
+    /**
+     * @return Buffers found collected without release, counted with leak detection only
+     */
+    long getLeakedBuffers();
+
+    long getBroadcasts();
+
+    double getBroadcastMeanMicros();
+
+    double getBroadcastP50Micros();
+
+    double getBroadcastP99Micros();
+
+    double getBroadcastP999Micros();
+
+    /**
+     * @return Frames waiting in the outbound queues of all the connections
+     */
+    long getOutboundBacklog();
+
+    /**
+     * @return Frames waiting in the longest outbound queue
+     */
+    int getMaxOutboundBacklog();
+}
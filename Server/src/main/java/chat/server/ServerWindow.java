@@ -1,3 +1,5 @@
+package chat.server;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
@@ -15,8 +17,9 @@ import java.util.Properties;
  *
  * @since Version 1.1
  *
- * @version 1.1
+ * @version 1.2
  *
+ * @see ChatEngine
  * @see ChatServer
  * @see JFrame
  */
@@ -25,10 +28,12 @@ class ServerWindow extends JFrame {
     private JButton stopButton;
 
     private final JLabel ipLabel;
+    private final JLabel metricsLabel;
+    private final Timer metricsTimer;
     private JTextField portField;
 
     private final Properties properties = new Properties();
-    private ChatServer server;
+    private ChatEngine server;
 
     /**
      * @throws HeadlessException Исключение, вызов которого идет от родителя
@@ -51,6 +56,8 @@ class ServerWindow extends JFrame {
                             System.err.println("Error loading config file");
                         } else {
                             properties.setProperty("port", "8082");
+                            properties.setProperty("engine", "thread");
+                            properties.setProperty("history.dir", "history");
                             properties.store(new FileOutputStream(propFile), "Server configurations");
                         }
                     } catch (IOException e1) {
@@ -90,6 +97,8 @@ class ServerWindow extends JFrame {
         });
 
         ipLabel = new JLabel("");
+        metricsLabel = new JLabel("");
+        metricsTimer = new Timer(1000, e -> showMetrics());
         JLabel portLabel = new JLabel("Port: ");
         portField = new JTextField();
 
@@ -99,13 +108,11 @@ class ServerWindow extends JFrame {
             startButton.setEnabled(false);
             portField.setEnabled(false);
 
-            try {
-                if (server.isAlive()) server.interrupt();
-            } catch (NullPointerException e1) {
-               // e1.printStackTrace();
-            }
-            server = new ChatServer(Integer.parseInt(portField.getText()));
+            if (server != null) server.stopServer();
+            properties.setProperty("port", portField.getText());
+            server = ChatEngine.start(properties);
             ipLabel.setText("Server ip: " + server.getAddress());
+            metricsTimer.start();
             System.out.println("Server started");
         });
 
@@ -114,6 +121,8 @@ class ServerWindow extends JFrame {
             stopButton.setEnabled(false);
             startButton.setEnabled(true);
             portField.setEnabled(true);
+            metricsTimer.stop();
+            metricsLabel.setText("");
 
             try {
                 server.stopServer();
@@ -128,17 +137,41 @@ class ServerWindow extends JFrame {
         getContentPane().setLayout(new GridLayout(3, 2));
 
         add(ipLabel);
-        add(new JLabel(""));
+        add(metricsLabel);
         add(portLabel);
         add(portField);
         add(startButton);
         add(stopButton);
 
-        setSize(500, 200);
+        setSize(600, 240);
         setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
         setVisible(true);
     }
 
+    /**
+     * Показывает текущие метрики сервера рядом с его адресом. Вызывается таймером раз в секунду
+     * в потоке обработки событий.
+     *
+     * @since Version 1.2
+     *
+     * @see ServerMetrics
+     */
+    private void showMetrics() {
+        if (server == null) return;
+        ServerMetrics metrics = server.getMetrics();
+        metricsLabel.setText(String.format("<html>Connections: %d, accepts %.0f/s, rejected %d<br>"
+                        + "Messages in %.0f/s, out %.0f/s, shed %d<br>"
+                        + "Bytes in %d, out %d, %.1f messages per flush<br>"
+                        + "Broadcast p50 %.0f us, p99 %.0f us<br>"
+                        + "Backlog %d (max %d), write errors %d, evicted %d</html>",
+                metrics.getActiveConnections(), metrics.getAcceptRate(), metrics.getRejectedConnections(),
+                metrics.getMessagesInRate(), metrics.getMessagesOutRate(), metrics.getShedMessages(),
+                metrics.getBytesIn(), metrics.getBytesOut(), metrics.getAverageBatchSize(),
+                metrics.getBroadcastP50Micros(), metrics.getBroadcastP99Micros(),
+                metrics.getOutboundBacklog(), metrics.getMaxOutboundBacklog(), metrics.getWriteErrors(),
+                metrics.getEvictedConnections()));
+    }
+
     /**
      * Входная точка работы серверной программы.
      *
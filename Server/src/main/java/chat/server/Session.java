@@ -0,0 +1,56 @@
+package chat.server;
+
+import java.util.Set;
+
+/**
+ * Connected user as seen by {@link Rooms}, independent of the server engine.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Rooms
+ * @see ChatHandler
+ * @see NioConnection
+ */
+interface Session {
+
+    /**
+     * Queues the frame for delivery, never blocks.
+     *
+     * @param frame Frame to deliver
+     *
+     * @return <code>false</code> if the frame was not queued: the session is closed or has just been disconnected
+     * by the slow consumer policy
+     */
+    boolean send(Frame frame);
+
+    String getUsername();
+
+    void setUsername(String username);
+
+    /**
+     * @return Names of the rooms the user is in, kept up to date by {@link Rooms}
+     */
+    Set<String> getRooms();
+
+    /**
+     * @return Number of frames queued and not written yet
+     */
+    int backlog();
+
+    /**
+     * Queues a file for delivery in chunks, written whenever no frame is waiting. Never blocks.
+     * A session that can not take files drops it.
+     *
+     * @param file Uploaded file
+     * @param offset Offset the client has the file up to
+     *
+     * @return <code>false</code> if the session takes no more downloads now
+     */
+    default boolean download(Spool.Entry file, long offset) {
+        return false;
+    }
+}
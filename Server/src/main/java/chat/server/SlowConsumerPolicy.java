@@ -0,0 +1,40 @@
+package chat.server;
+
+/**
+ * What to do with a frame sent to a connection whose outbound queue is full.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see OutboundQueue
+ * @see Backpressure
+ */
+enum SlowConsumerPolicy {
+
+    /**
+     * Drops the oldest queued frame to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drops the new frame, the queued ones are kept.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Disconnects the slow client.
+     */
+    DISCONNECT;
+
+    /**
+     * @param name Policy name as written in the config, case insensitive
+     *
+     * @return Policy with the given name
+     */
+    static SlowConsumerPolicy parse(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,329 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.FileTransfer;
+import chat.protocol.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spool directory of the files shared in the chat, as described in {@link FileTransfer}. An uploaded chunk
+ * is written to its file straight from the pooled read buffer of the connection, and a download is sent
+ * from the file to the socket with {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so
+ * the bytes of a file never pass through the heap on the server. A file is named by its transfer id and
+ * shared to its room once all its bytes are in. Files stay on the node they were uploaded to.
+ * <p>
+ * The spool lives as long as the server: the files are deleted when the server stops, and the files left
+ * by a server that did not stop cleanly are deleted at start. An upload not written to for ten minutes
+ * is dropped when a new one needs its room in the quota.
+ * Configured by the server config keys:
+ * <pre>
+ * files.dir   = spool directory, spool by default, empty to turn the transfers off
+ * files.max   = largest file in bytes, 1 GiB by default
+ * files.quota = bytes of all the files, 10 GiB by default
+ * </pre>
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Download
+ * @see Rooms
+ * @see FrameReader
+ */
+class Spool {
+
+    static final long DEFAULT_MAX_FILE = 1L << 30;
+    static final long DEFAULT_QUOTA = 10L << 30;
+
+    private static final long ABANDONED_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    final Path dir;
+    final long maxFile;
+    final long quota;
+
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+
+    /**
+     * @param dir Spool directory, made if missing
+     * @param maxFile Largest file in bytes
+     * @param quota Bytes of all the files
+     *
+     * @throws IOException Exception thrown if the directory can not be made or cleaned
+     */
+    Spool(Path dir, long maxFile, long quota) throws IOException {
+        this.dir = dir;
+        this.maxFile = maxFile;
+        this.quota = quota;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.file")) {
+            for (Path file : files) Files.delete(file);
+        }
+    }
+
+    /**
+     * @param properties Server config
+     *
+     * @return Spool configured by the config, or <code>null</code> if <code>files.dir</code> is empty
+     * or the directory can not be used
+     */
+    static Spool from(Properties properties) {
+        String dir = properties.getProperty("files.dir", "spool");
+        if (dir.isEmpty()) return null;
+        try {
+            return new Spool(Paths.get(dir),
+                    Long.parseLong(properties.getProperty("files.max", String.valueOf(DEFAULT_MAX_FILE))),
+                    Long.parseLong(properties.getProperty("files.quota", String.valueOf(DEFAULT_QUOTA))));
+        } catch (IOException e) {
+            System.err.println("Error opening file spool, running without file transfers");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Takes an offered file, or finds the one offered before under the same id by the same user.
+     *
+     * @param sender Name of the user offering the file
+     * @param room Room the file is for
+     * @param id Transfer id
+     * @param size File size in bytes
+     * @param fileName File name
+     *
+     * @return Spooled file, complete if it was uploaded before
+     *
+     * @throws IOException Exception thrown if the file is not accepted, the message tells the user why
+     */
+    Entry offer(String sender, String room, long id, long size, String fileName) throws IOException {
+        Entry entry = entries.get(id);
+        if (entry != null) {
+            if (!entry.sender.equals(sender) || entry.size != size) throw new IOException("transfer id in use");
+            return entry;
+        }
+        if (size == 0 || size > maxFile) throw new IOException("files up to " + maxFile + " bytes are taken");
+        if (!reserve(size)) {
+            dropAbandoned();
+            if (!reserve(size)) throw new IOException("the spool is full");
+        }
+        entry = new Entry(id, sender, room, size, fileName, dir.resolve(FileTransfer.format(id) + ".file"));
+        if (entries.putIfAbsent(id, entry) != null) {
+            reserved.addAndGet(-size);
+            throw new IOException("transfer id in use");
+        }
+        try {
+            entry.open();
+        } catch (IOException e) {
+            remove(entry);
+            throw new IOException("the file can not be stored");
+        }
+        return entry;
+    }
+
+    private boolean reserve(long size) {
+        long current;
+        do {
+            current = reserved.get();
+            if (current + size > quota) return false;
+        } while (!reserved.compareAndSet(current, current + size));
+        return true;
+    }
+
+    private void dropAbandoned() {
+        long now = System.nanoTime();
+        for (Entry entry : entries.values()) {
+            if (entry.isAbandoned(now)) remove(entry);
+        }
+    }
+
+    /**
+     * Writes an uploaded chunk to its file. A chunk of an unknown or finished transfer, or of another
+     * user, is dropped. A chunk out of order is dropped too, and the sender is asked once to send
+     * the file from the offset it is written up to.
+     *
+     * @param from Session the chunk came from
+     * @param chunk CHUNK frame, from the position to the limit
+     *
+     * @return The file if this chunk completed it, otherwise <code>null</code>
+     */
+    Entry write(Session from, ByteBuffer chunk) {
+        int start = chunk.position();
+        Entry entry = entries.get(BinaryCodec.chunkId(chunk, start));
+        if (entry == null || !entry.sender.equals(from.getUsername())) return null;
+        ByteBuffer data = chunk.duplicate();
+        data.position(BinaryCodec.chunkData(chunk, start));
+        try {
+            if (!entry.write(BinaryCodec.chunkOffset(chunk, start), data, from)) return null;
+        } catch (IOException e) {
+            System.err.println("Error writing " + entry.path);
+            e.printStackTrace();
+            remove(entry);
+            from.send(Frame.of(Message.system("Upload of " + entry.fileName + " failed")));
+            return null;
+        }
+        stored.addAndGet(entry.size);
+        return entry;
+    }
+
+    /**
+     * @param id Transfer id
+     *
+     * @return File uploaded completely under the id, <code>null</code> if there is none
+     */
+    Entry find(long id) {
+        Entry entry = entries.get(id);
+        return entry != null && entry.isComplete() ? entry : null;
+    }
+
+    private void remove(Entry entry) {
+        if (!entries.remove(entry.id, entry)) return;
+        reserved.addAndGet(-entry.size);
+        entry.delete();
+    }
+
+    /**
+     * Closes and deletes all the files.
+     */
+    void close() {
+        for (Entry entry : entries.values()) remove(entry);
+    }
+
+    @Override
+    public String toString() {
+        return dir + ", " + entries.size() + " files, " + reserved.get() + " of " + quota + " bytes reserved, "
+                + stored.get() + " bytes stored since start";
+    }
+
+    /**
+     * One spooled file: written by its uploader in order, then read by any number of downloads at once.
+     */
+    static final class Entry {
+
+        final long id;
+        final String sender;
+        final String room;
+        final long size;
+        final String fileName;
+        final Path path;
+        private FileChannel channel;
+        private long received;
+        private long lastWrite = System.nanoTime();
+        private boolean refetched;
+        private volatile boolean complete;
+
+        private Entry(long id, String sender, String room, long size, String fileName, Path path) {
+            this.id = id;
+            this.sender = sender;
+            this.room = room;
+            this.size = size;
+            this.fileName = fileName;
+            this.path = path;
+        }
+
+        private synchronized void open() throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * @return <code>true</code> if the chunk completed the file
+         */
+        private synchronized boolean write(long offset, ByteBuffer data, Session from) throws IOException {
+            if (complete || channel == null) return false;
+            if (offset != received || received + data.remaining() > size) {
+                if (!refetched) from.send(Frame.of(FileTransfer.fetch(id, received)));
+                refetched = true;
+                return false;
+            }
+            while (data.hasRemaining()) received += channel.write(data, received);
+            refetched = false;
+            lastWrite = System.nanoTime();
+            if (received < size) return false;
+            complete = true;
+            return true;
+        }
+
+        private synchronized boolean isAbandoned(long now) {
+            return !complete && now - lastWrite > ABANDONED_NANOS;
+        }
+
+        /**
+         * @return Bytes written so far
+         */
+        synchronized long received() {
+            return received;
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * @return FILE message sharing the file to its room
+         */
+        Message announcement() {
+            return FileTransfer.file(sender, room, id, size, fileName);
+        }
+
+        /**
+         * Sends file bytes to a socket with no copy through the heap, the file is only read, so any number
+         * of downloads may do it at once.
+         *
+         * @param position Offset in the file
+         * @param count Number of bytes to send at most
+         * @param target Channel of the connection
+         *
+         * @return Number of bytes sent
+         *
+         * @throws IOException Exception thrown by the file or the socket
+         */
+        long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            FileChannel file;
+            synchronized (this) {
+                file = channel;
+            }
+            if (file == null) throw new IOException(fileName + " is deleted");
+            return file.transferTo(position, count, target);
+        }
+
+        /**
+         * @return Bytes of the file on disk
+         *
+         * @throws IOException Exception thrown if the file is deleted or can not be read
+         */
+        long length() throws IOException {
+            FileChannel file;
+            synchronized (this) {
+                file = channel;
+            }
+            if (file == null) throw new IOException(fileName + " is deleted");
+            return file.size();
+        }
+
+        private synchronized void delete() {
+            try {
+                if (channel != null) channel.close();
+                channel = null;
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.println("Error deleting " + path);
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * {@link Transport} over TCP. Listens on a {@link ServerSocketChannel} and hands out the blocking socket
+ * channels it accepts, with Nagle's algorithm turned off.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Transport
+ * @see ChatServer
+ */
+class TcpTransport implements Transport {
+
+    @Override
+    public Listener listen(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        return new Listener() {
+            @Override
+            public Connection accept() throws IOException {
+                SocketChannel channel = serverChannel.accept();
+                channel.socket().setTcpNoDelay(true);
+                return new SocketConnection(channel);
+            }
+
+            @Override
+            public String address() {
+                return serverChannel.socket().getInetAddress().toString();
+            }
+
+            @Override
+            public String name() {
+                return String.valueOf(serverChannel.socket().getLocalPort());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverChannel.close();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "tcp";
+    }
+
+    /**
+     * Accepted socket channel.
+     */
+    private static final class SocketConnection implements Connection {
+
+        private final SocketChannel channel;
+
+        SocketConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public InetAddress remoteAddress() {
+            return channel.socket().getInetAddress();
+        }
+
+        @Override
+        public void keepAlive() throws IOException {
+            channel.socket().setKeepAlive(true);
+        }
+
+        @Override
+        public ByteChannel channel() {
+            return channel;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
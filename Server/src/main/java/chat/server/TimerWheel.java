@@ -0,0 +1,143 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel: a ring of slots one tick long each, a timeout is put into the slot of its deadline
+ * and the number of whole turns of the ring left before it. Scheduling and cancelling cost constant time
+ * whatever the number of timeouts, and a tick only looks at the timeouts of one slot, so a timeout per
+ * connection stays cheap with hundreds of thousands of connections. Deadlines are rounded up to a tick.
+ * <p>
+ * Timeouts are scheduled from any thread into a queue, the wheel thread moves them into the slots
+ * on every tick and runs the expired ones. Tasks run on the wheel thread and must be short.
+ * A cancelled timeout stays in its slot until the tick reaches it.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Heartbeats
+ */
+class TimerWheel extends Thread {
+
+    private final long tickNanos;
+    private final List<Timeout>[] slots;
+    private final int mask;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    private long tick;
+    private volatile boolean isOn = true;
+
+    /**
+     * @param name Name of the wheel thread
+     * @param tickMillis Length of a tick
+     * @param slots Number of slots, rounded up to a power of two
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(String name, long tickMillis, int slots) {
+        super(name);
+        setDaemon(true);
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.slots = new List[size];
+        for (int i = 0; i < size; i++) this.slots[i] = new ArrayList<>();
+        mask = size - 1;
+    }
+
+    /**
+     * Runs the task after the delay. May be called on any thread.
+     *
+     * @param task Task to run on the wheel thread
+     * @param delayNanos Delay in nanoseconds
+     *
+     * @return Timeout of the task
+     */
+    Timeout schedule(Runnable task, long delayNanos) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, delayNanos));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel, the timeouts left never run.
+     */
+    void shutdown() {
+        isOn = false;
+        interrupt();
+    }
+
+    /**
+     * Sleeps to every tick, moves the scheduled timeouts into their slots and runs the expired ones
+     * of the slot of the tick.
+     */
+    @Override
+    public void run() {
+        try {
+            while (isOn) {
+                long deadline = start + (tick + 1) * tickNanos;
+                long sleep = deadline - System.nanoTime();
+                if (sleep > 0) TimeUnit.NANOSECONDS.sleep(sleep);
+                transfer();
+                expire(slots[(int) (tick & mask)]);
+                tick++;
+            }
+        } catch (InterruptedException e) {
+            // wheel stopped
+        }
+    }
+
+    private void transfer() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.cancelled) continue;
+            long ticks = Math.max(tick, (timeout.deadline - start + tickNanos - 1) / tickNanos - 1);
+            timeout.rounds = (ticks - tick) / slots.length;
+            slots[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> slot) {
+        int kept = 0;
+        for (int i = 0; i < slot.size(); i++) {
+            Timeout timeout = slot.get(i);
+            if (timeout.cancelled) continue;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                slot.set(kept++, timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        slot.subList(kept, slot.size()).clear();
+    }
+
+    /**
+     * Task waiting in the wheel.
+     */
+    static final class Timeout {
+
+        final Runnable task;
+        final long deadline;
+        long rounds;
+        volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
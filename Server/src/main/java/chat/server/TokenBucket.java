@@ -0,0 +1,101 @@
+package chat.server;
+
+/**
+ * Token bucket limiting a rate of messages and a rate of bytes at once. Both kinds of tokens are
+ * refilled lazily on every take, from the time passed since the previous one, up to the burst of
+ * the bucket. A message is let through only if a message token and its size in byte tokens are there.
+ * A full byte bucket lets any message through, going into debt, so a message larger than the burst
+ * is delayed, never blocked for good. Bulk data is charged to the byte tokens alone and always taken,
+ * its sender pauses until the tokens of as much data are back, so a message sent between two pieces
+ * of the bulk data is not dropped for the bytes of the pieces.
+ * <p>
+ * A zero rate does not limit its kind of tokens.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Admission
+ */
+final class TokenBucket {
+
+    private static final double NANOS = 1_000_000_000.0;
+
+    private final double messageRate;
+    private final double byteRate;
+    private final double messageBurst;
+    private final double byteBurst;
+    private double messages;
+    private double bytes;
+    private long refilled;
+
+    /**
+     * @param messagesPerSecond Messages let through per second, <code>0</code> for no limit
+     * @param bytesPerSecond Bytes let through per second, <code>0</code> for no limit
+     * @param burstSeconds Seconds of the rates the bucket holds
+     */
+    TokenBucket(double messagesPerSecond, double bytesPerSecond, double burstSeconds) {
+        messageRate = messagesPerSecond / NANOS;
+        byteRate = bytesPerSecond / NANOS;
+        messageBurst = messagesPerSecond > 0 ? Math.max(1, messagesPerSecond * burstSeconds) : Double.POSITIVE_INFINITY;
+        byteBurst = bytesPerSecond > 0 ? Math.max(1, bytesPerSecond * burstSeconds) : Double.POSITIVE_INFINITY;
+        messages = messageBurst;
+        bytes = byteBurst;
+        refilled = System.nanoTime();
+    }
+
+    /**
+     * Takes the tokens of one message if there are enough.
+     *
+     * @param size Message size in bytes
+     * @param now Current {@link System#nanoTime()}
+     *
+     * @return <code>true</code> if the message is let through
+     */
+    synchronized boolean tryTake(int size, long now) {
+        refill(now);
+        if (messages < 1 || (bytes < size && bytes < byteBurst)) return false;
+        messages -= 1;
+        bytes -= size;
+        return true;
+    }
+
+    /**
+     * Puts back the tokens of a message taken by {@link TokenBucket#tryTake(int, long)} and refused
+     * by another bucket after all.
+     *
+     * @param size Message size in bytes
+     */
+    synchronized void putBack(int size) {
+        messages = Math.min(messageBurst, messages + 1);
+        bytes = Math.min(byteBurst, bytes + size);
+    }
+
+    /**
+     * Takes the byte tokens of bulk data, going into debt if there are not enough.
+     *
+     * @param size Data size in bytes
+     * @param now Current {@link System#nanoTime()}
+     *
+     * @return Nanoseconds until the bucket holds the tokens of as much data again, or is full,
+     * <code>0</code> if it does already
+     */
+    synchronized long charge(int size, long now) {
+        if (byteRate == 0) return 0;
+        refill(now);
+        bytes -= size;
+        double missing = Math.min(size, byteBurst) - bytes;
+        return missing > 0 ? (long) Math.ceil(missing / byteRate) : 0;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - refilled;
+        if (elapsed > 0) {
+            messages = Math.min(messageBurst, messages + elapsed * messageRate);
+            bytes = Math.min(byteBurst, bytes + elapsed * byteRate);
+            refilled = now;
+        }
+    }
+}
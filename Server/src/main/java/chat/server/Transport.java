@@ -0,0 +1,85 @@
+package chat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.ByteChannel;
+
+/**
+ * Way the connections of a {@link ChatServer} reach it. {@link TcpTransport} listens on a TCP port,
+ * {@link MemoryTransport} pairs in-process buffers, so tests and benchmarks talk to a server with
+ * no socket and no kernel in between, and a JVM runs as many servers as it needs.
+ * A connection gives a blocking byte channel: {@link ChatHandler} reads and writes it as it did the socket channel,
+ * and over TCP it is the socket channel itself, so file chunks still go out with <code>sendfile</code>.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see TcpTransport
+ * @see MemoryTransport
+ * @see ChatServer
+ */
+interface Transport {
+
+    /**
+     * Starts listening for connections.
+     *
+     * @param port Port to listen on, ignored by the transports without ports
+     *
+     * @return Listener of the connections
+     *
+     * @throws IOException Exception thrown when the transport can not listen
+     */
+    Listener listen(int port) throws IOException;
+
+    /**
+     * Source of the connections of one server.
+     */
+    interface Listener extends Closeable {
+
+        /**
+         * Waits for the next connection.
+         *
+         * @return Accepted connection
+         *
+         * @throws IOException Exception thrown when accepting fails or the listener is closed
+         */
+        Connection accept() throws IOException;
+
+        /**
+         * @return Address the listener is bound to
+         */
+        String address();
+
+        /**
+         * @return Name of the listener unique in the JVM, the metrics of the server are published under it
+         */
+        String name();
+    }
+
+    /**
+     * Accepted connection, read by the handler thread and written by its writer.
+     */
+    interface Connection extends Closeable {
+
+        /**
+         * @return Blocking channel of the connection
+         */
+        ByteChannel channel();
+
+        /**
+         * @return Address of the peer
+         */
+        InetAddress remoteAddress();
+
+        /**
+         * Turns on the keep-alive probes of the connection, if the transport has any.
+         *
+         * @throws IOException Exception thrown by the socket
+         */
+        void keepAlive() throws IOException;
+    }
+}
@@ -0,0 +1,73 @@
+package chat.server;
+
+import chat.protocol.Message;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the named users of the server, looked up by name in constant time for private messages.
+ * A session is registered when a join or rename frame names it and removed when it disconnects.
+ * <p>
+ * Presence is kept by the frames the users see anyway: every user is in the lobby, so the lobby JOIN,
+ * LEAVE and RENAME frames relayed by {@link Rooms} are the presence deltas. A session named for the first
+ * time gets one PRESENCE frame with the names of all the users online instead of a frame per user.
+ * On a {@link Federation} node the snapshot lists the users of this node, the users of the peers
+ * show up by the lobby frames the peers relay.
+ * <p>
+ * Names are not reserved: a user taking the name of another one takes over the private messages
+ * sent to it, and the registry forgets a name only if it still belongs to the leaving session.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Rooms
+ * @see Session
+ */
+class Users {
+
+    private final ConcurrentHashMap<String, Session> byName = new ConcurrentHashMap<>();
+
+    /**
+     * Gives the session a name, sending the presence snapshot if the session had none.
+     *
+     * @param session Session named by a frame
+     * @param name Name of the user
+     */
+    void name(Session session, String name) {
+        String old = session.getUsername();
+        if (name.equals(old)) return;
+        session.setUsername(name);
+        if (old != null) byName.remove(old, session);
+        byName.put(name, session);
+        if (old == null) session.send(Frame.of(Message.presence(byName.keySet())));
+    }
+
+    /**
+     * @param name Name of the user
+     *
+     * @return Session of the user, <code>null</code> if no user of that name is online
+     */
+    Session find(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Forgets a disconnected session.
+     *
+     * @param session Disconnected session
+     */
+    void remove(Session session) {
+        String name = session.getUsername();
+        if (name != null) byName.remove(name, session);
+    }
+
+    /**
+     * @return Number of named users online
+     */
+    int size() {
+        return byName.size();
+    }
+}
@@ -0,0 +1,37 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+
+/**
+ * Wire format spoken by a connection. Detected by the first byte the client sends.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Frame
+ * @see BinaryCodec
+ */
+enum WireFormat {
+
+    /**
+     * Legacy <code>writeUTF</code> strings, <code>name#text#date</code>.
+     */
+    TEXT,
+
+    /**
+     * Typed binary frames of {@link BinaryCodec}.
+     */
+    BINARY;
+
+    /**
+     * @param first First byte sent by the client
+     *
+     * @return Format of the connection
+     */
+    static WireFormat detect(byte first) {
+        return first == BinaryCodec.MAGIC ? BINARY : TEXT;
+    }
+}
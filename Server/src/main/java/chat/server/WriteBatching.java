@@ -0,0 +1,64 @@
+package chat.server;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write coalescing limits of a server engine. A connection writer gathers the frames queued for it
+ * into one write, and while the connection is busy, that is its previous write carried more than
+ * one frame, it waits up to the deadline for more frames until the batch reaches the size threshold.
+ * A connection getting a message now and then is never busy, so its frames are written at once and
+ * the latency at low rates stays as it was.
+ * <p>
+ * Configured by <code>outbound.batch.bytes</code> (default 16384) and <code>outbound.batch.micros</code>
+ * (default 200, <code>0</code> writes every batch at once) keys of the server config.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ChatHandler
+ * @see NioConnection
+ */
+class WriteBatching {
+
+    static final int MAX_FRAMES = 64;
+    static final int DEFAULT_BYTES = 16 * 1024;
+    static final long DEFAULT_MICROS = 200;
+
+    final int bytes;
+    final long nanos;
+
+    /**
+     * @param bytes Batch size the write is made at once
+     * @param micros Longest time a busy connection waits for more frames
+     */
+    WriteBatching(int bytes, long micros) {
+        this.bytes = bytes;
+        this.nanos = TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    /**
+     * @param properties Server config
+     *
+     * @return Limits read from the config, defaults for the missing keys
+     */
+    static WriteBatching from(Properties properties) {
+        return new WriteBatching(
+                Integer.parseInt(properties.getProperty("outbound.batch.bytes", String.valueOf(DEFAULT_BYTES))),
+                Long.parseLong(properties.getProperty("outbound.batch.micros", String.valueOf(DEFAULT_MICROS))));
+    }
+
+    /**
+     * @param busy Whether the previous write of the connection carried more than one frame
+     * @param frames Frames in the batch
+     * @param batchBytes Bytes in the batch
+     *
+     * @return Whether the batch should wait for more frames
+     */
+    boolean linger(boolean busy, int frames, long batchBytes) {
+        return busy && nanos > 0 && batchBytes < bytes && frames < MAX_FRAMES;
+    }
+}
@@ -0,0 +1,75 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import chat.protocol.MessageType;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Smoke test of an engine started by the {@link ChatEngine.Builder} on a {@link MemoryTransport}:
+ * two clients connect, join, one broadcasts, and the server stops.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see ChatEngine.Builder
+ * @see MemoryTransport
+ */
+public class ChatEngineTest {
+
+    @Test(timeout = 10_000)
+    public void broadcastsOverMemoryTransport() throws IOException {
+        MemoryTransport transport = new MemoryTransport();
+        ChatEngine engine = ChatEngine.builder().transport(transport).start();
+        try (ByteChannel alice = transport.connect(); ByteChannel bob = transport.connect()) {
+            write(alice, Message.join("alice"));
+            DataInputStream aliceIn = new DataInputStream(Channels.newInputStream(alice));
+            until(aliceIn, MessageType.JOIN, "alice");
+            write(bob, Message.join("bob"));
+            DataInputStream bobIn = new DataInputStream(Channels.newInputStream(bob));
+            until(bobIn, MessageType.JOIN, "bob");
+            until(aliceIn, MessageType.JOIN, "bob");
+
+            write(alice, Message.chat("alice", "hello"));
+            assertEquals("hello", until(bobIn, MessageType.CHAT, "alice").getText());
+            assertEquals("hello", until(aliceIn, MessageType.CHAT, "alice").getText());
+            assertEquals(2, engine.getMetrics().getActiveConnections());
+        } finally {
+            engine.stopServer();
+        }
+        try {
+            transport.connect();
+            fail("connected to a stopped server");
+        } catch (ConnectException e) {
+            // the listener is closed
+        }
+    }
+
+    private static void write(ByteChannel channel, Message message) throws IOException {
+        ByteBuffer frame = ByteBuffer.wrap(BinaryCodec.encode(message));
+        while (frame.hasRemaining()) channel.write(frame);
+    }
+
+    /**
+     * Reads frames until one of the type from the user.
+     */
+    private static Message until(DataInputStream in, MessageType type, String name) throws IOException {
+        while (true) {
+            Message message = BinaryCodec.decode(ByteBuffer.wrap(BinaryCodec.read(in)));
+            if (message.getType() == type && message.getName().equals(name)) return message;
+        }
+    }
+}
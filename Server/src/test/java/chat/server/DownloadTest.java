@@ -0,0 +1,119 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.FileTransfer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads of a spooled file to a blocking channel, whole and from a file cut short on disk.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Download
+ * @see Spool
+ */
+public class DownloadTest {
+
+    private static final long ID = 7;
+    private static final int SIZE = 2 * FileTransfer.CHUNK_SIZE + 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 5000)
+    public void writesTheFileInChunks() throws IOException {
+        byte[] data = new byte[SIZE];
+        new Random(1).nextBytes(data);
+        Spool.Entry file = upload(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Download download = new Download(file, 0, new ServerMetrics());
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (!download.isDone()) assertTrue(download.write(channel));
+
+        ByteBuffer frames = ByteBuffer.wrap(out.toByteArray());
+        byte[] received = new byte[SIZE];
+        while (frames.hasRemaining()) {
+            int start = frames.position();
+            int end = start + BinaryCodec.frameLength(frames, start);
+            int from = BinaryCodec.chunkData(frames, start);
+            System.arraycopy(frames.array(), from, received, (int) BinaryCodec.chunkOffset(frames, start), end - from);
+            frames.position(end);
+        }
+        assertArrayEquals(data, received);
+    }
+
+    @Test(timeout = 5000, expected = EOFException.class)
+    public void failsOnAFileShorterThanItsSize() throws IOException {
+        Spool.Entry file = upload(new byte[SIZE]);
+        try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.WRITE)) {
+            channel.truncate(FileTransfer.CHUNK_SIZE + 10);
+        }
+        Download download = new Download(file, 0, new ServerMetrics());
+        WritableByteChannel channel = Channels.newChannel(new ByteArrayOutputStream());
+        while (!download.isDone()) download.write(channel);
+    }
+
+    private Spool.Entry upload(byte[] data) throws IOException {
+        Spool spool = new Spool(folder.getRoot().toPath(), SIZE, SIZE);
+        Uploader alice = new Uploader();
+        spool.offer(alice.getUsername(), "room", ID, data.length, "file.bin");
+        Spool.Entry file = null;
+        for (int position = 0; position < data.length; position += FileTransfer.CHUNK_SIZE) {
+            int length = Math.min(FileTransfer.CHUNK_SIZE, data.length - position);
+            file = spool.write(alice, ByteBuffer.wrap(BinaryCodec.encodeChunk(ID, position, data, position, length)));
+        }
+        assertTrue(file != null && file.isComplete());
+        return file;
+    }
+
+    /**
+     * Session uploading the file, gets nothing.
+     */
+    private static class Uploader implements Session {
+
+        @Override
+        public boolean send(Frame frame) {
+            throw new AssertionError("unexpected " + frame.type());
+        }
+
+        @Override
+        public String getUsername() {
+            return "alice";
+        }
+
+        @Override
+        public void setUsername(String username) {
+        }
+
+        @Override
+        public Set<String> getRooms() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public int backlog() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package chat.server;
+
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Peers of the federation config.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Federation
+ */
+public class FederationTest {
+
+    @Test
+    public void reportsTheBadPeer() {
+        for (String bad : new String[]{"hostonly", ":7000", "host:port", "host:70000"}) {
+            Properties properties = new Properties();
+            properties.setProperty("federation.port", "0");
+            properties.setProperty("federation.peers", "good:7000, " + bad);
+            try {
+                Federation.from(properties);
+                fail("accepted " + bad);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("'" + bad + "'"));
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import chat.protocol.MessageType;
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks of the binary bodies made once, when a {@link Frame} is received.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Frame
+ * @see BinaryCodec#checkBody(ByteBuffer, int)
+ */
+public class FrameTest {
+
+    @Test
+    public void acceptsEncodedFrames() throws ProtocolException {
+        byte[] frame = BinaryCodec.encode(Message.chat("alice", "hello"));
+        assertEquals("hello", Frame.binary(frame).message().getText());
+        Message stamped = Frame.binary(BinaryCodec.sequence(frame, 42)).message();
+        assertEquals(MessageType.CHAT, stamped.getType());
+        assertEquals(42, stamped.getSequence());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsTextPastTheBody() throws ProtocolException {
+        byte[] frame = BinaryCodec.encode(Message.chat("alice", "hello"));
+        ByteBuffer.wrap(frame).putShort(frame.length - 7, (short) 100);
+        Frame.binary(frame);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsNamePastTheBody() throws ProtocolException {
+        byte[] frame = BinaryCodec.encode(Message.chat("alice", "hello"));
+        ByteBuffer.wrap(frame).putShort(BinaryCodec.HEADER_LENGTH + (frame[3] & 0xFF) + 8, (short) 0xFFFF);
+        Frame.binary(frame);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsTrailingBytes() throws ProtocolException {
+        byte[] frame = BinaryCodec.encode(Message.chat("alice", "hello"));
+        byte[] longer = Arrays.copyOf(frame, frame.length + 3);
+        ByteBuffer.wrap(longer).putInt(4, ByteBuffer.wrap(frame).getInt(4) + 3);
+        Frame.binary(longer);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsTruncatedFrame() throws ProtocolException {
+        byte[] frame = BinaryCodec.encode(Message.chat("alice", "hello"));
+        Frame.binary(Arrays.copyOf(frame, frame.length - 1));
+    }
+}
@@ -0,0 +1,111 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import chat.protocol.MessageType;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Connections watched by {@link Heartbeats} from the accept.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Heartbeats
+ */
+public class HeartbeatsTest {
+
+    @Test(timeout = 10_000)
+    public void silentConnectionIsEvicted() throws IOException, InterruptedException {
+        MemoryTransport transport = new MemoryTransport();
+        Admission admission = Admission.from(new Properties());
+        ChatEngine engine = ChatEngine.builder()
+                .transport(transport)
+                .admission(admission)
+                .set("heartbeat.interval", "0")
+                .set("handshake.timeout", "1")
+                .start();
+        try {
+            ByteChannel client = transport.connect();
+            assertEquals(-1, client.read(ByteBuffer.allocate(1024)));
+            awaitReleased(admission);
+            assertEquals(1, engine.getMetrics().getEvictedConnections());
+        } finally {
+            engine.stopServer();
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void silentConnectionIsEvictedByTheNioEngine() throws IOException, InterruptedException {
+        int port = freePort();
+        Admission admission = Admission.from(new Properties());
+        ChatEngine engine = ChatEngine.builder()
+                .port(port)
+                .engine("nio")
+                .admission(admission)
+                .set("heartbeat.interval", "0")
+                .set("handshake.timeout", "1")
+                .start();
+        try (SocketChannel client = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            int read;
+            while ((read = client.read(buffer)) > 0) buffer.clear();
+            assertEquals(-1, read);
+            awaitReleased(admission);
+            assertEquals(1, engine.getMetrics().getEvictedConnections());
+        } finally {
+            engine.stopServer();
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void pingAdvertisesTheInterval() throws IOException {
+        MemoryTransport transport = new MemoryTransport();
+        ChatEngine engine = ChatEngine.builder()
+                .transport(transport)
+                .set("heartbeat.interval", "1")
+                .set("handshake.timeout", "1")
+                .start();
+        try {
+            ByteChannel client = transport.connect();
+            client.write(ByteBuffer.wrap(BinaryCodec.encode(Message.join("alice"))));
+            DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+            ByteBuffer frame = ByteBuffer.allocate(1024);
+            Message message;
+            do {
+                frame = BinaryCodec.read(in, frame);
+                message = BinaryCodec.decode(frame);
+            } while (message.getType() != MessageType.PING);
+            assertEquals("1", message.getText());
+            client.write(ByteBuffer.wrap(BinaryCodec.encode(Message.pong())));
+        } finally {
+            engine.stopServer();
+        }
+    }
+
+    private static void awaitReleased(Admission admission) throws InterruptedException {
+        while (admission.connections() > 0) Thread.sleep(10);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replay of the last messages of a room from the offsets {@link History} keeps for it.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see History
+ */
+public class HistoryTest {
+
+    private static final int REPLAY = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tailKeepsTheLastMessagesOfEveryRoom() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        History history = open(directory);
+        for (int i = 0; i < 20; i++) {
+            history.append(chat("a", "a" + i));
+            if (i % 4 == 0) history.append(chat("b", "b" + i));
+        }
+        history.close();
+        assertEquals(texts("a", 15, 16, 17, 18, 19), texts(history.tail("a")));
+        assertEquals(texts("b", 0, 4, 8, 12, 16), texts(history.tail("b")));
+        assertTrue(history.tail("c").isEmpty());
+
+        History reopened = open(directory);
+        reopened.append(chat("b", "b20"));
+        reopened.close();
+        assertEquals(texts("a", 15, 16, 17, 18, 19), texts(reopened.tail("a")));
+        assertEquals(texts("b", 4, 8, 12, 16, 20), texts(reopened.tail("b")));
+    }
+
+    private static History open(Path directory) throws IOException {
+        return new History(directory, History.DEFAULT_SEGMENT_BYTES, History.DEFAULT_RETENTION_BYTES,
+                Long.MAX_VALUE, REPLAY, SearchIndex.DEFAULT_FLUSH_DOCS, 0);
+    }
+
+    private static Frame chat(String room, String text) throws IOException {
+        return Frame.binary(BinaryCodec.encode(Message.chat("alice", text).inRoom(room)));
+    }
+
+    private static List<String> texts(List<Frame> frames) {
+        List<String> result = new ArrayList<>();
+        for (Frame frame : frames) result.add(frame.message().getText());
+        return result;
+    }
+
+    private static List<String> texts(String room, int... numbers) {
+        List<String> result = new ArrayList<>();
+        for (int number : numbers) result.add(room + number);
+        return result;
+    }
+}
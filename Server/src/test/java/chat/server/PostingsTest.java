@@ -0,0 +1,134 @@
+package chat.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Posting lists written by a {@link Postings.Builder} and read back, whole blocks and from the end,
+ * around the block boundaries.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Postings
+ * @see Postings.Backward
+ */
+public class PostingsTest {
+
+    private static final int[] COUNTS = {1, 2, Postings.BLOCK - 1, Postings.BLOCK, Postings.BLOCK + 1,
+            2 * Postings.BLOCK, 5 * Postings.BLOCK + 17};
+
+    @Test
+    public void decodesWhatWasAdded() {
+        Random random = new Random(1);
+        for (int count : COUNTS) {
+            long[] offsets = offsets(random, count);
+            Postings postings = write(offsets, 13);
+            assertEquals(count, postings.count());
+            assertEquals((count + Postings.BLOCK - 1) / Postings.BLOCK, postings.blocks());
+            long[] block = new long[Postings.BLOCK];
+            for (int b = 0; b < postings.blocks(); b++) {
+                int from = b * Postings.BLOCK;
+                int to = Math.min(count, from + Postings.BLOCK);
+                assertEquals(to - from, postings.decode(b, block));
+                assertEquals(Arrays.toString(Arrays.copyOfRange(offsets, from, to)),
+                        Arrays.toString(Arrays.copyOf(block, to - from)));
+                assertEquals(offsets[to - 1], postings.last(b));
+            }
+        }
+    }
+
+    @Test
+    public void snapshotReadsLikeTheWrittenList() {
+        long[] offsets = offsets(new Random(2), 3 * Postings.BLOCK + 5);
+        Postings.Builder builder = new Postings.Builder();
+        for (long offset : offsets) builder.add(offset);
+        Postings snapshot = builder.snapshot();
+        builder.add(offsets[offsets.length - 1] + 1);
+        assertEquals(offsets.length, snapshot.count());
+        assertEquals(offsets[offsets.length - 1], snapshot.last(snapshot.blocks() - 1));
+    }
+
+    @Test
+    public void floorFindsTheGreatestOffsetNotPastTheTarget() {
+        Random random = new Random(3);
+        for (int count : COUNTS) {
+            long[] offsets = offsets(random, count);
+            Postings postings = write(offsets, 0);
+            Postings.Backward backward = postings.backward();
+            for (long target : targets(random, offsets)) {
+                assertEquals("count " + count + ", target " + target, floor(offsets, target), backward.floor(target));
+            }
+        }
+    }
+
+    @Test
+    public void floorOfTheBlockBoundaries() {
+        long[] offsets = offsets(new Random(4), 4 * Postings.BLOCK);
+        Postings postings = write(offsets, 0);
+        Postings.Backward backward = postings.backward();
+        for (int i = offsets.length - 1; i >= 0; i--) {
+            assertEquals(offsets[i], backward.floor(offsets[i]));
+            if (i > 0) assertEquals(offsets[i - 1], backward.floor(offsets[i] - 1));
+        }
+        assertEquals(-1, backward.floor(offsets[0] - 1));
+    }
+
+    /**
+     * @return Ascending offsets with gaps of one to five bytes as deltas
+     */
+    private static long[] offsets(Random random, int count) {
+        long[] offsets = new long[count];
+        long offset = random.nextInt(100);
+        for (int i = 0; i < count; i++) {
+            offsets[i] = offset;
+            int bits = 1 + random.nextInt(random.nextInt(10) == 0 ? 34 : 12);
+            offset += 1 + (random.nextLong() & ((1L << bits) - 1));
+        }
+        return offsets;
+    }
+
+    /**
+     * @return Targets not increasing: past the last offset, around every offset, and at random in the gaps
+     */
+    private static long[] targets(Random random, long[] offsets) {
+        long[] targets = new long[4 * offsets.length + 2];
+        int n = 0;
+        targets[n++] = offsets[offsets.length - 1] + 1000;
+        for (int i = offsets.length - 1; i >= 0; i--) {
+            long below = i > 0 ? offsets[i - 1] : -1;
+            long inGap = offsets[i] - 1 - (long) (random.nextDouble() * (offsets[i] - 1 - below));
+            for (long target : new long[]{offsets[i] + 1, offsets[i], offsets[i] - 1, inGap}) {
+                if (target <= targets[n - 1]) targets[n++] = target;
+            }
+        }
+        targets[n++] = -1;
+        return Arrays.copyOf(targets, n);
+    }
+
+    /**
+     * Writes the list at a position inside a bigger buffer, like a list of an {@link IndexSegment}.
+     */
+    private static Postings write(long[] offsets, int start) {
+        Postings.Builder builder = new Postings.Builder();
+        for (long offset : offsets) builder.add(offset);
+        ByteBuffer buffer = ByteBuffer.allocate(start + builder.size() + 7);
+        buffer.position(start);
+        builder.writeTo(buffer);
+        return new Postings(buffer, start);
+    }
+
+    private static long floor(long[] offsets, long target) {
+        long floor = -1;
+        for (long offset : offsets) if (offset <= target) floor = offset;
+        return floor;
+    }
+}
@@ -0,0 +1,178 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import chat.protocol.MessageType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replay of a room to a session entering it, and the order of the broadcasts sent by the {@link FanOut} workers,
+ * also to the sessions entering while they are queued.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see Rooms
+ * @see FanOut
+ */
+public class RoomsTest {
+
+    private static final int SENT = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void enterReplaysTheStoredTailThenTheRing() throws IOException {
+        History history = new History(folder.getRoot().toPath(), History.DEFAULT_SEGMENT_BYTES,
+                History.DEFAULT_RETENTION_BYTES, Long.MAX_VALUE, 3, SearchIndex.DEFAULT_FLUSH_DOCS, 0);
+        Rooms rooms = new Rooms(history, null, null, new Resume(Resume.DEFAULT_RING), null, null);
+        RecordingSession alice = join(rooms, "alice");
+        for (int i = 1; i <= 5; i++) chat(rooms, alice, "c" + i);
+        history.close();
+        chat(rooms, alice, "c6");
+        chat(rooms, alice, "c7");
+
+        RecordingSession bob = join(rooms, "bob");
+        assertEquals(Arrays.asList("c3", "c4", "c5", "c6", "c7"), bob.chats());
+        chat(rooms, alice, "c8");
+        assertEquals(Arrays.asList("c3", "c4", "c5", "c6", "c7", "c8"), bob.chats());
+    }
+
+    @Test
+    public void fanOutKeepsOneOrderForEveryMember() throws Exception {
+        FanOut fanOut = new FanOut(4, 1);
+        Rooms rooms = new Rooms(null, null, null, new Resume(Resume.DEFAULT_RING), null, fanOut);
+        List<RecordingSession> members = new ArrayList<>();
+        for (int i = 0; i < 64; i++) members.add(join(rooms, "user" + i));
+        Thread[] senders = new Thread[4];
+        for (int s = 0; s < senders.length; s++) {
+            RecordingSession from = members.get(s);
+            senders[s] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < SENT; i++) chat(rooms, from, from.getUsername() + " " + i);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            senders[s].start();
+        }
+        for (Thread sender : senders) sender.join();
+        fanOut.close();
+
+        List<String> first = members.get(0).chats();
+        assertEquals(senders.length * SENT, first.size());
+        for (RecordingSession member : members) assertEquals(first, member.chats());
+        for (int s = 0; s < senders.length; s++) {
+            int next = 0;
+            for (String chat : first) {
+                if (chat.startsWith("user" + s + " ")) assertEquals("user" + s + " " + next++, chat);
+            }
+            assertEquals(SENT, next);
+        }
+    }
+
+    @Test
+    public void fanOutSendsAQueuedFrameOnceToAMemberEnteringMeanwhile() throws Exception {
+        History history = new History(folder.getRoot().toPath(), History.DEFAULT_SEGMENT_BYTES,
+                History.DEFAULT_RETENTION_BYTES, Long.MAX_VALUE, 3, SearchIndex.DEFAULT_FLUSH_DOCS, 0);
+        int sent = 10 * SENT;
+        FanOut fanOut = new FanOut(4, 1);
+        Rooms rooms = new Rooms(history, null, null, new Resume(sent), null, fanOut);
+        RecordingSession alice = join(rooms, "alice");
+        Thread sender = new Thread(() -> {
+            try {
+                for (int i = 1; i <= sent; i++) chat(rooms, alice, String.valueOf(i));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        sender.start();
+        List<RecordingSession> entered = new ArrayList<>();
+        while (sender.isAlive()) entered.add(join(rooms, "user" + entered.size()));
+        sender.join();
+        fanOut.close();
+        history.close();
+
+        for (RecordingSession member : entered) {
+            int last = 0;
+            for (String chat : member.chats()) {
+                int next = Integer.parseInt(chat);
+                assertTrue(member.getUsername() + " got " + next + " after " + last, next > last);
+                last = next;
+            }
+            assertEquals(sent, last);
+        }
+    }
+
+    private static RecordingSession join(Rooms rooms, String name) {
+        RecordingSession session = new RecordingSession();
+        rooms.open(session);
+        rooms.route(session, Frame.of(Message.join(name).inRoom("room")));
+        return session;
+    }
+
+    private static void chat(Rooms rooms, Session from, String text) throws IOException {
+        rooms.route(from, Frame.binary(BinaryCodec.encode(Message.chat(from.getUsername(), text).inRoom("room"))));
+    }
+
+    /**
+     * Session keeping the frames it gets, from any thread.
+     */
+    private static class RecordingSession implements Session {
+
+        private final Set<String> joined = ConcurrentHashMap.newKeySet();
+        private final List<Frame> received = new ArrayList<>();
+        private String username;
+
+        synchronized List<String> chats() {
+            List<String> result = new ArrayList<>();
+            for (Frame frame : received) {
+                if (frame.type() == MessageType.CHAT) result.add(frame.message().getText());
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized boolean send(Frame frame) {
+            received.add(frame);
+            return true;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public Set<String> getRooms() {
+            return joined;
+        }
+
+        @Override
+        public int backlog() {
+            return 0;
+        }
+    }
+}
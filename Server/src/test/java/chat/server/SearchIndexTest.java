@@ -0,0 +1,91 @@
+package chat.server;
+
+import chat.protocol.BinaryCodec;
+import chat.protocol.Message;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Searches of a {@link SearchIndex} written to many segments and merged, the intersections of the posting
+ * lists checked against a linear scan of the messages.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see SearchIndex
+ * @see Postings
+ */
+public class SearchIndexTest {
+
+    private static final int MESSAGES = 2000;
+    private static final int FLUSH_DOCS = 100;
+    private static final int[] DIVISORS = {2, 3, 7, 64, 129};
+    private static final String[] WORDS = {"two", "three", "seven", "sixtyfour", "odd"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void intersectionMatchesLinearScan() throws IOException {
+        History history = new History(folder.getRoot().toPath(), History.DEFAULT_SEGMENT_BYTES,
+                History.DEFAULT_RETENTION_BYTES, Long.MAX_VALUE, 0, FLUSH_DOCS, MESSAGES);
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            String text = text(i);
+            texts.add(text);
+            history.append(Frame.binary(BinaryCodec.encode(Message.chat(i % 5 == 0 ? "bob" : "alice", text))));
+        }
+        history.close();
+        SearchIndex index = history.index();
+        String[] queries = {"two", "two three", "three seven", "two three seven", "sixtyfour odd",
+                "odd two", "seven odd from:bob", "in:lobby three", "two from:carol"};
+        for (String query : queries) {
+            assertEquals(query, scan(texts, query), texts(index.find(SearchIndex.Query.parse(query))));
+        }
+    }
+
+    /**
+     * Text of the message i: the words of the divisors of i, so the lists of the words overlap
+     * in every block size.
+     */
+    private static String text(int i) {
+        StringBuilder text = new StringBuilder("m" + i);
+        for (int d = 0; d < DIVISORS.length; d++) {
+            if (i % DIVISORS[d] == 0) text.append(' ').append(WORDS[d]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return Texts having all the words of the query, newest first
+     */
+    private static List<String> scan(List<String> texts, String query) {
+        List<String> found = new ArrayList<>();
+        for (int i = texts.size() - 1; i >= 0; i--) {
+            boolean isMatch = true;
+            for (String token : query.split(" ")) {
+                if (token.equals("from:bob")) isMatch &= i % 5 == 0;
+                else if (token.startsWith("from:")) isMatch = false;
+                else if (!token.startsWith("in:")) isMatch &= (" " + texts.get(i) + " ").contains(" " + token + " ");
+            }
+            if (isMatch) found.add(texts.get(i));
+        }
+        return found;
+    }
+
+    private static List<String> texts(List<Frame> frames) {
+        List<String> result = new ArrayList<>();
+        for (Frame frame : frames) result.add(frame.message().getText());
+        return result;
+    }
+}
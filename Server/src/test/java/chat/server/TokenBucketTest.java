@@ -0,0 +1,72 @@
+package chat.server;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Charges of the file chunks to the byte tokens of a {@link TokenBucket}: always taken, the sender
+ * pauses until the tokens of another chunk are back. And the tokens of a message put back when
+ * another bucket refuses it.
+ *
+ * @author Ivan Sokolovskiy
+ *
+ * @since Version 1.2
+ *
+ * @version 1.2
+ *
+ * @see TokenBucket#charge(int, long)
+ * @see Admission.Ticket#charge(int)
+ * @see Admission.Ticket#allow(int)
+ */
+public class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void chargesWithinTheBurstWithoutPause() {
+        TokenBucket bucket = new TokenBucket(0, 1000, 1);
+        assertEquals(0, bucket.charge(400, System.nanoTime()));
+        assertEquals(0, bucket.charge(300, System.nanoTime()));
+    }
+
+    @Test
+    public void pausesUntilAnotherChunkFits() {
+        TokenBucket bucket = new TokenBucket(0, 1000, 1);
+        long now = System.nanoTime();
+        long pause = bucket.charge(800, now);
+        assertTrue(pause > SECOND * 6 / 10 - SECOND / 10 && pause <= SECOND * 6 / 10);
+        assertFalse(bucket.tryTake(800, now));
+        assertTrue(bucket.tryTake(800, now + pause));
+    }
+
+    @Test
+    public void pausesForTheDebtOfAChunkOverTheBurst() {
+        TokenBucket bucket = new TokenBucket(0, 1000, 1);
+        long now = System.nanoTime();
+        long pause = bucket.charge(1500, now);
+        assertTrue(pause > SECOND * 3 / 2 - SECOND / 10 && pause <= SECOND * 3 / 2);
+        assertFalse(bucket.tryTake(1, now));
+        assertTrue(bucket.tryTake(1, now + pause));
+    }
+
+    @Test
+    public void putBackRestoresTheTokensOfARefusedMessage() {
+        TokenBucket bucket = new TokenBucket(1, 1000, 1);
+        long now = System.nanoTime();
+        assertTrue(bucket.tryTake(600, now));
+        assertFalse(bucket.tryTake(600, now));
+        bucket.putBack(600);
+        assertTrue(bucket.tryTake(1000, now));
+    }
+
+    @Test
+    public void neverPausesWithoutAByteRate() {
+        TokenBucket bucket = new TokenBucket(10, 0, 1);
+        assertEquals(0, bucket.charge(Integer.MAX_VALUE, System.nanoTime()));
+    }
+}